@@ -0,0 +1,58 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+/**
+ * AT commands that configure the ELM327 after a reset, in the order they are sent
+ *
+ * commands changing a setting have a key (e.g. "SP" for ATSP6), a later command with
+ * the same key replaces the setting. commands without key (e.g. ATFE) are actions.
+ * header and receive filter are not part of the config, ObdCommandQueue sets them per request.
+ */
+final class AdapterConfig {
+
+    static final String[] RESET_COMMANDS = {"ATD", "ATZ"};
+
+    // longest first, as "S" would also match ATSP, ATST, ATSH
+    private static final String[] SETTING_KEYS = {"CRA", "SH", "SP", "ST", "AT", "E", "L", "S", "H"};
+
+    final String[] commands;
+    final String[] keys;
+
+    AdapterConfig(String... commands) {
+        this.commands = commands.clone();
+        this.keys = new String[commands.length];
+        for (int i = 0; i < commands.length; i++)
+            keys[i] = settingKey(commands[i]);
+    }
+
+    static AdapterConfig konaBms() {
+        return new AdapterConfig("ATE0", "ATL0", "ATS0", "ATH1", "ATSTFF", "ATFE", "ATSP6");
+    }
+
+    /**
+     * @return protocol number set with ATSP, as reported by ATDPN, null if not set
+     */
+    String getProtocol() {
+        for (String command : commands)
+            if ("SP".equals(settingKey(command)))
+                return command.substring(4);
+        return null;
+    }
+
+    /**
+     * @return key of the setting changed by the command, null for actions like ATZ, ATFE, ATRV
+     */
+    static String settingKey(String command) {
+        if (!command.startsWith("AT") || command.length() < 4)
+            return null;
+        String rest = command.substring(2);
+        for (String key : SETTING_KEYS) {
+            if (rest.startsWith(key) && rest.length() > key.length()) {
+                String value = rest.substring(key.length());
+                if (key.length() == 1 || key.equals("AT")) // boolean style settings, e.g. ATE0, ATAT1
+                    return value.length() == 1 && Character.isDigit(value.charAt(0)) ? key : null;
+                return key;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,44 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * AT settings last applied to each adapter, by adapter address
+ *
+ * the ELM327 keeps its settings while powered, also across bluetooth reconnects,
+ * until ATZ/ATD or a power loss, so after a reconnect only changed settings are sent.
+ */
+final class AdapterConfigCache {
+
+    private final Map<String, Map<String, String>> applied = new HashMap<>();
+
+    synchronized boolean isKnown(String address) {
+        Map<String, String> settings = applied.get(address);
+        return settings != null && !settings.isEmpty();
+    }
+
+    /**
+     * @return last applied command for the setting key, null if unknown
+     */
+    synchronized String get(String address, String key) {
+        Map<String, String> settings = applied.get(address);
+        return settings != null ? settings.get(key) : null;
+    }
+
+    synchronized void put(String address, String key, String command) {
+        Map<String, String> settings = applied.get(address);
+        if (settings == null) {
+            settings = new HashMap<>();
+            applied.put(address, settings);
+        }
+        settings.put(key, command);
+    }
+
+    /**
+     * adapter was reset or does not hold the settings anymore
+     */
+    synchronized void clear(String address) {
+        applied.remove(address);
+    }
+}
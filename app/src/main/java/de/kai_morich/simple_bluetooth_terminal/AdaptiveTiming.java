@@ -0,0 +1,333 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ATST, ATAT and expected frame count learned from the ECU replies, per adapter and request
+ *
+ * the ELM327 waits up to ATST (hh * 4.096 ms) for the first frame of a reply and for each
+ * following frame, the prompt only comes after this wait behind the last frame. the init
+ * sequence sets ATSTFF, so a reply ends up to 1 s after its last frame.
+ * ObdCommandQueue measures the time to the first frame and the longest gap between frames.
+ * after MIN_SAMPLES replies the timeout of a request is MARGIN times the largest of the last
+ * WINDOW measurements plus MARGIN_MILLIS, rounded up to 4 units, and adaptive timing is set
+ * to aggressive (ATAT2). a selected timeout up to SHARED_UNITS longer than needed is kept,
+ * so requests with similar times share one ATST instead of switching back and forth.
+ * NO DATA with a timeout below MAX_TIMEOUT doubles the lowest timeout of the request and
+ * sets ATAT1 for the adapter, the floor is halved again after WINDOW replies without NO DATA.
+ * NO DATA at MAX_TIMEOUT is a real one, e.g. the ECU sleeps, and changes nothing.
+ * an adapter answering ATST or ATAT with '?' keeps its timing.
+ *
+ * a request ending with a hex digit, e.g. "220101 9", makes the ELM327 (v1.3+) send the prompt
+ * as soon as that many frames arrived, without any wait. the frame count announced by the
+ * single or first frame is used once two complete replies agree on it and it is at most
+ * MAX_FRAME_COUNT. a reply with fewer frames than announced, as when the ECU sends more frames
+ * than expected, forgets the count, '?' turns the suffix off for the adapter. in both cases
+ * ObdCommandQueue sends the request again without the count.
+ * profiles are kept by adapter address and requests by ECU and command, e.g. "BMS 220101".
+ * the VIN is not read, a dongle usually stays in one vehicle. moved to another one, NO DATA
+ * raises the timeouts and a short reply drops the frame count within a few requests.
+ * the service saves the profiles with write() and reads them back after a restart, the
+ * counters for the statistics start at 0.
+ */
+final class AdaptiveTiming {
+
+    static final int MAX_TIMEOUT = 0xFF;  // 1044 ms
+    static final int MIN_TIMEOUT = 0x08;  // 33 ms
+    static final int DEFAULT_TIMEOUT = 0x32; // after reset, 205 ms
+    static final int MIN_SAMPLES = 8;
+    static final int WINDOW = 32;
+    static final double MARGIN = 1.5;
+    static final long MARGIN_MILLIS = 20;
+    static final int SHARED_UNITS = 8; // 33 ms, a longer selected timeout is kept up to this
+    static final int MAX_FRAME_COUNT = 0xF;
+    static final int NORMAL = 1;
+    static final int AGGRESSIVE = 2;
+    private static final double UNIT_NANOS = 4.096e6;
+    private static final int VERSION = 1;
+
+    private static final class Request {
+        final String name;
+        final long[] latencies = new long[WINDOW]; // nanos, ring
+        int samples;
+        int floor = MIN_TIMEOUT;
+        int timeout = MAX_TIMEOUT;
+        int sinceBackoff;
+        long noData;
+        long backoffs;
+        long waitNanos; // from the last frame to the prompt
+        long waits;
+        int frames;    // expected frame count sent with the request, 0 for none
+        int candidate; // frame count of the last complete reply
+        long frameCountFailures;
+
+        Request(String name) {
+            this.name = name;
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeUTF(name);
+            out.writeInt(samples);
+            for (long latency : latencies)
+                out.writeLong(latency);
+            out.writeInt(floor);
+            out.writeInt(frames);
+            out.writeInt(candidate);
+        }
+
+        static Request read(DataInput in) throws IOException {
+            Request r = new Request(in.readUTF());
+            r.samples = in.readInt();
+            for (int i = 0; i < WINDOW; i++)
+                r.latencies[i] = in.readLong();
+            r.floor = Math.min(MAX_TIMEOUT, Math.max(MIN_TIMEOUT, in.readInt()));
+            r.frames = Math.min(MAX_FRAME_COUNT, Math.max(0, in.readInt()));
+            r.candidate = in.readInt();
+            if (r.samples < 0)
+                throw new IOException("invalid request " + r.name);
+            r.update();
+            return r;
+        }
+
+        void update() {
+            if (samples < MIN_SAMPLES) {
+                timeout = MAX_TIMEOUT;
+                return;
+            }
+            long max = 0;
+            for (int i = 0; i < Math.min(samples, WINDOW); i++)
+                max = Math.max(max, latencies[i]);
+            int units = (int) Math.ceil((max * MARGIN + MARGIN_MILLIS * 1e6) / UNIT_NANOS);
+            units = (units + 3) & ~3;
+            timeout = Math.min(MAX_TIMEOUT, Math.max(units, floor));
+        }
+    }
+
+    /**
+     * timing of one adapter, used by ObdCommandQueue on the reader and session thread
+     */
+    static final class Profile {
+        private final Map<String, Request> requests = new HashMap<>();
+        private final List<Request> order = new ArrayList<>();
+        private boolean aggressiveFailed;
+        private boolean timeoutUnsupported;
+        private boolean adaptiveUnsupported;
+        private boolean frameCountUnsupported;
+
+        private Request get(String name) {
+            Request r = requests.get(name);
+            if (r == null) {
+                r = new Request(name);
+                requests.put(name, r);
+                order.add(r);
+            }
+            return r;
+        }
+
+        /**
+         * @return ATST value for the request, -1 to leave the timeout as it is
+         */
+        synchronized int getTimeout(String name) {
+            if (timeoutUnsupported)
+                return -1;
+            Request r = requests.get(name);
+            return r != null ? r.timeout : MAX_TIMEOUT;
+        }
+
+        /**
+         * @return ATAT value, -1 to leave adaptive timing as it is
+         */
+        synchronized int getAdaptive() {
+            if (adaptiveUnsupported)
+                return -1;
+            if (aggressiveFailed)
+                return NORMAL;
+            for (Request r : order)
+                if (r.samples >= MIN_SAMPLES)
+                    return AGGRESSIVE;
+            return NORMAL;
+        }
+
+        /**
+         * @return frames to append to the request, 0 for none
+         */
+        synchronized int getFrameCount(String name) {
+            if (frameCountUnsupported)
+                return 0;
+            Request r = requests.get(name);
+            return r != null ? r.frames : 0;
+        }
+
+        /**
+         * @param frames frames of a complete reply, as many as announced by its first frame
+         */
+        synchronized void onFrames(String name, int frames) {
+            Request r = get(name);
+            if (frames != r.candidate) {
+                r.candidate = frames; // changed, confirmed by the next reply
+                r.frames = 0;
+                return;
+            }
+            r.frames = frames <= MAX_FRAME_COUNT ? frames : 0;
+        }
+
+        /**
+         * @param rejected the adapter replied '?', else the reply had fewer frames than announced
+         */
+        synchronized void onFrameCountFailed(String name, boolean rejected) {
+            Request r = get(name);
+            r.frames = 0;
+            r.candidate = 0;
+            r.frameCountFailures++;
+            if (rejected)
+                frameCountUnsupported = true;
+        }
+
+        /**
+         * @param latencyNanos time to the first frame or longest gap between frames, the larger
+         * @param waitNanos    time from the last frame to the prompt
+         */
+        synchronized void onReply(String name, long latencyNanos, long waitNanos) {
+            Request r = get(name);
+            r.latencies[r.samples % WINDOW] = latencyNanos;
+            r.samples++;
+            r.waitNanos += waitNanos;
+            r.waits++;
+            if (++r.sinceBackoff >= WINDOW && r.floor > MIN_TIMEOUT) {
+                r.floor = Math.max(MIN_TIMEOUT, r.floor / 2);
+                r.sinceBackoff = 0;
+            }
+            r.update();
+        }
+
+        /**
+         * @param timeout ATST the request was sent with
+         */
+        synchronized void onNoData(String name, int timeout) {
+            Request r = get(name);
+            r.noData++;
+            if (timeout < 0 || timeout >= MAX_TIMEOUT)
+                return;
+            r.backoffs++;
+            r.sinceBackoff = 0;
+            r.floor = Math.min(MAX_TIMEOUT, Math.max(r.floor, timeout * 2));
+            r.update();
+            aggressiveFailed = true;
+        }
+
+        /**
+         * adapter replied '?' to an ATST or ATAT command
+         */
+        synchronized void onRejected(String command) {
+            if (command.startsWith("ATST"))
+                timeoutUnsupported = true;
+            else if (command.equals("ATAT" + AGGRESSIVE))
+                aggressiveFailed = true;
+            else
+                adaptiveUnsupported = true;
+        }
+
+        synchronized void write(DataOutput out) throws IOException {
+            out.writeBoolean(aggressiveFailed);
+            out.writeBoolean(timeoutUnsupported);
+            out.writeBoolean(adaptiveUnsupported);
+            out.writeBoolean(frameCountUnsupported);
+            out.writeInt(order.size());
+            for (Request r : order)
+                r.write(out);
+        }
+
+        static Profile read(DataInput in) throws IOException {
+            Profile p = new Profile();
+            p.aggressiveFailed = in.readBoolean();
+            p.timeoutUnsupported = in.readBoolean();
+            p.adaptiveUnsupported = in.readBoolean();
+            p.frameCountUnsupported = in.readBoolean();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Request r = Request.read(in);
+                p.requests.put(r.name, r);
+                p.order.add(r);
+            }
+            return p;
+        }
+
+        synchronized StringBuilder appendStatistics(StringBuilder sb) {
+            int adaptive = getAdaptive();
+            sb.append(" ATAT").append(adaptive >= 0 ? Integer.toString(adaptive) : "-");
+            if (timeoutUnsupported)
+                sb.append(", ATST not supported");
+            if (frameCountUnsupported)
+                sb.append(", frame count not supported");
+            for (Request r : order) {
+                long max = 0;
+                for (int i = 0; i < Math.min(r.samples, WINDOW); i++)
+                    max = Math.max(max, r.latencies[i]);
+                sb.append("\n  ").append(r.name).append(": ").append(ObdCommandQueue.timeoutCommand(r.timeout))
+                        .append(" (").append(Math.round(r.timeout * UNIT_NANOS / 1e6)).append(" ms), latency max ")
+                        .append(max / 1000000).append(" ms, wait after last frame ")
+                        .append(r.waits > 0 ? r.waitNanos / r.waits / 1000000 : 0).append(" ms, ")
+                        .append(r.samples).append(" replies, ").append(r.noData).append(" NO DATA, ")
+                        .append(r.backoffs).append(" backoffs, ")
+                        .append(r.frames > 0 && !frameCountUnsupported ? r.frames + " frames expected" : "frame count not used");
+                if (r.frameCountFailures > 0)
+                    sb.append(" (").append(r.frameCountFailures).append(" sent again without)");
+            }
+            return sb;
+        }
+    }
+
+    private final Map<String, Profile> profiles = new HashMap<>();
+
+    synchronized Profile getProfile(String adapterAddress) {
+        Profile p = profiles.get(adapterAddress);
+        if (p == null) {
+            p = new Profile();
+            profiles.put(adapterAddress, p);
+        }
+        return p;
+    }
+
+    synchronized void write(DataOutput out) throws IOException {
+        out.writeInt(VERSION);
+        out.writeInt(profiles.size());
+        for (Map.Entry<String, Profile> e : profiles.entrySet()) {
+            out.writeUTF(e.getKey());
+            e.getValue().write(out);
+        }
+    }
+
+    /**
+     * profiles written by write(), a profile already used since start is kept
+     */
+    void read(DataInput in) throws IOException {
+        if (in.readInt() != VERSION)
+            throw new IOException("unknown adaptive timing version");
+        Map<String, Profile> read = new HashMap<>(); // nothing installed from a truncated file
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String address = in.readUTF();
+            read.put(address, Profile.read(in));
+        }
+        synchronized (this) {
+            for (Map.Entry<String, Profile> e : read.entrySet())
+                if (!profiles.containsKey(e.getKey()))
+                    profiles.put(e.getKey(), e.getValue());
+        }
+    }
+
+    synchronized StringBuilder appendStatistics(StringBuilder sb) {
+        sb.append("adaptive timing:");
+        for (Map.Entry<String, Profile> e : profiles.entrySet()) {
+            sb.append("\n ").append(e.getKey()).append(':');
+            e.getValue().appendStatistics(sb);
+        }
+        return sb;
+    }
+}
@@ -0,0 +1,66 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+/**
+ * decodes the raw BMS replies of 220101 and 220105 with the signal table from SignalTable
+ * and derives the values that are no plain fields (power, charging state, charge port)
+ */
+final class BmsDecoder {
+
+    private static final int CHARGING = 0x2; // CHARGING_BITS: bit 3 set, bit 2 clear
+    private static final int NORMAL_CHARGE_PORT = 0x03;
+
+    private final SignalDecoder decoder = new SignalDecoder(SignalTable.konaBms());
+    private final double[] values = new double[decoder.signalCount()];
+
+    private final int request220101 = decoder.requestIndex(SignalTable.BMS, "220101");
+    private final int request220105 = decoder.requestIndex(SignalTable.BMS, "220105");
+
+    private final int socBms = decoder.signalIndex(SignalTable.SOC_BMS);
+    private final int chargePortType = decoder.signalIndex(SignalTable.CHARGE_PORT_TYPE);
+    private final int dcBatteryCurrent = decoder.signalIndex(SignalTable.DC_BATTERY_CURRENT);
+    private final int dcBatteryVoltage = decoder.signalIndex(SignalTable.DC_BATTERY_VOLTAGE);
+    private final int batteryMaxTemperature = decoder.signalIndex(SignalTable.BATTERY_MAX_TEMPERATURE);
+    private final int batteryMinTemperature = decoder.signalIndex(SignalTable.BATTERY_MIN_TEMPERATURE);
+    private final int batteryInletTemperature = decoder.signalIndex(SignalTable.BATTERY_INLET_TEMPERATURE);
+    private final int auxBatteryVoltage = decoder.signalIndex(SignalTable.AUX_BATTERY_VOLTAGE);
+    private final int cumulativeEnergyCharged = decoder.signalIndex(SignalTable.CUMULATIVE_ENERGY_CHARGED);
+    private final int cumulativeEnergyDischarged = decoder.signalIndex(SignalTable.CUMULATIVE_ENERGY_DISCHARGED);
+    private final int chargingBits = decoder.signalIndex(SignalTable.CHARGING_BITS);
+    private final int portConnectedBit = decoder.signalIndex(SignalTable.PORT_CONNECTED_BIT);
+    private final int soh = decoder.signalIndex(SignalTable.SOH);
+    private final int socDisplay = decoder.signalIndex(SignalTable.SOC_DISPLAY);
+
+    boolean decode220101(byte[] buf, int off, int len, BmsSample out) {
+        out.invalidate(BmsSample.MASK_220101);
+        if (!decoder.decode(request220101, buf, off, len, values))
+            return false;
+
+        boolean portConnected = values[portConnectedBit] != 0;
+        boolean normalPort = values[chargePortType] == NORMAL_CHARGE_PORT;
+
+        out.set(BmsSample.SOC_BMS, values[socBms]);
+        out.set(BmsSample.DC_BATTERY_VOLTAGE, values[dcBatteryVoltage]);
+        out.set(BmsSample.DC_BATTERY_CURRENT, values[dcBatteryCurrent]);
+        out.set(BmsSample.DC_BATTERY_POWER, values[dcBatteryCurrent] * values[dcBatteryVoltage] / 1000.0);
+        out.set(BmsSample.AUX_BATTERY_VOLTAGE, values[auxBatteryVoltage]);
+        out.set(BmsSample.BATTERY_MAX_TEMPERATURE, (int) values[batteryMaxTemperature]);
+        out.set(BmsSample.BATTERY_MIN_TEMPERATURE, (int) values[batteryMinTemperature]);
+        out.set(BmsSample.BATTERY_INLET_TEMPERATURE, (int) values[batteryInletTemperature]);
+        out.set(BmsSample.CUMULATIVE_ENERGY_CHARGED, values[cumulativeEnergyCharged]);
+        out.set(BmsSample.CUMULATIVE_ENERGY_DISCHARGED, values[cumulativeEnergyDischarged]);
+        out.set(BmsSample.CHARGING, values[chargingBits] == CHARGING);
+        out.set(BmsSample.NORMAL_CHARGE_PORT, portConnected && normalPort);
+        out.set(BmsSample.RAPID_CHARGE_PORT, portConnected && !normalPort);
+        return true;
+    }
+
+    boolean decode220105(byte[] buf, int off, int len, BmsSample out) {
+        out.invalidate(BmsSample.MASK_220105);
+        if (!decoder.decode(request220105, buf, off, len, values))
+            return false;
+
+        out.set(BmsSample.SOC_DISPLAY, values[socDisplay]);
+        out.set(BmsSample.SOH, values[soh]);
+        return true;
+    }
+}
@@ -0,0 +1,218 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+/**
+ * reusable primitive record of the values decoded from the BMS replies 220101 and 220105
+ *
+ * values are stored by signal id with one validity bit per signal. consumers resolve
+ * names to ids once with signalId() and read with get(id), no boxing or string lookup.
+ * samples handed out by a session come from a Pool and are returned with recycle().
+ */
+final class BmsSample {
+
+    // signal ids, also TelemetryStore columns
+    static final int SOC_BMS = 0;
+    static final int DC_BATTERY_VOLTAGE = 1;
+    static final int DC_BATTERY_CURRENT = 2;
+    static final int DC_BATTERY_POWER = 3;
+    static final int AUX_BATTERY_VOLTAGE = 4;
+    static final int BATTERY_MIN_TEMPERATURE = 5;
+    static final int BATTERY_MAX_TEMPERATURE = 6;
+    static final int BATTERY_INLET_TEMPERATURE = 7;
+    static final int CUMULATIVE_ENERGY_CHARGED = 8;
+    static final int CUMULATIVE_ENERGY_DISCHARGED = 9;
+    static final int CHARGING = 10;
+    static final int NORMAL_CHARGE_PORT = 11;
+    static final int RAPID_CHARGE_PORT = 12;
+    static final int SOC_DISPLAY = 13;
+    static final int SOH = 14;
+    static final int COUNT = 15;
+
+    /**
+     * signal names by id, column names for TelemetryStore in the order of toRow
+     */
+    static final String[] COLUMNS = {
+            "SOC_BMS", "DC_BATTERY_VOLTAGE", "DC_BATTERY_CURRENT", "DC_BATTERY_POWER", "AUX_BATTERY_VOLTAGE",
+            "BATTERY_MIN_TEMPERATURE", "BATTERY_MAX_TEMPERATURE", "BATTERY_INLET_TEMPERATURE",
+            "CUMULATIVE_ENERGY_CHARGED", "CUMULATIVE_ENERGY_DISCHARGED",
+            "CHARGING", "NORMAL_CHARGE_PORT", "RAPID_CHARGE_PORT",
+            "SOC_DISPLAY", "SOH"
+    };
+
+    static final TelemetryBus.Type<BmsSample> TYPE = new TelemetryBus.Type<BmsSample>() {
+        @Override
+        public BmsSample create() {
+            return new BmsSample();
+        }
+
+        @Override
+        public void copy(BmsSample from, BmsSample to) {
+            to.copyFrom(from);
+        }
+    };
+
+    static final long MASK_220101 = (1L << SOC_DISPLAY) - 1;
+    static final long MASK_220105 = 1L << SOC_DISPLAY | 1L << SOH;
+
+    /**
+     * fixed number of spare samples, more are allocated when empty and dropped when full
+     */
+    static final class Pool {
+        private final BmsSample[] free;
+        private int size;
+        private long allocated;
+
+        Pool(int capacity) {
+            free = new BmsSample[capacity];
+        }
+
+        synchronized BmsSample acquire() {
+            BmsSample sample;
+            if (size > 0) {
+                sample = free[--size];
+                free[size] = null;
+            } else {
+                sample = new BmsSample(this);
+                allocated++;
+            }
+            sample.pooled = false;
+            return sample;
+        }
+
+        private synchronized void release(BmsSample sample) {
+            if (sample.pooled)
+                return; // recycled twice
+            sample.pooled = true;
+            if (size < free.length)
+                free[size++] = sample;
+        }
+
+        /**
+         * @return samples created by this pool, stays constant when all are recycled
+         */
+        synchronized long getAllocatedCount() {
+            return allocated;
+        }
+    }
+
+    final double[] values = new double[COUNT];
+    long validMask;
+    long timeNanos;  // System.nanoTime() of the last reply, for intervals
+    long timeMillis; // wall clock of the last reply, for storage
+    private final Pool pool;
+    private boolean pooled;
+
+    BmsSample() {
+        this(null);
+    }
+
+    private BmsSample(Pool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return signal id, -1 if unknown
+     */
+    static int signalId(String name) {
+        for (int i = 0; i < COLUMNS.length; i++)
+            if (COLUMNS[i].equals(name))
+                return i;
+        return -1;
+    }
+
+    boolean isValid(int id) {
+        return (validMask & 1L << id) != 0;
+    }
+
+    boolean isValid220101() {
+        return (validMask & MASK_220101) == MASK_220101;
+    }
+
+    boolean isValid220105() {
+        return (validMask & MASK_220105) == MASK_220105;
+    }
+
+    /**
+     * @return value, NaN if not valid
+     */
+    double get(int id) {
+        return isValid(id) ? values[id] : Double.NaN;
+    }
+
+    void set(int id, double value) {
+        values[id] = value;
+        validMask |= 1L << id;
+    }
+
+    void set(int id, boolean value) {
+        set(id, value ? 1 : 0);
+    }
+
+    void invalidate(long mask) {
+        validMask &= ~mask;
+    }
+
+    /**
+     * values of a reply stay valid until the next decode of the same reply
+     */
+    void clear() {
+        validMask = 0;
+        timeNanos = 0;
+        timeMillis = 0;
+    }
+
+    void copyFrom(BmsSample other) {
+        System.arraycopy(other.values, 0, values, 0, COUNT);
+        validMask = other.validMask;
+        timeNanos = other.timeNanos;
+        timeMillis = other.timeMillis;
+    }
+
+    /**
+     * return to the pool, the sample must not be used afterwards.
+     * no-op for samples not taken from a pool
+     */
+    void recycle() {
+        if (pool != null)
+            pool.release(this);
+    }
+
+    /**
+     * @param row COUNT values, NaN for values not decoded
+     */
+    void toRow(float[] row) {
+        for (int i = 0; i < COUNT; i++)
+            row[i] = isValid(i) ? (float) values[i] : Float.NaN;
+    }
+
+    StringBuilder appendTo(StringBuilder sb) {
+        if (isValid220101()) {
+            sb.append("220101:");
+            appendValues(sb, 0, SOC_DISPLAY);
+        } else {
+            sb.append("220101: no data");
+        }
+        if (isValid220105()) {
+            sb.append("\n\n220105:");
+            appendValues(sb, SOC_DISPLAY, COUNT);
+        } else {
+            sb.append("\n\n220105: no data");
+        }
+        return sb;
+    }
+
+    private void appendValues(StringBuilder sb, int from, int to) {
+        for (int i = from; i < to; i++) {
+            sb.append('\n').append(COLUMNS[i]).append('=');
+            double value = values[i];
+            if (i >= BATTERY_MIN_TEMPERATURE && i <= BATTERY_INLET_TEMPERATURE || i >= CHARGING && i <= RAPID_CHARGE_PORT)
+                sb.append((long) value); // integer signals
+            else
+                sb.append(value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return appendTo(new StringBuilder(512)).toString();
+    }
+}
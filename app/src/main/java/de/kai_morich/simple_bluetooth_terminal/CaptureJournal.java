@@ -0,0 +1,368 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+/**
+ * append-only binary log of raw replies and decoded samples, survives process death
+ *
+ * records are written into memory mapped segment files of fixed size. the kernel writes
+ * mapped pages back on its own, so data is kept when the process dies. force() is only
+ * called after segment roll and on close, a power loss can lose the last seconds.
+ * appends come from the reader thread, so a roll only switches to the next segment, which is
+ * mapped ahead on the background executor. forcing and closing the full segment, deleting old
+ * segments and mapping the following one run there too.
+ *
+ * record: int length of type+time+payload, int crc32 of type+time+payload, byte type,
+ * long time millis, payload. length 0 marks the end of a segment (files are zero filled).
+ * on open the last segment is scanned and appending continues after the last record
+ * with valid crc, dropping a torn tail. the oldest segments are deleted beyond maxSegments.
+ */
+final class CaptureJournal {
+
+    interface Visitor {
+        /**
+         * data is only valid during the call
+         */
+        void onRecord(int type, long timeMillis, byte[] data, int offset, int length);
+    }
+
+    static final int TYPE_RESPONSE = 1; // command incl. CR, followed by the reply
+    static final int TYPE_SAMPLE = 2;   // float per BmsSample column
+
+    private static final String PREFIX = "capture-";
+    private static final String SUFFIX = ".log";
+    private static final int RECORD_HEADER = 8;  // length, crc
+    private static final int ENTRY_HEADER = 9;   // type, time
+    private static final int MAX_ENTRY = 64 * 1024;
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final Executor background;
+    private final CRC32 crc = new CRC32();
+    private byte[] scratch = new byte[256];
+
+    private long segmentNumber;
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    // segmentNumber + 1, mapped ahead
+    private RandomAccessFile nextFile;
+    private MappedByteBuffer nextBuffer;
+    private long appended;
+    private long blockingRolls; // next segment was not mapped yet
+
+    /**
+     * segment roll, force and deletes on the appending thread
+     */
+    CaptureJournal(File dir, int segmentSize, int maxSegments) throws IOException {
+        this(dir, segmentSize, maxSegments, Runnable::run);
+    }
+
+    /**
+     * @param segmentSize bytes per segment file, larger than the largest record
+     * @param background  single thread for file I/O on segment roll, e.g. the storage thread
+     */
+    CaptureJournal(File dir, int segmentSize, int maxSegments, Executor background) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.background = background;
+        long[] segments = listSegments(dir);
+        if (segments.length == 0) {
+            openSegment(0);
+        } else {
+            openSegment(segments[segments.length - 1]);
+            buffer.position(scanSegment(buffer, null, scratch()));
+            buffer.putInt(buffer.position(), 0); // cut off torn tail
+        }
+        long number = segmentNumber + 1;
+        runInBackground(() -> mapNext(number));
+    }
+
+    synchronized void appendResponse(long timeMillis, byte[] command, byte[] reply, int offset, int length) throws IOException {
+        byte[] b = prepare(command.length + length);
+        System.arraycopy(command, 0, b, ENTRY_HEADER, command.length);
+        System.arraycopy(reply, offset, b, ENTRY_HEADER + command.length, length);
+        write(TYPE_RESPONSE, timeMillis, command.length + length);
+    }
+
+    synchronized void appendSample(long timeMillis, float[] row) throws IOException {
+        byte[] b = prepare(row.length * 4);
+        int pos = ENTRY_HEADER;
+        for (float value : row)
+            pos = putInt(b, pos, Float.floatToRawIntBits(value));
+        write(TYPE_SAMPLE, timeMillis, row.length * 4);
+    }
+
+    /**
+     * @return records appended since open
+     */
+    synchronized long getAppendedCount() {
+        return appended;
+    }
+
+    /**
+     * @return segment rolls that had to map the next segment on the appending thread
+     */
+    synchronized long getBlockingRolls() {
+        return blockingRolls;
+    }
+
+    /**
+     * write mapped pages to disk
+     */
+    synchronized void force() {
+        if (buffer != null)
+            buffer.force();
+    }
+
+    synchronized void close() {
+        if (buffer == null)
+            return;
+        buffer.force();
+        buffer = null; // mapping is released when garbage collected
+        closeQuietly(file);
+        file = null;
+        if (nextFile != null) {
+            closeQuietly(nextFile);
+            nextFile = null;
+            nextBuffer = null;
+            //noinspection ResultOfMethodCallIgnored
+            segmentFile(segmentNumber + 1).delete(); // empty
+        }
+    }
+
+    /**
+     * read all valid records of all segments, oldest first
+     */
+    synchronized void read(Visitor visitor) throws IOException {
+        if (buffer != null)
+            buffer.force();
+        for (long number : listSegments(dir)) {
+            try (RandomAccessFile f = new RandomAccessFile(segmentFile(number), "r")) {
+                MappedByteBuffer b = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+                b.order(ByteOrder.BIG_ENDIAN);
+                scanSegment(b, visitor, scratch());
+            }
+        }
+    }
+
+    /**
+     * @return scratch array large enough for any entry
+     */
+    private byte[] scratch() {
+        if (scratch.length < MAX_ENTRY)
+            scratch = new byte[MAX_ENTRY];
+        return scratch;
+    }
+
+    /**
+     * @return scratch array with room for the entry, payload starts at ENTRY_HEADER
+     */
+    private byte[] prepare(int payloadLength) throws IOException {
+        if (buffer == null)
+            throw new IOException("journal closed");
+        int size = ENTRY_HEADER + payloadLength;
+        if (size > MAX_ENTRY || RECORD_HEADER + size + RECORD_HEADER > segmentSize)
+            throw new IOException("record too large: " + size);
+        if (scratch.length < size)
+            scratch = Arrays.copyOf(scratch, Math.max(size, scratch.length * 2));
+        return scratch;
+    }
+
+    private void write(int type, long timeMillis, int payloadLength) throws IOException {
+        int size = ENTRY_HEADER + payloadLength;
+        scratch[0] = (byte) type;
+        putLong(scratch, 1, timeMillis);
+        // keep room for the zero length end marker
+        if (buffer.remaining() < RECORD_HEADER + size + RECORD_HEADER)
+            roll();
+        crc.reset();
+        crc.update(scratch, 0, size);
+        buffer.putInt(size);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(scratch, 0, size);
+        buffer.putInt(buffer.position(), 0); // end marker, position stays
+        appended++;
+    }
+
+    private void roll() throws IOException {
+        RandomAccessFile full = file;
+        MappedByteBuffer fullBuffer = buffer;
+        if (nextBuffer != null) {
+            segmentNumber++;
+            file = nextFile;
+            buffer = nextBuffer;
+            nextFile = null;
+            nextBuffer = null;
+        } else {
+            blockingRolls++;
+            openSegment(segmentNumber + 1);
+        }
+        long number = segmentNumber;
+        runInBackground(() -> retire(full, fullBuffer, number));
+    }
+
+    private void runInBackground(Runnable task) {
+        try {
+            background.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run(); // shutting down
+        }
+    }
+
+    /**
+     * background executor: release the full segment, delete the oldest, map the next one
+     */
+    private void retire(RandomAccessFile full, MappedByteBuffer fullBuffer, long current) {
+        fullBuffer.force();
+        closeQuietly(full);
+        for (long number : listSegments(dir))
+            if (number <= current - maxSegments)
+                //noinspection ResultOfMethodCallIgnored
+                segmentFile(number).delete();
+        mapNext(current + 1);
+    }
+
+    /**
+     * background executor
+     */
+    private void mapNext(long number) {
+        RandomAccessFile f = null;
+        MappedByteBuffer b;
+        try {
+            f = new RandomAccessFile(segmentFile(number), "rw");
+            b = map(f);
+        } catch (IOException e) {
+            closeQuietly(f);
+            return; // the roll maps it, and fails there
+        }
+        boolean closed;
+        synchronized (this) {
+            if (buffer != null && nextBuffer == null && segmentNumber + 1 == number) {
+                nextFile = f;
+                nextBuffer = b;
+                return;
+            }
+            closed = buffer == null;
+        }
+        closeQuietly(f); // closed, or the roll was faster and uses this file
+        if (closed)
+            //noinspection ResultOfMethodCallIgnored
+            segmentFile(number).delete();
+    }
+
+    private void openSegment(long number) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(segmentFile(number), "rw");
+        try {
+            buffer = map(f);
+        } catch (IOException e) {
+            closeQuietly(f);
+            throw e;
+        }
+        segmentNumber = number;
+        file = f;
+    }
+
+    private MappedByteBuffer map(RandomAccessFile f) throws IOException {
+        if (f.length() != segmentSize)
+            f.setLength(segmentSize);
+        MappedByteBuffer b = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        b.order(ByteOrder.BIG_ENDIAN);
+        return b;
+    }
+
+    private static void closeQuietly(RandomAccessFile f) {
+        if (f == null)
+            return;
+        try {
+            f.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private File segmentFile(long number) {
+        return new File(dir, PREFIX + String.format(Locale.US, "%016d", number) + SUFFIX);
+    }
+
+    private static long[] listSegments(File dir) {
+        String[] names = dir.list();
+        if (names == null)
+            return new long[0];
+        long[] numbers = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX))
+                continue;
+            try {
+                long number = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+                numbers[count++] = number;
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * @return position after the last valid record
+     */
+    private static int scanSegment(MappedByteBuffer b, Visitor visitor, byte[] scratch) {
+        CRC32 crc = new CRC32();
+        int pos = 0;
+        int limit = b.limit();
+        while (pos + RECORD_HEADER <= limit) {
+            int size = b.getInt(pos);
+            if (size < ENTRY_HEADER || size > scratch.length || pos + RECORD_HEADER + size > limit)
+                break; // end marker or torn length
+            int expected = b.getInt(pos + 4);
+            b.position(pos + RECORD_HEADER);
+            b.get(scratch, 0, size);
+            crc.reset();
+            crc.update(scratch, 0, size);
+            if ((int) crc.getValue() != expected)
+                break; // torn tail
+            if (visitor != null)
+                visitor.onRecord(scratch[0], getLong(scratch, 1), scratch, ENTRY_HEADER, size - ENTRY_HEADER);
+            pos += RECORD_HEADER + size;
+        }
+        return pos;
+    }
+
+    private static int putInt(byte[] b, int pos, int value) {
+        b[pos] = (byte) (value >>> 24);
+        b[pos + 1] = (byte) (value >>> 16);
+        b[pos + 2] = (byte) (value >>> 8);
+        b[pos + 3] = (byte) value;
+        return pos + 4;
+    }
+
+    private static void putLong(byte[] b, int pos, long value) {
+        putInt(b, pos, (int) (value >>> 32));
+        putInt(b, pos + 4, (int) value);
+    }
+
+    private static long getLong(byte[] b, int pos) {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (b[pos + i] & 0xff);
+        return value;
+    }
+
+    static float getFloat(byte[] b, int pos) {
+        return Float.intBitsToFloat((b[pos] & 0xff) << 24 | (b[pos + 1] & 0xff) << 16 | (b[pos + 2] & 0xff) << 8 | (b[pos + 3] & 0xff));
+    }
+}
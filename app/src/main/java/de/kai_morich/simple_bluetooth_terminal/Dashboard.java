@@ -0,0 +1,156 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import android.view.Choreographer;
+import android.view.View;
+import android.widget.TextView;
+
+/**
+ * live values of the newest sample, updated at most once per display frame
+ *
+ * each frame takes the newest sample from LatestSample, if there is one. values are
+ * compared at display precision and only changed TextViews are set, a steady value
+ * causes no text layout or redraw. of samples arriving between two frames only the
+ * newest one is shown.
+ */
+final class Dashboard implements Choreographer.FrameCallback {
+
+    private static final class Value {
+        final TextView view;
+        final int signal;
+        final int decimals;
+        final String unit;
+        final char[] text = new char[24];
+        long shown = Long.MIN_VALUE; // value * 10^decimals, MIN_VALUE for none
+        boolean valid = true;
+
+        Value(TextView view, int signal, int decimals, String unit) {
+            this.view = view;
+            this.signal = signal;
+            this.decimals = decimals;
+            this.unit = unit;
+        }
+
+        void update(BmsSample sample) {
+            boolean v = sample.isValid(signal);
+            long scaled = v ? Math.round(sample.values[signal] * POW10[decimals]) : Long.MIN_VALUE;
+            if (scaled == shown && v == valid)
+                return; // unchanged
+            shown = scaled;
+            valid = v;
+            int length = v ? format(scaled) : copy("--");
+            length = append(length, unit);
+            view.setText(text, 0, length);
+        }
+
+        private int format(long scaled) {
+            int pos = 0;
+            if (scaled < 0) {
+                text[pos++] = '-';
+                scaled = -scaled;
+            }
+            long integer = scaled / POW10[decimals];
+            long fraction = scaled % POW10[decimals];
+            int start = pos;
+            do {
+                text[pos++] = (char) ('0' + integer % 10);
+                integer /= 10;
+            } while (integer > 0);
+            for (int i = start, j = pos - 1; i < j; i++, j--) { // reverse digits
+                char c = text[i];
+                text[i] = text[j];
+                text[j] = c;
+            }
+            if (decimals > 0) {
+                text[pos++] = '.';
+                for (int d = decimals - 1; d >= 0; d--)
+                    text[pos++] = (char) ('0' + fraction / POW10[d] % 10);
+            }
+            return pos;
+        }
+
+        private int copy(String s) {
+            s.getChars(0, s.length(), text, 0);
+            return s.length();
+        }
+
+        private int append(int pos, String s) {
+            s.getChars(0, s.length(), text, pos);
+            return pos + s.length();
+        }
+    }
+
+    private static final long[] POW10 = {1, 10, 100, 1000};
+
+    private LatestSample latestSample;
+    private final Value[] values;
+    private final SparklineView powerLine;
+    private final SparklineView currentLine;
+    private boolean running;
+    private long frames;
+    private long updates;
+
+    Dashboard(View root) {
+        values = new Value[]{
+                new Value(root.findViewById(R.id.dashSoc), BmsSample.SOC_BMS, 1, " %"),
+                new Value(root.findViewById(R.id.dashPower), BmsSample.DC_BATTERY_POWER, 2, " kW"),
+                new Value(root.findViewById(R.id.dashCurrent), BmsSample.DC_BATTERY_CURRENT, 1, " A"),
+                new Value(root.findViewById(R.id.dashVoltage), BmsSample.DC_BATTERY_VOLTAGE, 1, " V"),
+                new Value(root.findViewById(R.id.dashAuxVoltage), BmsSample.AUX_BATTERY_VOLTAGE, 1, " V aux"),
+                new Value(root.findViewById(R.id.dashMinTemperature), BmsSample.BATTERY_MIN_TEMPERATURE, 0, " \u00b0C min"),
+                new Value(root.findViewById(R.id.dashMaxTemperature), BmsSample.BATTERY_MAX_TEMPERATURE, 0, " \u00b0C max"),
+                new Value(root.findViewById(R.id.dashInletTemperature), BmsSample.BATTERY_INLET_TEMPERATURE, 0, " \u00b0C inlet"),
+                new Value(root.findViewById(R.id.dashSoh), BmsSample.SOH, 1, " % SOH"),
+        };
+        powerLine = root.findViewById(R.id.dashPowerLine);
+        currentLine = root.findViewById(R.id.dashCurrentLine);
+    }
+
+    /**
+     * main thread, null while not bound to the service
+     */
+    void setLatestSample(LatestSample latestSample) {
+        this.latestSample = latestSample;
+    }
+
+    /**
+     * main thread, e.g. in onStart
+     */
+    void start() {
+        if (running)
+            return;
+        running = true;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * main thread, e.g. in onStop
+     */
+    void stop() {
+        running = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    /**
+     * @return frames with a new sample / frames checked
+     */
+    String getStatistics() {
+        return updates + " of " + frames + " frames updated";
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!running)
+            return;
+        frames++;
+        LatestSample latestSample = this.latestSample;
+        if (latestSample != null && latestSample.update()) {
+            updates++;
+            BmsSample sample = latestSample.get();
+            for (Value value : values)
+                value.update(sample);
+            powerLine.add((float) sample.get(BmsSample.DC_BATTERY_POWER));
+            currentLine.add((float) sample.get(BmsSample.DC_BATTERY_CURRENT));
+        }
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+}
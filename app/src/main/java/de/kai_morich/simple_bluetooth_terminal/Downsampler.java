@@ -0,0 +1,74 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+/**
+ * reduces a time series to the number of points a chart can show, keeping its shape
+ *
+ * Largest-Triangle-Three-Buckets (Steinarsson 2013): first and last point are kept, the
+ * points in between are split into equal buckets and from each bucket the point forming
+ * the largest triangle with the point chosen before and the mean of the next bucket is
+ * kept. peaks survive, unlike with averaging or taking every n-th point.
+ */
+final class Downsampler {
+
+    private Downsampler() {
+    }
+
+    /**
+     * input may be the same arrays as output
+     *
+     * @param size      points in times, values, ascending times
+     * @param threshold points to keep, all points are copied if size <= threshold or threshold < 3
+     * @return number of points written
+     */
+    static int lttb(long[] times, float[] values, int size, int threshold, long[] outTimes, float[] outValues) {
+        if (size <= threshold || threshold < 3) {
+            int n = Math.min(size, Math.min(outTimes.length, outValues.length));
+            System.arraycopy(times, 0, outTimes, 0, n);
+            System.arraycopy(values, 0, outValues, 0, n);
+            return n;
+        }
+        double every = (double) (size - 2) / (threshold - 2);
+        int a = 0; // point chosen in the previous bucket
+        long aTime = times[0];
+        float aValue = values[0];
+        outTimes[0] = aTime;
+        outValues[0] = aValue;
+        int written = 1;
+        for (int i = 0; i < threshold - 2; i++) {
+            // mean of the next bucket, the last point for the last bucket
+            int nextStart = (int) ((i + 1) * every) + 1;
+            int nextEnd = Math.min((int) ((i + 2) * every) + 1, size);
+            double meanTime = 0, meanValue = 0;
+            for (int j = nextStart; j < nextEnd; j++) {
+                meanTime += times[j] - aTime;
+                meanValue += values[j];
+            }
+            int nextCount = nextEnd - nextStart;
+            meanTime /= nextCount;
+            meanValue /= nextCount;
+
+            int start = (int) (i * every) + 1;
+            int end = (int) ((i + 1) * every) + 1;
+            double maxArea = -1;
+            int chosen = start;
+            for (int j = start; j < end; j++) {
+                // twice the triangle area, times relative to point a for precision
+                double area = Math.abs((aValue - meanValue) * (times[j] - aTime)
+                        - meanTime * (aValue - values[j]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    chosen = j;
+                }
+            }
+            a = chosen;
+            aTime = times[a];
+            aValue = values[a];
+            outTimes[written] = aTime;
+            outValues[written] = aValue;
+            written++;
+        }
+        outTimes[written] = times[size - 1];
+        outValues[written] = values[size - 1];
+        return written + 1;
+    }
+}
@@ -0,0 +1,30 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+/**
+ * control unit on the CAN bus, addressed with ATSH and filtered with ATCRA
+ *
+ * 11 bit ids of the Hyundai Kona / Kia Niro EV, replies come from request id + 8.
+ * see https://github.com/JejuSoul/OBD-PIDs-for-HKMC-EVs
+ */
+final class Ecu {
+
+    static final Ecu BMS = new Ecu("BMS", "7E4", "7EC");
+    static final Ecu VCU = new Ecu("VCU", "7E2", "7EA");
+    static final Ecu CLUSTER = new Ecu("Cluster", "7C6", "7CE");
+    static final Ecu OBC = new Ecu("OBC", "7E5", "7ED");
+
+    final String name;
+    final String requestHeader;  // ATSH
+    final String responseHeader; // ATCRA
+
+    Ecu(String name, String requestHeader, String responseHeader) {
+        this.name = name;
+        this.requestHeader = requestHeader;
+        this.responseHeader = responseHeader;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,399 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * in-process ELM327 adapter for running the protocol engine without phone and dongle
+ *
+ * answers AT commands like the adapter (echo, ATZ, ATRV, ATDPN, else OK) and other
+ * requests from a script of recorded replies, unknown requests with NO DATA.
+ * replies can be scripted per request header (ATSH), to simulate several ECUs.
+ * replies are sent from an own thread like SerialSocket, with configurable latency,
+ * chunking and error injection. errors use a seeded Random, so runs are repeatable.
+ * with setEcuTiming() replies are sent frame by frame and the prompt follows after the
+ * ATST timeout, replies slower than the timeout become NO DATA. ATAT is not modelled.
+ * a request ending with the expected frame count, e.g. "220101 9", ends after that many
+ * frames without the timeout, or is answered with '?' if setFrameCountSupported(false).
+ * any character received while a command is processed stops it with STOPPED, spaces in
+ * commands are ignored.
+ */
+final class Elm327Simulator implements SerialTransport {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String[] INJECTED_ERRORS = {"NO DATA", "CAN ERROR"};
+
+    private final String name;
+    private final Map<String, String> script = new HashMap<>();
+    private volatile LinkedBlockingQueue<String> commands;
+    private final StringBuilder commandBuffer = new StringBuilder(); // also guards busy and stopped
+    private boolean busy;    // from the CR of a command to the prompt
+    private boolean stopped; // a character was received while busy
+    private Random random;
+
+    private long connectMillis;
+    private long latencyMillis;
+    private int chunkSize;          // 0 = whole reply in one chunk
+    private long chunkDelayMillis;
+    private double errorRate;
+    private int disconnectAfter = -1; // commands until an io error, -1 = never
+    private long firstFrameMillis;    // 0 = reply and prompt at once
+    private long frameGapMillis;
+    private boolean frameCountSupported = true;
+
+    private volatile SerialListener listener;
+    private volatile Thread thread;
+    private boolean echo = true;
+    private String protocol = "0";
+    private String header;           // set with ATSH, null after reset
+    private int timeout = 0x32;      // ATST, 4.096 ms units
+    private volatile int commandCount;
+    private volatile int headerCommandCount;
+
+    Elm327Simulator(String name, long seed) {
+        this.name = name;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @param reply reply lines without echo and prompt, separated by CR or LF
+     */
+    Elm327Simulator setResponse(String command, String reply) {
+        script.put(normalize(command), reply.replace("\r\n", "\r").replace('\n', '\r').trim());
+        return this;
+    }
+
+    /**
+     * reply only sent while the request header is set to header, e.g. "7E4"
+     */
+    Elm327Simulator setResponse(String header, String command, String reply) {
+        return setResponse(normalize(header) + ':' + command, reply);
+    }
+
+    Elm327Simulator setLatency(long connectMillis, long latencyMillis) {
+        this.connectMillis = connectMillis;
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    Elm327Simulator setChunking(int chunkSize, long chunkDelayMillis) {
+        this.chunkSize = chunkSize;
+        this.chunkDelayMillis = chunkDelayMillis;
+        return this;
+    }
+
+    /**
+     * @param errorRate share of non AT requests answered with NO DATA or CAN ERROR
+     */
+    Elm327Simulator setErrorRate(double errorRate, long seed) {
+        this.errorRate = errorRate;
+        this.random = new Random(seed);
+        return this;
+    }
+
+    /**
+     * @param firstFrameMillis ECU response time, on top of the latency
+     * @param frameGapMillis   between the frames of a reply
+     */
+    Elm327Simulator setEcuTiming(long firstFrameMillis, long frameGapMillis) {
+        this.firstFrameMillis = firstFrameMillis;
+        this.frameGapMillis = frameGapMillis;
+        return this;
+    }
+
+    /**
+     * false for firmware before v1.3, replies '?' to requests with a frame count
+     */
+    Elm327Simulator setFrameCountSupported(boolean supported) {
+        this.frameCountSupported = supported;
+        return this;
+    }
+
+    Elm327Simulator setDisconnectAfter(int commands) {
+        this.disconnectAfter = commands;
+        return this;
+    }
+
+    int getCommandCount() {
+        return commandCount;
+    }
+
+    /**
+     * @return ATSH and ATCRA commands received
+     */
+    int getHeaderCommandCount() {
+        return headerCommandCount;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public synchronized void connect(SerialListener listener) throws IOException {
+        if (thread != null)
+            throw new IOException("already connected");
+        this.listener = listener;
+        commands = new LinkedBlockingQueue<>(); // per connection, as the previous thread may still be running
+        synchronized (commandBuffer) {
+            commandBuffer.setLength(0);
+            busy = false;
+            stopped = false;
+        }
+        LinkedBlockingQueue<String> queue = commands;
+        thread = new Thread(() -> run(listener, queue), "elm327-simulator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public synchronized void disconnect() {
+        listener = null; // ignore remaining data and errors
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    @Override
+    public void write(byte[] data) throws IOException {
+        if (listener == null)
+            throw new IOException("not connected");
+        synchronized (commandBuffer) {
+            for (byte b : data) {
+                if (busy) {
+                    stopped = true; // any character, not part of the next command
+                    commandBuffer.notifyAll();
+                } else if (b == '\r') {
+                    commands.offer(commandBuffer.toString());
+                    commandBuffer.setLength(0);
+                    busy = true;
+                } else {
+                    commandBuffer.append((char) b);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param l listener of this connection, data of a previous connection is dropped
+     */
+    private void run(SerialListener l, LinkedBlockingQueue<String> commands) {
+        byte[] chunk = new byte[1024]; // reused like the read buffer in SerialSocket
+        try {
+            sleep(connectMillis);
+            if (isStale(l))
+                return;
+            l.onSerialConnect();
+            while (true) {
+                String command = commands.take();
+                commandCount++;
+                if (disconnectAfter >= 0 && commandCount > disconnectAfter) {
+                    if (!isStale(l))
+                        l.onSerialIoError(new IOException("simulated connection loss"));
+                    return;
+                }
+                if (!pause(latencyMillis)) {
+                    chunk = prompt(l, "STOPPED\r\r>", chunk);
+                    continue;
+                }
+                int frames = frameCount(command);
+                String reply;
+                if (frames > 0 && !frameCountSupported)
+                    reply = "?";
+                else
+                    reply = reply(frames > 0 ? command.trim().substring(0, command.trim().length() - 2) : command);
+                if (firstFrameMillis > 0 && !normalize(command).startsWith("AT")) {
+                    chunk = sendFrames(l, command, reply, frames, chunk);
+                } else {
+                    if (frames > 0)
+                        reply = firstFrames(reply, frames);
+                    chunk = prompt(l, (echo ? command + "\r" : "") + reply + "\r\r>", chunk);
+                }
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * @return chunk buffer, grown if too small
+     */
+    private byte[] send(SerialListener l, String text, byte[] chunk) throws InterruptedException {
+        byte[] bytes = text.getBytes(ASCII);
+        int size = chunkSize > 0 ? chunkSize : bytes.length;
+        if (chunk.length < size)
+            chunk = new byte[size];
+        for (int pos = 0; pos < bytes.length; pos += size) {
+            if (pos > 0)
+                sleep(chunkDelayMillis);
+            if (isStale(l))
+                break;
+            int length = Math.min(size, bytes.length - pos);
+            System.arraycopy(bytes, pos, chunk, 0, length);
+            l.onSerialRead(chunk, length);
+        }
+        return chunk;
+    }
+
+    /**
+     * wait while a command is processed
+     *
+     * @return false if a received character stopped the command
+     */
+    private boolean pause(long millis) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        synchronized (commandBuffer) {
+            while (!stopped) {
+                long left = end - System.nanoTime();
+                if (left <= 0)
+                    return true;
+                TimeUnit.NANOSECONDS.timedWait(commandBuffer, left);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * last part of a reply, the adapter is idle before the prompt is sent, as the next
+     * command may be written from onSerialRead
+     */
+    private byte[] prompt(SerialListener l, String text, byte[] chunk) throws InterruptedException {
+        synchronized (commandBuffer) {
+            busy = false;
+            stopped = false;
+        }
+        return send(l, text, chunk);
+    }
+
+    /**
+     * @return expected frames appended to a request, e.g. 9 for "220101 9", 0 if none
+     */
+    private static int frameCount(String command) {
+        String c = command.trim();
+        int n = c.length();
+        if (n < 3 || c.charAt(n - 2) != ' ' || normalize(c).startsWith("AT"))
+            return 0;
+        return Math.max(Character.digit(c.charAt(n - 1), 16), 0);
+    }
+
+    private static String firstFrames(String reply, int frames) {
+        int end = -1;
+        for (int i = 0; i < frames; i++) {
+            end = reply.indexOf('\r', end + 1);
+            if (end < 0)
+                return reply;
+        }
+        return reply.substring(0, end);
+    }
+
+    /**
+     * frames as they arrive from the ECU, prompt after the ATST timeout following the last,
+     * or right after the expected frame count
+     */
+    private byte[] sendFrames(SerialListener l, String command, String reply, int expected, byte[] chunk) throws InterruptedException {
+        long timeoutMillis = timeout * 4096L / 1000;
+        if (echo)
+            chunk = send(l, command + "\r", chunk);
+        if (reply.equals("?"))
+            return prompt(l, "?\r\r>", chunk); // rejected before anything is sent to the ECU
+        if (firstFrameMillis > timeoutMillis || reply.startsWith("NO DATA") || reply.startsWith("CAN ERROR")) {
+            if (!pause(timeoutMillis))
+                return prompt(l, "STOPPED\r\r>", chunk);
+            return prompt(l, (firstFrameMillis > timeoutMillis ? "NO DATA" : reply) + "\r\r>", chunk);
+        }
+        if (!pause(firstFrameMillis))
+            return prompt(l, "STOPPED\r\r>", chunk);
+        String[] frames = reply.split("\r");
+        for (int i = 0; i < frames.length; i++) {
+            if (i > 0 && !pause(frameGapMillis))
+                return prompt(l, "STOPPED\r\r>", chunk);
+            chunk = send(l, frames[i] + "\r", chunk);
+            if (i + 1 == expected)
+                return prompt(l, "\r>", chunk); // later frames are not waited for
+        }
+        if (!pause(timeoutMillis))
+            return prompt(l, "STOPPED\r\r>", chunk);
+        return prompt(l, "\r>", chunk);
+    }
+
+    private boolean isStale(SerialListener l) {
+        return listener != l || thread != Thread.currentThread();
+    }
+
+    private String reply(String command) {
+        String cmd = normalize(command);
+        String scripted = header != null ? script.get(header + ':' + cmd) : null;
+        if (scripted == null)
+            scripted = script.get(cmd);
+        if (!cmd.startsWith("AT")) {
+            if (errorRate > 0 && random.nextDouble() < errorRate)
+                return INJECTED_ERRORS[random.nextInt(INJECTED_ERRORS.length)];
+            return scripted != null ? scripted : "NO DATA";
+        }
+        if (scripted != null)
+            return scripted;
+        switch (cmd) {
+            case "ATZ":
+            case "ATWS":
+                echo = true;
+                protocol = "0";
+                header = null;
+                timeout = 0x32;
+                return "\rELM327 v1.5";
+            case "ATD":
+                echo = true;
+                protocol = "0";
+                header = null;
+                timeout = 0x32;
+                return "OK";
+            case "ATI":
+                return "ELM327 v1.5";
+            case "ATE0":
+                echo = false;
+                return "OK";
+            case "ATE1":
+                echo = true;
+                return "OK";
+            case "ATRV":
+                return "12.6V";
+            case "ATDPN":
+                return protocol;
+            default:
+                if (cmd.startsWith("ATSP")) {
+                    protocol = cmd.substring(4);
+                    return "OK";
+                }
+                if (cmd.startsWith("ATSH")) {
+                    header = cmd.substring(4);
+                    headerCommandCount++;
+                    return "OK";
+                }
+                if (cmd.startsWith("ATCRA"))
+                    headerCommandCount++;
+                if (cmd.startsWith("ATST")) {
+                    try {
+                        timeout = Integer.parseInt(cmd.substring(4), 16);
+                    } catch (NumberFormatException e) {
+                        return "?";
+                    }
+                }
+                return "OK";
+        }
+    }
+
+    private static String normalize(String command) {
+        return command.replace(" ", "").trim().toUpperCase(Locale.US);
+    }
+
+    private static void sleep(long millis) throws InterruptedException {
+        if (millis > 0)
+            TimeUnit.MILLISECONDS.sleep(millis);
+    }
+}
@@ -0,0 +1,610 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * compact columnar file of decoded samples, appended in blocks
+ *
+ * rows are collected in memory and written as one block when BLOCK_ROWS rows or BLOCK_MILLIS
+ * are reached, or on flush(). within a block each column is stored on its own, prefixed with
+ * its length, so reading one column skips the others:
+ * times as zig-zag varint delta-of-delta, 1 byte per row at a steady poll rate. values with a
+ * fixed number of decimals, as decoded from the BMS, as zig-zag varint deltas of the scaled
+ * integer, so slow values like SOC, SOH and energy counters take 1 byte. other values as floats.
+ *
+ * file: int MAGIC, int VERSION, int columns, column names (UTF), blocks.
+ * block: int payload length, payload, footer: long min time, long max time, int rows,
+ * float min and max per column, int crc32 of payload and footer.
+ * on open only the footers are read into the block index, queries skip blocks outside the
+ * time range without reading them. a torn last block is cut off.
+ * queries copy the index entries in range and the pending rows under the lock, then read the
+ * written blocks with their own file handle, so the writer is not blocked by a long export.
+ * rows not written yet are lost when the process dies, the CaptureJournal still has them.
+ */
+final class HistoryFile {
+
+    interface Visitor {
+        /**
+         * row is only valid during the call, columns not requested are NaN
+         */
+        void onRow(long timeMillis, float[] row);
+    }
+
+    static final int BLOCK_ROWS = 4096;
+    static final long BLOCK_MILLIS = 10 * 60 * 1000;
+
+    private static final int MAGIC = 0x48495354; // "HIST"
+    private static final int VERSION = 1;
+    private static final int NO_VALUES = 0;
+    private static final int DELTA = 1;   // decimals in the upper 4 bits
+    private static final int FLOATS = 2;
+    private static final int HAS_NAN = 4; // DELTA with presence bitmap
+    private static final int MAX_DECIMALS = 6;
+    private static final double[] POW10 = {1, 10, 100, 1e3, 1e4, 1e5, 1e6};
+
+    /**
+     * growable byte array with the primitive encodings of the format
+     */
+    private static final class Buffer {
+        byte[] data = new byte[4096];
+        int size;
+        int pos; // read position
+
+        void ensure(int bytes) {
+            if (size + bytes > data.length)
+                data = Arrays.copyOf(data, Math.max(size + bytes, data.length * 2));
+        }
+
+        void write(int b) {
+            ensure(1);
+            data[size++] = (byte) b;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            data[size++] = (byte) (v >>> 24);
+            data[size++] = (byte) (v >>> 16);
+            data[size++] = (byte) (v >>> 8);
+            data[size++] = (byte) v;
+        }
+
+        void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7fL) != 0) {
+                data[size++] = (byte) (v & 0x7f | 0x80);
+                v >>>= 7;
+            }
+            data[size++] = (byte) v;
+        }
+
+        void writeZigZag(long v) {
+            writeVarLong(v << 1 ^ v >> 63);
+        }
+
+        void write(Buffer other) {
+            ensure(other.size);
+            System.arraycopy(other.data, 0, data, size, other.size);
+            size += other.size;
+        }
+
+        int readByte() {
+            return data[pos++] & 0xff;
+        }
+
+        int readInt() {
+            return readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte();
+        }
+
+        long readLong() {
+            return (long) readInt() << 32 | readInt() & 0xffffffffL;
+        }
+
+        long readVarLong() {
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = data[pos++];
+                v |= (long) (b & 0x7f) << shift;
+                if (b >= 0)
+                    return v;
+            }
+        }
+
+        long readZigZag() {
+            long v = readVarLong();
+            return v >>> 1 ^ -(v & 1);
+        }
+    }
+
+    /**
+     * state of one read() outside the lock, the last one is kept for the next read()
+     */
+    private final class Reader {
+        final Buffer block = new Buffer();
+        final CRC32 crc = new CRC32();
+        final long[] times = new long[BLOCK_ROWS];
+        final float[][] values = new float[columns.length][BLOCK_ROWS];
+        final float[] row = new float[columns.length];
+        // index entries and pending rows in range, copied under the lock
+        int blocks;
+        long[] offsets = new long[64];
+        int[] rowCounts = new int[64];
+        final long[] pendingTimes = new long[BLOCK_ROWS];
+        final float[][] pendingValues = new float[columns.length][BLOCK_ROWS];
+        int pending;
+        RandomAccessFile file;
+
+        void addBlock(long offset, int count) {
+            if (blocks == offsets.length) {
+                offsets = Arrays.copyOf(offsets, blocks * 2);
+                rowCounts = Arrays.copyOf(rowCounts, blocks * 2);
+            }
+            offsets[blocks] = offset;
+            rowCounts[blocks] = count;
+            blocks++;
+        }
+
+        /**
+         * @return rows in block, into values[column][row] for the selected columns
+         */
+        int readBlock(int index, boolean[] selected) throws IOException {
+            long offset = offsets[index];
+            file.seek(offset);
+            int payload = file.readInt();
+            block.size = 0;
+            block.ensure(payload + footerSize);
+            file.readFully(block.data, 0, payload + footerSize);
+            crc.reset();
+            crc.update(block.data, 0, payload + footerSize - 4);
+            block.pos = payload + footerSize - 4;
+            if (block.readInt() != (int) crc.getValue())
+                throw new IOException(path.getName() + ": crc error in block at " + offset);
+            int count = rowCounts[index];
+            block.pos = 0;
+            long time = block.readLong();
+            long delta = 0;
+            times[0] = time;
+            for (int i = 1; i < count; i++) {
+                delta += block.readZigZag();
+                time += delta;
+                times[i] = time;
+            }
+            for (int c = 0; c < columns.length; c++) {
+                int length = (int) block.readVarLong();
+                int end = block.pos + length;
+                if (selected == null || selected[c])
+                    decodeColumn(block, count, values[c]);
+                else
+                    Arrays.fill(values[c], 0, count, Float.NaN);
+                block.pos = end;
+            }
+            return count;
+        }
+
+        int visit(long fromMillis, long toMillis, long[] times, float[][] values, int count, Visitor visitor) {
+            int visited = 0;
+            for (int i = 0; i < count; i++) {
+                if (times[i] < fromMillis || times[i] >= toMillis)
+                    continue;
+                for (int c = 0; c < columns.length; c++)
+                    row[c] = values[c][i];
+                visitor.onRow(times[i], row);
+                visited++;
+            }
+            return visited;
+        }
+    }
+
+    private final File path;
+    private final String[] columns;
+    private final int footerSize;
+    private final CRC32 crc = new CRC32();
+    private RandomAccessFile file;
+    private Reader idleReader;
+
+    // block index, from the footers
+    private int blocks;
+    private long[] offsets = new long[64];
+    private long[] minTimes = new long[64];
+    private long[] maxTimes = new long[64];
+    private int[] rowCounts = new int[64];
+    private float[] minValues; // [block * columns + column]
+    private float[] maxValues;
+    private long rows;
+
+    // block being collected
+    private final long[] pendingTimes = new long[BLOCK_ROWS];
+    private final float[][] pendingValues;
+    private int pending;
+
+    // scratch of the writer
+    private final Buffer block = new Buffer();
+    private final Buffer column = new Buffer();
+    private final Buffer footerReader = new Buffer();
+
+    /**
+     * open or create, the columns must match those of an existing file
+     */
+    HistoryFile(File path, String... columns) throws IOException {
+        this.path = path;
+        this.columns = columns.clone();
+        footerSize = 8 + 8 + 4 + columns.length * 8 + 4;
+        pendingValues = new float[columns.length][BLOCK_ROWS];
+        minValues = new float[64 * columns.length];
+        maxValues = new float[64 * columns.length];
+        file = new RandomAccessFile(path, "rw");
+        if (file.length() == 0)
+            writeHeader();
+        else
+            readIndex();
+    }
+
+    private void writeHeader() throws IOException {
+        file.writeInt(MAGIC);
+        file.writeInt(VERSION);
+        file.writeInt(columns.length);
+        for (String name : columns)
+            file.writeUTF(name);
+    }
+
+    private void readIndex() throws IOException {
+        if (file.readInt() != MAGIC || file.readInt() != VERSION)
+            throw new IOException(path.getName() + ": no history file");
+        int count = file.readInt();
+        if (count != columns.length)
+            throw new IOException(path.getName() + ": " + count + " columns instead of " + columns.length);
+        for (String name : columns)
+            if (!name.equals(file.readUTF()))
+                throw new IOException(path.getName() + ": columns changed");
+        long pos = file.getFilePointer();
+        long length = file.length();
+        byte[] footer = new byte[footerSize];
+        while (pos + 4 + footerSize <= length) {
+            file.seek(pos);
+            int payload = file.readInt();
+            long end = pos + 4 + payload + footerSize;
+            if (payload < 0 || end > length)
+                break; // torn
+            if (end + 4 + footerSize > length && !isIntact(pos, payload)) // only the last block can be torn
+                break;
+            file.seek(pos + 4 + payload);
+            file.readFully(footer);
+            addToIndex(pos, footer, 0);
+            pos = end;
+        }
+        if (pos < length)
+            file.setLength(pos);
+        file.seek(pos);
+    }
+
+    private boolean isIntact(long pos, int payload) throws IOException {
+        block.size = 0;
+        block.ensure(payload + footerSize);
+        file.seek(pos + 4);
+        file.readFully(block.data, 0, payload + footerSize);
+        crc.reset();
+        crc.update(block.data, 0, payload + footerSize - 4);
+        block.size = payload + footerSize;
+        block.pos = payload + footerSize - 4;
+        return block.readInt() == (int) crc.getValue();
+    }
+
+    private void addToIndex(long offset, byte[] footer, int start) {
+        if (blocks == offsets.length) {
+            int capacity = blocks * 2;
+            offsets = Arrays.copyOf(offsets, capacity);
+            minTimes = Arrays.copyOf(minTimes, capacity);
+            maxTimes = Arrays.copyOf(maxTimes, capacity);
+            rowCounts = Arrays.copyOf(rowCounts, capacity);
+            minValues = Arrays.copyOf(minValues, capacity * columns.length);
+            maxValues = Arrays.copyOf(maxValues, capacity * columns.length);
+        }
+        Buffer b = footerReader;
+        b.data = footer;
+        b.pos = start;
+        offsets[blocks] = offset;
+        minTimes[blocks] = b.readLong();
+        maxTimes[blocks] = b.readLong();
+        rowCounts[blocks] = b.readInt();
+        for (int c = 0; c < columns.length; c++) {
+            minValues[blocks * columns.length + c] = Float.intBitsToFloat(b.readInt());
+            maxValues[blocks * columns.length + c] = Float.intBitsToFloat(b.readInt());
+        }
+        rows += rowCounts[blocks];
+        blocks++;
+    }
+
+    /**
+     * single writer, timestamps non decreasing
+     *
+     * @param row one value per column, NaN for missing values
+     */
+    synchronized void append(long timeMillis, float[] row) throws IOException {
+        if (pending > 0 && (pending == BLOCK_ROWS || timeMillis - pendingTimes[0] >= BLOCK_MILLIS))
+            flush();
+        pendingTimes[pending] = timeMillis;
+        for (int c = 0; c < columns.length; c++)
+            pendingValues[c][pending] = row[c];
+        pending++;
+    }
+
+    /**
+     * write the collected rows as a block
+     */
+    synchronized void flush() throws IOException {
+        if (pending == 0)
+            return;
+        block.size = 0;
+        long prevDelta = 0;
+        block.writeLong(pendingTimes[0]);
+        for (int i = 1; i < pending; i++) {
+            long delta = pendingTimes[i] - pendingTimes[i - 1];
+            block.writeZigZag(delta - prevDelta);
+            prevDelta = delta;
+        }
+        for (int c = 0; c < columns.length; c++) {
+            column.size = 0;
+            encodeColumn(pendingValues[c], pending, column);
+            block.writeVarLong(column.size);
+            block.write(column);
+        }
+        int payload = block.size;
+        block.writeLong(pendingTimes[0]);
+        block.writeLong(pendingTimes[pending - 1]);
+        block.writeInt(pending);
+        for (int c = 0; c < columns.length; c++) {
+            float min = Float.NaN, max = Float.NaN;
+            float[] v = pendingValues[c];
+            for (int i = 0; i < pending; i++) {
+                if (v[i] != v[i])
+                    continue;
+                if (min != min || v[i] < min) min = v[i];
+                if (max != max || v[i] > max) max = v[i];
+            }
+            block.writeInt(Float.floatToRawIntBits(min));
+            block.writeInt(Float.floatToRawIntBits(max));
+        }
+        crc.reset();
+        crc.update(block.data, 0, block.size);
+        block.writeInt((int) crc.getValue());
+        long offset = file.length();
+        file.seek(offset);
+        file.writeInt(payload);
+        file.write(block.data, 0, block.size);
+        addToIndex(offset, block.data, payload);
+        pending = 0;
+    }
+
+    private static void encodeColumn(float[] v, int count, Buffer out) {
+        int present = 0;
+        for (int i = 0; i < count; i++)
+            if (v[i] == v[i])
+                present++;
+        if (present == 0) {
+            out.write(NO_VALUES);
+            return;
+        }
+        int decimals = decimals(v, count);
+        if (decimals < 0) {
+            out.write(FLOATS);
+            for (int i = 0; i < count; i++)
+                out.writeInt(Float.floatToRawIntBits(v[i]));
+            return;
+        }
+        out.write(DELTA | (present < count ? HAS_NAN : 0) | decimals << 4);
+        if (present < count) {
+            for (int i = 0; i < count; i += 8) {
+                int bits = 0;
+                for (int j = i; j < Math.min(i + 8, count); j++)
+                    if (v[j] == v[j])
+                        bits |= 1 << (j - i);
+                out.write(bits);
+            }
+        }
+        double scale = POW10[decimals];
+        long prev = 0;
+        for (int i = 0; i < count; i++) {
+            if (v[i] != v[i])
+                continue;
+            long q = Math.round(v[i] * scale);
+            out.writeZigZag(q - prev);
+            prev = q;
+        }
+    }
+
+    /**
+     * @return fewest decimals that restore all values exactly, -1 if none
+     */
+    private static int decimals(float[] v, int count) {
+        next:
+        for (int d = 0; d <= MAX_DECIMALS; d++) {
+            double scale = POW10[d];
+            for (int i = 0; i < count; i++) {
+                if (v[i] != v[i])
+                    continue;
+                double scaled = v[i] * scale;
+                if (Math.abs(scaled) > 1e15)
+                    return -1;
+                if ((float) (Math.round(scaled) / scale) != v[i])
+                    continue next;
+            }
+            return d;
+        }
+        return -1;
+    }
+
+    private static void decodeColumn(Buffer in, int count, float[] out) {
+        int encoding = in.readByte();
+        int type = encoding & 3;
+        if (type == NO_VALUES) {
+            Arrays.fill(out, 0, count, Float.NaN);
+        } else if (type == FLOATS) {
+            for (int i = 0; i < count; i++)
+                out[i] = Float.intBitsToFloat(in.readInt());
+        } else {
+            double scale = POW10[encoding >>> 4];
+            int bitmap = in.pos;
+            if ((encoding & HAS_NAN) != 0)
+                in.pos += (count + 7) / 8;
+            long q = 0;
+            for (int i = 0; i < count; i++) {
+                if ((encoding & HAS_NAN) != 0 && (in.data[bitmap + i / 8] & 1 << (i % 8)) == 0) {
+                    out[i] = Float.NaN;
+                    continue;
+                }
+                q += in.readZigZag();
+                out[i] = (float) (q / scale);
+            }
+        }
+    }
+
+    /**
+     * rows with fromMillis <= time < toMillis, oldest first, incl. rows not written yet.
+     * blocks outside the range are not read. any thread, the visitor is called without
+     * the lock, rows appended during the call are not visited
+     *
+     * @param selected columns to decode, null for all
+     * @return number of rows visited
+     */
+    long read(long fromMillis, long toMillis, boolean[] selected, Visitor visitor) throws IOException {
+        Reader reader;
+        synchronized (this) {
+            if (file == null)
+                throw new IOException(path.getName() + ": closed");
+            reader = idleReader != null ? idleReader : new Reader();
+            idleReader = null;
+            reader.blocks = 0;
+            for (int b = 0; b < blocks; b++)
+                if (maxTimes[b] >= fromMillis && minTimes[b] < toMillis)
+                    reader.addBlock(offsets[b], rowCounts[b]);
+            reader.pending = pending;
+            System.arraycopy(pendingTimes, 0, reader.pendingTimes, 0, pending);
+            for (int c = 0; c < columns.length; c++) {
+                if (selected == null || selected[c])
+                    System.arraycopy(pendingValues[c], 0, reader.pendingValues[c], 0, pending);
+                else
+                    Arrays.fill(reader.pendingValues[c], 0, pending, Float.NaN);
+            }
+        }
+        long visited = 0;
+        try {
+            if (reader.blocks > 0) {
+                reader.file = new RandomAccessFile(path, "r"); // blocks in the index are complete
+                for (int b = 0; b < reader.blocks; b++) {
+                    int count = reader.readBlock(b, selected);
+                    visited += reader.visit(fromMillis, toMillis, reader.times, reader.values, count, visitor);
+                }
+            }
+            visited += reader.visit(fromMillis, toMillis, reader.pendingTimes, reader.pendingValues, reader.pending, visitor);
+        } finally {
+            if (reader.file != null) {
+                reader.file.close();
+                reader.file = null;
+            }
+            synchronized (this) {
+                idleReader = reader;
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * @return true if a block in the range may have values of the column within min..max,
+     * from the footers only
+     */
+    synchronized boolean mayContain(int column, float min, float max, long fromMillis, long toMillis) {
+        for (int b = 0; b < blocks; b++) {
+            if (maxTimes[b] < fromMillis || minTimes[b] >= toMillis)
+                continue;
+            float blockMin = minValues[b * columns.length + column];
+            float blockMax = maxValues[b * columns.length + column];
+            if (blockMin <= max && blockMax >= min)
+                return true;
+        }
+        for (int i = 0; i < pending; i++) {
+            float value = pendingValues[column][i];
+            if (pendingTimes[i] >= fromMillis && pendingTimes[i] < toMillis && value >= min && value <= max)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * csv with a header line, empty fields for missing values, any thread like read()
+     *
+     * @return rows written
+     */
+    long exportCsv(long fromMillis, long toMillis, Writer writer) throws IOException {
+        StringBuilder sb = new StringBuilder(512);
+        char[] chars = new char[512];
+        sb.append("time");
+        for (String name : columns)
+            sb.append(',').append(name);
+        writer.write(sb.append('\n').toString());
+        IOException[] error = new IOException[1];
+        long count = read(fromMillis, toMillis, null, (time, values) -> {
+            if (error[0] != null)
+                return;
+            sb.setLength(0);
+            sb.append(time);
+            for (float value : values) {
+                sb.append(',');
+                if (value == value)
+                    sb.append(value);
+            }
+            sb.append('\n');
+            try {
+                sb.getChars(0, sb.length(), chars, 0);
+                writer.write(chars, 0, sb.length());
+            } catch (IOException e) {
+                error[0] = e;
+            }
+        });
+        if (error[0] != null)
+            throw error[0];
+        return count;
+    }
+
+    synchronized long getRowCount() {
+        return rows + pending;
+    }
+
+    synchronized int getBlockCount() {
+        return blocks;
+    }
+
+    synchronized long getSize() throws IOException {
+        return file.length();
+    }
+
+    synchronized StringBuilder appendStatistics(StringBuilder sb) throws IOException {
+        long size = file.length();
+        return sb.append("history: ").append(rows).append(" rows in ").append(blocks).append(" blocks, ")
+                .append(size / 1024).append(" kB, ")
+                .append(rows > 0 ? Math.round(size * 10.0 / rows) / 10.0 : 0).append(" bytes/row, ")
+                .append(pending).append(" rows pending");
+    }
+
+    /**
+     * flush and close, further calls fail
+     */
+    synchronized void close() throws IOException {
+        if (file == null)
+            return;
+        try {
+            flush();
+        } finally {
+            file.close();
+            file = null;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.Arrays;
+
+/**
+ * log-linear histogram of durations in nanoseconds
+ *
+ * each power of two is split into SUB_BUCKETS linear buckets, so a percentile is off by
+ * less than 1/SUB_BUCKETS (12.5%) from the recorded value. covers 1 us .. 2^42 ns (73 min),
+ * larger values are counted in the last bucket. record() does not allocate.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MIN_BITS = 10;  // 1024 ns, values below share the first buckets
+    private static final int MAX_BITS = 42;
+    private static final int BUCKETS = (MAX_BITS - MIN_BITS + 2) * SUB_BUCKETS; // + values below 1 us
+
+    final String name;
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    static int bucketIndex(long nanos) {
+        if (nanos < 1L << MIN_BITS)
+            return (int) (Math.max(nanos, 0) >>> (MIN_BITS - SUB_BUCKET_BITS));
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos); // >= MIN_BITS
+        if (exponent > MAX_BITS)
+            return BUCKETS - 1;
+        int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - MIN_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return largest value counted in the bucket
+     */
+    static long bucketUpperBound(int index) {
+        int group = index / SUB_BUCKETS;
+        int sub = index % SUB_BUCKETS;
+        if (group == 0)
+            return ((long) (sub + 1) << (MIN_BITS - SUB_BUCKET_BITS)) - 1;
+        int exponent = group - 1 + MIN_BITS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    synchronized void record(long nanos) {
+        counts[bucketIndex(nanos)]++;
+        count++;
+        sum += nanos;
+        if (nanos < min) min = nanos;
+        if (nanos > max) max = nanos;
+    }
+
+    synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    synchronized double getMeanNanos() {
+        return count > 0 ? (double) sum / count : 0;
+    }
+
+    synchronized long getMaxNanos() {
+        return max;
+    }
+
+    synchronized long getMinNanos() {
+        return count > 0 ? min : 0;
+    }
+
+    /**
+     * @param percentile 0..100
+     * @return upper bound of the bucket holding the percentile, limited to the max value
+     */
+    synchronized long getPercentileNanos(double percentile) {
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(bucketUpperBound(i), max);
+        }
+        return max;
+    }
+
+    /**
+     * one line: count, mean, percentiles and max in milliseconds
+     */
+    synchronized StringBuilder appendTo(StringBuilder sb) {
+        sb.append(name).append(": n=").append(count);
+        if (count > 0) {
+            sb.append(" mean=");
+            appendMillis(sb, (long) getMeanNanos());
+            sb.append(" p50=");
+            appendMillis(sb, getPercentileNanos(50));
+            sb.append(" p90=");
+            appendMillis(sb, getPercentileNanos(90));
+            sb.append(" p99=");
+            appendMillis(sb, getPercentileNanos(99));
+            sb.append(" max=");
+            appendMillis(sb, max);
+            sb.append(" ms");
+        }
+        return sb;
+    }
+
+    private static void appendMillis(StringBuilder sb, long nanos) {
+        long micros = Math.round(nanos / 1000.0);
+        long fraction = micros % 1000;
+        sb.append(micros / 1000).append('.');
+        if (fraction < 100) sb.append('0');
+        if (fraction < 10) sb.append('0');
+        sb.append(fraction);
+    }
+}
@@ -0,0 +1,60 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * newest sample for one writer and one reader thread, without locks
+ *
+ * triple buffer: the writer fills its back buffer and swaps it with the middle one,
+ * the reader swaps its front buffer with the middle one when that holds a newer version.
+ * neither side waits for the other and the reader never sees a partly written sample.
+ */
+final class LatestSample {
+
+    private static final class Slot {
+        final BmsSample sample = new BmsSample();
+        long version;
+    }
+
+    private final AtomicReference<Slot> middle = new AtomicReference<>(new Slot());
+    private Slot back = new Slot();  // writer only
+    private Slot front = new Slot(); // reader only
+    private long written;            // writer only
+
+    /**
+     * writer thread
+     */
+    void write(BmsSample sample) {
+        back.sample.copyFrom(sample);
+        back.version = ++written;
+        back = middle.getAndSet(back);
+    }
+
+    /**
+     * reader thread, take the newest sample written
+     *
+     * @return true if get() changed
+     */
+    boolean update() {
+        if (middle.get().version <= front.version)
+            return false;
+        front = middle.getAndSet(front);
+        return true;
+    }
+
+    /**
+     * reader thread, valid until the next update(). empty sample before the first write
+     */
+    BmsSample get() {
+        return front.sample;
+    }
+
+    /**
+     * reader thread
+     *
+     * @return samples written before the current one, 0 if none
+     */
+    long getVersion() {
+        return front.version;
+    }
+}
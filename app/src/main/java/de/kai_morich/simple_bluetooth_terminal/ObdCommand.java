@@ -0,0 +1,155 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * request sent through ObdCommandQueue, also used as future for its reply
+ *
+ * commands are reusable: the reply is copied into an own buffer that grows once to the
+ * largest reply, so polling the same command objects creates no garbage.
+ */
+final class ObdCommand {
+
+    interface Callback {
+        /**
+         * called on the reader thread, after the next queued command was already sent
+         */
+        void onResponse(ObdCommand command, byte[] data, int length);
+        void onError(ObdCommand command, Exception e);
+    }
+
+    static final int IDLE = 0;
+    static final int QUEUED = 1;
+    static final int SENT = 2;
+    static final int DONE = 3;
+    static final int FAILED = 4;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    final String command;
+    final byte[] bytes; // command + CR
+    final Ecu ecu;      // header selected before sending, null for AT commands
+    final String name;  // command, with ECU if any, e.g. "BMS 220101"
+    final long timeoutMillis;
+    Callback callback;
+
+    private byte[] countedBytes; // command + ' ' + expected frames + CR
+    private int state = IDLE;
+    private byte[] response = new byte[64];
+    private int responseLength;
+    private Exception error;
+    long sentNanos;
+    long deadlineNanos;
+    long completedNanos;
+
+    ObdCommand(String command, long timeoutMillis, Callback callback) {
+        this(command, null, timeoutMillis, callback);
+    }
+
+    ObdCommand(String command, Ecu ecu, long timeoutMillis, Callback callback) {
+        this.command = command;
+        this.bytes = (command + "\r").getBytes(ASCII);
+        this.ecu = ecu;
+        this.name = ecu != null ? ecu.name + ' ' + command : command;
+        this.timeoutMillis = timeoutMillis;
+        this.callback = callback;
+    }
+
+    /**
+     * @param frames expected reply frames 1..15 appended as hex digit, 0 for none
+     */
+    byte[] getBytes(int frames) {
+        if (frames <= 0)
+            return bytes;
+        char digit = Character.toUpperCase(Character.forDigit(frames, 16));
+        if (countedBytes == null || countedBytes[countedBytes.length - 2] != digit)
+            countedBytes = (command + ' ' + digit + '\r').getBytes(ASCII);
+        return countedBytes;
+    }
+
+    synchronized int getState() {
+        return state;
+    }
+
+    synchronized boolean isPending() {
+        return state == QUEUED || state == SENT;
+    }
+
+    synchronized boolean isDone() {
+        return state == DONE || state == FAILED;
+    }
+
+    /**
+     * @return false if not completed within millis
+     */
+    synchronized boolean await(long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        while (state != DONE && state != FAILED) {
+            long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0)
+                return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * valid until the command is queued again
+     */
+    byte[] getResponse() {
+        return response;
+    }
+
+    int getResponseLength() {
+        return responseLength;
+    }
+
+    String getResponseString() {
+        return new String(response, 0, responseLength, ASCII);
+    }
+
+    synchronized Exception getError() {
+        return error;
+    }
+
+    long getRoundTripNanos() {
+        return completedNanos - sentNanos;
+    }
+
+    synchronized void queued() {
+        if (state == QUEUED || state == SENT)
+            throw new IllegalStateException(command + " already queued");
+        state = QUEUED;
+        error = null;
+        responseLength = 0;
+    }
+
+    synchronized void sent(long nowNanos) {
+        state = SENT;
+        sentNanos = nowNanos;
+        deadlineNanos = nowNanos + timeoutMillis * 1000000L;
+    }
+
+    synchronized void complete(byte[] data, int offset, int length, long nowNanos) {
+        if (response.length < length)
+            response = Arrays.copyOf(response, Math.max(length, response.length * 2));
+        System.arraycopy(data, offset, response, 0, length);
+        responseLength = length;
+        completedNanos = nowNanos;
+        state = DONE;
+        notifyAll();
+    }
+
+    synchronized void fail(Exception e, long nowNanos) {
+        error = e;
+        completedNanos = nowNanos;
+        state = FAILED;
+        notifyAll();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,564 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * sends queued commands one after the other, as the ELM327 accepts only one command at a time
+ *
+ * the next command is written from the reader thread as soon as the '>' prompt of the
+ * previous reply arrived, before the callback of the previous command is run.
+ * a command exceeding its deadline fails and is aborted by sending a space. any character
+ * stops a running request, the adapter confirms with STOPPED and a prompt, after that the
+ * next command is sent. no CR: sent to an idle adapter, a CR repeats the last request and
+ * its reply would be taken for the one of the next command. a space reaching an idle
+ * adapter, as the late reply was complete already, is ignored like all spaces in commands,
+ * the prompt of the late reply is taken as confirmation then.
+ *
+ * requests of an ECU other than the one currently addressed are preceded by ATSH and,
+ * if the reply header differs, ATCRA. each costs a round trip, so callers should queue
+ * requests of the same ECU together. the selected header is unknown after a reset, a failed
+ * switch or a cancel, then it is set again before the next request.
+ * with an AdaptiveTiming profile, requests are preceded by ATST and ATAT the same way when
+ * their learned timing differs from the selected one, and the arrival of the reply lines is
+ * measured for the profile. requests are sent with their learned frame count, e.g. "220101 9".
+ * if the adapter rejects it or the reply is cut short, the request is sent again without,
+ * its callback only gets the second reply.
+ */
+final class ObdCommandQueue implements ResponseFramer.Listener {
+
+    interface Writer {
+        void write(byte[] data) throws IOException;
+    }
+
+    private static final byte[] ABORT = {' '};
+    private static final long ABORT_TIMEOUT_NANOS = 1000 * 1000000L;
+    private static final long SWITCH_TIMEOUT_MILLIS = 1000;
+    private static final String[] TIMEOUT_COMMANDS = new String[AdaptiveTiming.MAX_TIMEOUT + 1];
+    private static final String[] ADAPTIVE_COMMANDS = {"ATAT0", "ATAT1", "ATAT2"};
+
+    static {
+        for (int i = 0; i < TIMEOUT_COMMANDS.length; i++)
+            TIMEOUT_COMMANDS[i] = String.format(Locale.US, "ATST%02X", i);
+    }
+
+    private final Writer writer;
+    private final ArrayDeque<ObdCommand> queue = new ArrayDeque<>(32);
+    private ObdCommand inFlight;
+    private boolean aborting;
+    private long abortDeadlineNanos;
+    private final Map<String, ObdCommand> switchCommands = new HashMap<>(); // ATSH.., ATCRA.. by command
+    private String requestHeader;  // selected in the adapter, null if unknown
+    private String responseHeader;
+    private AdaptiveTiming.Profile timing; // null: timing of the init sequence
+    private int timeout = -1;  // ATST selected in the adapter, -1 if unknown
+    private int adaptive = -1; // ATAT
+    // reply lines of the request in flight
+    private long firstLineNanos;
+    private long lastLineNanos;
+    private long maxGapNanos;
+    private int frames;         // frames of the response header
+    private int expectedFrames; // as announced by the single or first frame, 0 if none
+    private int sentFrameCount; // appended to the request, 0 for none
+
+    // statistics
+    private long startNanos = System.nanoTime();
+    private long completed;
+    private long failed;
+    private long timeouts;
+    private int maxDepth;
+    private long headerSwitches;
+    private long switchCommandCount;
+    private long switchFailures;
+    private long switchNanos;
+    private long timingSwitches;
+    private long frameCountRetries;
+
+    ObdCommandQueue(Writer writer) {
+        this.writer = writer;
+    }
+
+    void submit(ObdCommand command) {
+        ObdCommand failedSend;
+        synchronized (this) {
+            command.queued();
+            queue.add(command);
+            maxDepth = Math.max(maxDepth, getQueueDepth());
+            failedSend = inFlight == null && !aborting ? dispatchNext(System.nanoTime()) : null;
+        }
+        notifyFailed(failedSend);
+    }
+
+    void submit(ObdCommand... batch) {
+        ObdCommand failedSend;
+        synchronized (this) {
+            for (ObdCommand command : batch) {
+                command.queued();
+                queue.add(command);
+            }
+            maxDepth = Math.max(maxDepth, getQueueDepth());
+            failedSend = inFlight == null && !aborting ? dispatchNext(System.nanoTime()) : null;
+        }
+        notifyFailed(failedSend);
+    }
+
+    /**
+     * @return command that could not be written, already failed
+     */
+    private ObdCommand dispatchNext(long nowNanos) {
+        ObdCommand next = queue.peek();
+        if (next == null)
+            return null;
+        if (next.ecu != null && timing != null)
+            queueTiming(next);
+        if (next.ecu != null && !isSelected(next.ecu)) {
+            // switch commands go in front of the request and are sent first
+            if (!next.ecu.responseHeader.equals(responseHeader))
+                queueSwitch("ATCRA" + next.ecu.responseHeader);
+            if (!next.ecu.requestHeader.equals(requestHeader))
+                queueSwitch("ATSH" + next.ecu.requestHeader);
+            requestHeader = next.ecu.requestHeader; // unknown again if a switch fails
+            responseHeader = next.ecu.responseHeader;
+            headerSwitches++;
+        } else if (next.ecu == null && !isSwitch(next)) {
+            trackSetting(next.command);
+        }
+        next = queue.poll();
+        inFlight = next;
+        firstLineNanos = 0;
+        maxGapNanos = 0;
+        frames = 0;
+        expectedFrames = 0;
+        sentFrameCount = next.ecu != null && timing != null ? timing.getFrameCount(next.name) : 0;
+        next.sent(nowNanos);
+        try {
+            writer.write(next.getBytes(sentFrameCount));
+            return null;
+        } catch (IOException e) {
+            inFlight = null;
+            next.fail(e, System.nanoTime());
+            failed++;
+            if (isSwitch(next))
+                forgetSelection();
+            return next;
+        }
+    }
+
+    private void queueSwitch(String command) {
+        ObdCommand c = switchCommands.get(command);
+        if (c == null) {
+            c = new ObdCommand(command, SWITCH_TIMEOUT_MILLIS, null);
+            switchCommands.put(command, c);
+        }
+        c.queued();
+        queue.addFirst(c);
+    }
+
+    /**
+     * ATAT and ATST of the request go in front of it, like the header switch
+     */
+    private void queueTiming(ObdCommand next) {
+        int a = timing.getAdaptive();
+        int t = timing.getTimeout(next.name);
+        if (a >= 0 && a != adaptive) {
+            queueSwitch(ADAPTIVE_COMMANDS[a]);
+            adaptive = a;
+            timingSwitches++;
+        }
+        // a longer timeout already selected is kept if the time lost is less than a round trip
+        if (t >= 0 && (timeout < 0 || t > timeout || timeout - t > AdaptiveTiming.SHARED_UNITS)) {
+            queueSwitch(TIMEOUT_COMMANDS[t]);
+            timeout = t;
+            timingSwitches++;
+        }
+    }
+
+    /**
+     * settings changed by commands not sent by the queue, e.g. ATSTFF of the init sequence
+     */
+    private void trackSetting(String command) {
+        if (changesHeader(command)) {
+            requestHeader = null;
+            responseHeader = null;
+        }
+        if (command.equals("ATWS") || isReset(command)) {
+            timeout = AdaptiveTiming.DEFAULT_TIMEOUT;
+            adaptive = AdaptiveTiming.NORMAL;
+        } else if (command.startsWith("ATST")) {
+            try {
+                timeout = Integer.parseInt(command.substring(4), 16);
+            } catch (NumberFormatException e) {
+                timeout = -1;
+            }
+        } else if (command.startsWith("ATAT")) {
+            int value = command.length() == 5 ? command.charAt(4) - '0' : -1;
+            adaptive = value >= 0 && value < ADAPTIVE_COMMANDS.length ? value : -1;
+        }
+    }
+
+    /**
+     * e.g. after a failed switch or a cancel, the next request sets everything again
+     */
+    private void forgetSelection() {
+        requestHeader = null;
+        responseHeader = null;
+        timeout = -1;
+        adaptive = -1;
+    }
+
+    static String timeoutCommand(int timeout) {
+        return TIMEOUT_COMMANDS[timeout];
+    }
+
+    private boolean isSwitch(ObdCommand command) {
+        return command.callback == null && switchCommands.get(command.command) == command;
+    }
+
+    private boolean isSelected(Ecu ecu) {
+        return ecu.requestHeader.equals(requestHeader) && ecu.responseHeader.equals(responseHeader);
+    }
+
+    /**
+     * @return true if the command resets the adapter or changes header or filter
+     */
+    private static boolean changesHeader(String command) {
+        return isReset(command) || command.equals("ATWS") || command.equals("ATAR") || command.startsWith("ATSH")
+                || command.startsWith("ATCRA") || command.startsWith("ATCF") || command.startsWith("ATCM");
+    }
+
+    private static boolean isReset(String command) {
+        for (String reset : AdapterConfig.RESET_COMMANDS)
+            if (command.equals(reset))
+                return true;
+        return false;
+    }
+
+    /**
+     * @return true if the reply contains OK
+     */
+    static boolean isOk(byte[] data, int length) {
+        for (int i = 0; i + 1 < length; i++)
+            if (data[i] == 'O' && data[i + 1] == 'K')
+                return true;
+        return false;
+    }
+
+    /**
+     * @return true if the reply contains NO DATA
+     */
+    static boolean isNoData(byte[] data, int length) {
+        for (int i = 0; i + 6 < length; i++)
+            if (data[i] == 'N' && data[i + 1] == 'O' && data[i + 2] == ' ' && data[i + 3] == 'D'
+                    && data[i + 4] == 'A' && data[i + 5] == 'T' && data[i + 6] == 'A')
+                return true;
+        return false;
+    }
+
+    /**
+     * @return true if the reply is '?', the adapter did not understand the command
+     */
+    static boolean isRejected(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++)
+            if (data[i] == '?')
+                return true;
+        return false;
+    }
+
+    /**
+     * @return frames of the reply announced by a single (1) or first frame line, 0 for a
+     * consecutive frame, -1 if the line is no frame of the header
+     */
+    static int announcedFrames(byte[] data, int offset, int length, String header) {
+        int h = header.length();
+        if (length < h + 4)
+            return -1;
+        for (int i = 0; i < h; i++)
+            if (data[offset + i] != header.charAt(i))
+                return -1;
+        switch (ObdFrameDecoder.hexValue(data[offset + h])) {
+            case 0:
+                return 1;
+            case 1:
+                int bytes = 0;
+                for (int i = 1; i <= 3; i++) {
+                    int digit = ObdFrameDecoder.hexValue(data[offset + h + i]);
+                    if (digit < 0)
+                        return -1;
+                    bytes = bytes << 4 | digit;
+                }
+                // first frame carries FIRST_FRAME_BYTES, each consecutive frame 7
+                return 1 + (bytes - ObdFrameDecoder.FIRST_FRAME_BYTES + ObdFrameDecoder.CONSECUTIVE_FRAME_BYTES - 1)
+                        / ObdFrameDecoder.CONSECUTIVE_FRAME_BYTES;
+            case 2:
+                return 0;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * learn and set ATST/ATAT per request with the profile of the connected adapter, null to
+     * keep the timing of the init sequence
+     */
+    synchronized void setTiming(AdaptiveTiming.Profile timing) {
+        this.timing = timing;
+    }
+
+    /**
+     * any thread
+     *
+     * @return false if the next request of the ECU is preceded by ATSH or ATCRA
+     */
+    synchronized boolean isSelectedEcu(Ecu ecu) {
+        return ecu == null || isSelected(ecu);
+    }
+
+    private static void notifyFailed(ObdCommand command) {
+        if (command != null && command.callback != null)
+            command.callback.onError(command, command.getError());
+    }
+
+    /**
+     * lines are parsed by the decoders from the complete reply, only their arrival is
+     * measured here, as the ELM327 sends each frame when it is received
+     */
+    @Override
+    public void onLine(byte[] data, int offset, int length) {
+        synchronized (this) {
+            if (timing == null || aborting || inFlight == null || inFlight.ecu == null)
+                return;
+            long now = System.nanoTime();
+            if (firstLineNanos == 0)
+                firstLineNanos = now;
+            else
+                maxGapNanos = Math.max(maxGapNanos, now - lastLineNanos);
+            lastLineNanos = now;
+            int announced = announcedFrames(data, offset, length, inFlight.ecu.responseHeader);
+            if (announced >= 0) {
+                frames++;
+                if (announced > 0)
+                    expectedFrames = announced;
+            }
+        }
+    }
+
+    /**
+     * complete reply up to the prompt, from ResponseFramer
+     */
+    @Override
+    public void onResponse(byte[] data, int offset, int length) {
+        ObdCommand done;
+        ObdCommand rejected = null;
+        ObdCommand failedSend;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (aborting) {
+                aborting = false; // prompt after abort of a timed out command
+                done = null;
+            } else {
+                done = inFlight;
+                if (done == null)
+                    return; // unsolicited, e.g. after reset
+                if (sentFrameCount > 0 && (isRejected(data, offset, length) || frames < expectedFrames)) {
+                    // count not supported or more frames than expected, send again without
+                    timing.onFrameCountFailed(done.name, isRejected(data, offset, length));
+                    frameCountRetries++;
+                    queue.addFirst(done); // still SENT, sent() again by dispatchNext
+                    done = null;
+                }
+            }
+            if (done != null) {
+                done.complete(data, offset, length, now);
+                byte[] reply = done.getResponse();
+                int replyLength = done.getResponseLength();
+                if (isSwitch(done)) {
+                    switchCommandCount++;
+                    switchNanos += done.getRoundTripNanos();
+                    if (!isOk(reply, replyLength)) // e.g. '?', fail the request instead of asking the wrong ECU
+                        rejected = rejectSwitch(done, now);
+                } else {
+                    completed++;
+                    if (timing != null && done.ecu != null)
+                        learnTiming(done, reply, replyLength, now);
+                }
+            }
+            inFlight = null;
+            failedSend = dispatchNext(now);
+        }
+        if (done != null && done.callback != null)
+            done.callback.onResponse(done, done.getResponse(), done.getResponseLength());
+        notifyFailed(rejected);
+        notifyFailed(failedSend);
+    }
+
+    private void learnTiming(ObdCommand done, byte[] reply, int length, long now) {
+        if (isNoData(reply, length)) {
+            timing.onNoData(done.name, timeout);
+            return;
+        }
+        if (firstLineNanos != 0)
+            timing.onReply(done.name, Math.max(firstLineNanos - done.sentNanos, maxGapNanos), now - lastLineNanos);
+        if (expectedFrames > 0 && frames == expectedFrames)
+            timing.onFrames(done.name, frames);
+    }
+
+    /**
+     * @return request that was to be sent after the switch, already failed
+     */
+    private ObdCommand rejectSwitch(ObdCommand done, long now) {
+        forgetSelection();
+        if (timing != null && (done.command.startsWith("ATST") || done.command.startsWith("ATAT")))
+            timing.onRejected(done.command);
+        switchFailures++;
+        while (queue.peek() != null && isSwitch(queue.peek()))
+            queue.poll().fail(new IOException("cancelled"), now);
+        ObdCommand request = queue.poll();
+        if (request != null) {
+            request.fail(new IOException(done.command + " failed"), now);
+            failed++;
+        }
+        return request;
+    }
+
+    /**
+     * to be called periodically while connected
+     */
+    void checkTimeouts() {
+        ObdCommand timedOut = null;
+        List<ObdCommand> abortFailed = null;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (aborting && now - abortDeadlineNanos > 0) {
+                // adapter does not respond at all
+                aborting = false;
+                forgetSelection();
+                abortFailed = new ArrayList<>(queue);
+                queue.clear();
+                for (ObdCommand command : abortFailed)
+                    command.fail(new IOException("adapter not responding"), now);
+                failed += abortFailed.size();
+            } else if (inFlight != null && now - inFlight.deadlineNanos > 0) {
+                timedOut = inFlight;
+                inFlight = null;
+                if (isSwitch(timedOut))
+                    forgetSelection(); // sent again before the waiting request
+                timedOut.fail(new TimeoutException(timedOut.command + " timeout after " + timedOut.timeoutMillis + " ms"), now);
+                timeouts++;
+                failed++;
+                aborting = true;
+                abortDeadlineNanos = now + ABORT_TIMEOUT_NANOS;
+                try {
+                    writer.write(ABORT);
+                } catch (IOException ignored) {
+                    // io error is reported by the transport
+                }
+            }
+        }
+        notifyFailed(timedOut);
+        if (abortFailed != null)
+            for (ObdCommand command : abortFailed)
+                notifyFailed(command);
+    }
+
+    /**
+     * drop queued commands without callbacks, the command in flight is kept
+     *
+     * @return command in flight, null if none
+     */
+    synchronized ObdCommand cancelQueued() {
+        long now = System.nanoTime();
+        for (ObdCommand command : queue)
+            command.fail(new IOException("cancelled"), now);
+        queue.clear();
+        forgetSelection(); // a queued switch may not have been sent
+        return inFlight;
+    }
+
+    /**
+     * drop queued and in flight commands without callbacks, e.g. on disconnect
+     */
+    synchronized void cancelAll() {
+        long now = System.nanoTime();
+        if (inFlight != null)
+            inFlight.fail(new IOException("cancelled"), now);
+        for (ObdCommand command : queue)
+            command.fail(new IOException("cancelled"), now);
+        inFlight = null;
+        queue.clear();
+        aborting = false;
+        forgetSelection();
+    }
+
+    synchronized int getQueueDepth() {
+        return queue.size() + (inFlight != null ? 1 : 0);
+    }
+
+    synchronized int getMaxQueueDepth() {
+        return maxDepth;
+    }
+
+    synchronized long getCompletedCount() {
+        return completed;
+    }
+
+    synchronized long getFailedCount() {
+        return failed;
+    }
+
+    synchronized long getTimeoutCount() {
+        return timeouts;
+    }
+
+    /**
+     * @return completed commands per second since resetStatistics
+     */
+    synchronized double getThroughput() {
+        long elapsed = System.nanoTime() - startNanos;
+        return elapsed > 0 ? completed * 1e9 / elapsed : 0;
+    }
+
+    synchronized void resetStatistics() {
+        startNanos = System.nanoTime();
+        completed = 0;
+        failed = 0;
+        timeouts = 0;
+        maxDepth = getQueueDepth();
+        headerSwitches = 0;
+        switchCommandCount = 0;
+        switchFailures = 0;
+        switchNanos = 0;
+        timingSwitches = 0;
+        frameCountRetries = 0;
+    }
+
+    /**
+     * @return ECU changes, each is one or two switch commands
+     */
+    synchronized long getHeaderSwitchCount() {
+        return headerSwitches;
+    }
+
+    synchronized long getSwitchCommandCount() {
+        return switchCommandCount;
+    }
+
+    synchronized StringBuilder appendStatistics(StringBuilder sb) {
+        return sb.append("commands: ").append(completed)
+                .append(", failed: ").append(failed)
+                .append(", timeouts: ").append(timeouts)
+                .append(", queue depth: ").append(getQueueDepth())
+                .append(" (max ").append(maxDepth).append(')')
+                .append(", throughput: ").append(Math.round(getThroughput() * 10) / 10.0).append(" cmd/s")
+                .append("\nheader switches: ").append(headerSwitches)
+                .append(" (").append(switchCommandCount).append(" commands, ")
+                .append(switchNanos / 1000000L).append(" ms, failed: ").append(switchFailures).append(')')
+                .append(", timing switches: ").append(timingSwitches)
+                .append(", sent again without frame count: ").append(frameCountRetries);
+    }
+}
@@ -0,0 +1,133 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+/**
+ * byte level scanner for ELM327 replies sent with ATH1 ATS0 (e.g. "7EC21...")
+ *
+ * walks the raw reply once, picks the lines of one ECU header and stores the data bytes
+ * of the single/first frame and consecutive frames 1..15 into a reusable payload array.
+ * no Strings and no allocations after construction.
+ */
+final class ObdFrameDecoder {
+
+    static final int MAX_FRAMES = 16; // first frame + consecutive frames 1..15
+    static final int FIRST_FRAME_BYTES = 6;
+    static final int CONSECUTIVE_FRAME_BYTES = 7;
+
+    private static final byte[] HEX = new byte[128];
+
+    static {
+        for (int i = 0; i < HEX.length; i++) HEX[i] = -1;
+        for (int i = 0; i < 10; i++) HEX['0' + i] = (byte) i;
+        for (int i = 0; i < 6; i++) {
+            HEX['A' + i] = (byte) (10 + i);
+            HEX['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    private final byte h0, h1, h2;
+    private final byte[] payload = new byte[payloadSize()];
+    private int frameMask;
+
+    /**
+     * @param rxHeader 11 bit CAN id of the answering ECU as 3 hex chars, e.g. "7EC"
+     */
+    ObdFrameDecoder(String rxHeader) {
+        if (rxHeader.length() != 3)
+            throw new IllegalArgumentException("expected 3 char header: " + rxHeader);
+        h0 = (byte) rxHeader.charAt(0);
+        h1 = (byte) rxHeader.charAt(1);
+        h2 = (byte) rxHeader.charAt(2);
+    }
+
+    static int hexValue(byte c) {
+        return c < 0 ? -1 : HEX[c];
+    }
+
+    /**
+     * @return true if at least one frame of this header was found
+     */
+    boolean scan(byte[] buf, int off, int len) {
+        frameMask = 0;
+        int end = off + len;
+        int pos = off;
+        while (pos < end) {
+            // pos is at the beginning of a line
+            if (end - pos >= 5 && buf[pos] == h0 && buf[pos + 1] == h1 && buf[pos + 2] == h2)
+                pos = scanFrame(buf, pos + 3, end);
+            while (pos < end && !isLineEnd(buf[pos])) pos++;
+            while (pos < end && isLineEnd(buf[pos])) pos++;
+        }
+        return frameMask != 0;
+    }
+
+    private int scanFrame(byte[] buf, int pos, int end) {
+        int pci = hexValue(buf[pos]);
+        int pciLow = hexValue(buf[pos + 1]);
+        if (pciLow < 0)
+            return pos;
+        int frame, start, max;
+        switch (pci) {
+            case 0: // single frame, low nibble = length
+                frame = 0; start = 0; max = Math.min(pciLow, CONSECUTIVE_FRAME_BYTES);
+                pos += 2;
+                break;
+            case 1: // first frame, 12 bit length
+                frame = 0; start = 0; max = FIRST_FRAME_BYTES;
+                pos += 4;
+                break;
+            case 2: // consecutive frame, low nibble = sequence number
+                if (pciLow == 0)
+                    return pos; // sequence wrapped, beyond MAX_FRAMES
+                frame = pciLow; start = FIRST_FRAME_BYTES + (pciLow - 1) * CONSECUTIVE_FRAME_BYTES; max = CONSECUTIVE_FRAME_BYTES;
+                pos += 2;
+                break;
+            default:
+                return pos;
+        }
+        int count = 0;
+        while (count < max && pos + 1 < end) {
+            int hi = hexValue(buf[pos]);
+            int lo = hexValue(buf[pos + 1]);
+            if (hi < 0 || lo < 0)
+                break;
+            payload[start + count++] = (byte) ((hi << 4) | lo);
+            pos += 2;
+        }
+        if (count == max || (count > 0 && pos < end && isLineEnd(buf[pos]))) // short last frame without padding
+            frameMask |= 1 << frame;
+        return pos;
+    }
+
+    private static boolean isLineEnd(byte c) {
+        return c == '\r' || c == '\n' || c == '>';
+    }
+
+    /**
+     * @param frames bit mask, bit 0 = single/first frame, bit n = consecutive frame n
+     */
+    boolean hasFrames(int frames) {
+        return (frameMask & frames) == frames;
+    }
+
+    int getFrameMask() {
+        return frameMask;
+    }
+
+    static int position(int frame, int offset) {
+        return frame == 0 ? offset : FIRST_FRAME_BYTES + (frame - 1) * CONSECUTIVE_FRAME_BYTES + offset;
+    }
+
+    static int payloadSize() {
+        return FIRST_FRAME_BYTES + (MAX_FRAMES - 1) * CONSECUTIVE_FRAME_BYTES;
+    }
+
+    /**
+     * big endian value of 1..8 payload bytes
+     */
+    long read(int position, int bytes) {
+        long value = 0;
+        for (int i = 0; i < bytes; i++)
+            value = (value << 8) | (payload[position + i] & 0xff);
+        return value;
+    }
+}
@@ -0,0 +1,627 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ELM327 protocol engine: init sequence, polling of 220101/220105 and decoding
+ *
+ * runs on any SerialTransport, so it can be used without Android against Elm327Simulator.
+ * reconnects and notifications are left to the Listener.
+ *
+ * connection state is only changed on the session thread (the executor passed to the
+ * constructor), api calls and transport callbacks are posted there:
+ * IDLE -> CONNECTING -> INITIALIZING -> POLLING -> DRAINING -> IDLE, errors go to IDLE directly.
+ * DRAINING ends with the reply or failure of the command in flight, or at its deadline,
+ * without blocking the session thread meanwhile.
+ * each connect uses an own SerialListener, callbacks of a previous connection are ignored.
+ * replies are still decoded on the reader thread, without switching threads.
+ *
+ * 220101/220105 are sent to the BMS. requests to other ECUs can be polled with addPoll(),
+ * their replies are not decoded but published on the frame bus and in the capture journal.
+ * the poll periods only apply with continuous polling, see PollScheduler.
+ *
+ * the adapter keeps its settings across bluetooth reconnects. when settings were applied to
+ * the adapter address before, init starts with a probe (ATDPN) instead of ATZ. if echo is
+ * still off and the protocol still set, only settings not applied yet are sent (warm init),
+ * else the adapter was reset and the full sequence is sent (cold init).
+ *
+ * the init sequence sets the longest timeout (ATSTFF). requests are then sent with ATST and
+ * ATAT learned from the response times measured for the adapter, see AdaptiveTiming.
+ */
+final class ObdSession implements ObdCommand.Callback {
+
+    interface Listener {
+        void onSessionConnected();
+        void onSessionStatus(String text);
+        /**
+         * reply of an init command or a reply that could not be decoded,
+         * data is only valid during the call, so it can be logged without formatting
+         */
+        void onSessionResponse(String command, byte[] data, int length);
+        /**
+         * the listener owns the sample and returns it with recycle() when done with it
+         */
+        void onSessionSample(BmsSample sample);
+        /**
+         * session is already disconnected when called
+         */
+        void onSessionError(String title, Exception e);
+    }
+
+    static final int IDLE = 0;
+    static final int CONNECTING = 1;
+    static final int INITIALIZING = 2; // includes the delay before the first command
+    static final int POLLING = 3;
+    static final int DRAINING = 4;     // waiting for the reply of the last command before disconnect
+
+    // titles of onSessionError when the link failed, other errors are failed commands
+    static final String CONNECT_ERROR = "onSerialConnectError";
+    static final String IO_ERROR = "onSerialIoError";
+
+    private static final String[] STATE_NAMES = {"Idle", "Connecting", "Initializing", "Polling", "Draining"};
+    private static final long AT_TIMEOUT_MILLIS = 2000;
+    private static final long RESET_TIMEOUT_MILLIS = 5000;
+    private static final long REQUEST_TIMEOUT_MILLIS = 3000;
+    private static final long DRAIN_TIMEOUT_MILLIS = 500;
+    private static final long WATCHDOG_MILLIS = 50; // also granularity of the poll scheduler
+    private static final long POLL_220101_MILLIS = 1000; // voltage, current, temperatures
+    private static final long POLL_220105_MILLIS = 60000; // displayed SOC, SOH change slowly
+    private static final int SAMPLE_POOL_SIZE = 8; // samples held by listeners at once
+
+    private final class Connection implements SerialListener {
+        final String adapterAddress;
+        final SerialTransport transport;
+
+        Connection(String adapterAddress, SerialTransport transport) {
+            this.adapterAddress = adapterAddress;
+            this.transport = transport;
+        }
+
+        @Override
+        public void onSerialConnect() {
+            post(() -> onConnected(this));
+        }
+
+        @Override
+        public void onSerialConnectError(Exception e) {
+            post(() -> onFailure(this, CONNECT_ERROR, e));
+        }
+
+        @Override
+        public void onSerialRead(byte[] data, int length) {
+            synchronized (responseFramer) {
+                if (connection != this) return;
+                metrics.addBytesRead(length);
+                responseFramer.onData(data, 0, length, commandQueue);
+            }
+        }
+
+        @Override
+        public void onSerialIoError(Exception e) {
+            post(() -> onFailure(this, IO_ERROR, e));
+        }
+    }
+
+    private final Listener listener;
+    private final ScheduledExecutorService executor;
+    private final ResponseFramer responseFramer = new ResponseFramer();
+    private final ObdCommandQueue commandQueue = new ObdCommandQueue(this::write);
+    private final BmsDecoder bmsDecoder = new BmsDecoder();
+    private final BmsSample bmsSample = new BmsSample(); // decoded on the reader thread
+    private final BmsSample.Pool samplePool = new BmsSample.Pool(SAMPLE_POOL_SIZE);
+
+    private final AdapterConfig adapterConfig = AdapterConfig.konaBms();
+    private final AdapterConfigCache adapterConfigCache = new AdapterConfigCache();
+    private final AdaptiveTiming adaptiveTiming = new AdaptiveTiming();
+    private volatile boolean adaptiveTimingEnabled = true;
+    private final ObdCommand[] resetCommands = new ObdCommand[AdapterConfig.RESET_COMMANDS.length];
+    private final ObdCommand[] configCommands = new ObdCommand[adapterConfig.commands.length];
+    private final ObdCommand probe = new ObdCommand("ATDPN", AT_TIMEOUT_MILLIS, this);
+    private final ObdCommand atrv = new ObdCommand("ATRV", AT_TIMEOUT_MILLIS, this);
+    private final ObdCommand request220101 = new ObdCommand("220101", Ecu.BMS, REQUEST_TIMEOUT_MILLIS, this);
+    private final ObdCommand request220105 = new ObdCommand("220105", Ecu.BMS, REQUEST_TIMEOUT_MILLIS, this);
+    private final PollScheduler pollScheduler = new PollScheduler(commandQueue);
+    private final PollScheduler.Entry poll220101 = pollScheduler.add(request220101, POLL_220101_MILLIS, 10);
+    private final PollScheduler.Entry poll220105 = pollScheduler.add(request220105, POLL_220105_MILLIS, 1);
+    private final PipelineMetrics metrics = new PipelineMetrics();
+
+    private volatile CaptureJournal captureJournal;
+    private volatile TelemetryBus<RawFrame> frameBus;
+    private final RawFrame frame = new RawFrame(); // written on the reader thread
+    private volatile boolean continuousPolling;
+    private volatile long initDelayMillis = 1000;
+    private volatile long warmInitDelayMillis = 100; // adapter configured before, init starts with a probe
+
+    // written on the session thread only
+    private volatile int state = IDLE;
+    private volatile Connection connection;
+    private volatile boolean warmInit;
+    private ScheduledFuture<?> watchdog;
+    private ScheduledFuture<?> initTask;
+    private ScheduledFuture<?> drainTask;
+    private volatile ObdCommand drainCommand; // in flight when draining started
+    private long connectStartNanos;
+    private volatile long initStartNanos;
+
+    /**
+     * @param executor single threaded session thread, also used for command deadlines and polling
+     */
+    ObdSession(Listener listener, ScheduledExecutorService executor) {
+        this.listener = listener;
+        this.executor = executor;
+        for (int i = 0; i < resetCommands.length; i++)
+            resetCommands[i] = new ObdCommand(AdapterConfig.RESET_COMMANDS[i], RESET_TIMEOUT_MILLIS, this);
+        for (int i = 0; i < configCommands.length; i++)
+            configCommands[i] = new ObdCommand(adapterConfig.commands[i], AT_TIMEOUT_MILLIS, this);
+        for (ObdCommand command : resetCommands)
+            metrics.register(command.name);
+        for (ObdCommand command : configCommands)
+            metrics.register(command.name);
+        for (ObdCommand command : new ObdCommand[] {probe, atrv, request220101, request220105})
+            metrics.register(command.name);
+    }
+
+    /**
+     * poll a request of another ECU along with the BMS requests, e.g. the odometer of the cluster.
+     * failures of these requests are reported as status and do not end the session.
+     * only sent with continuous polling, the init batch has the BMS requests only
+     *
+     * @param priority 220101 has 10, 220105 has 1
+     */
+    PollScheduler.Entry addPoll(Ecu ecu, String request, long periodMillis, int priority) {
+        ObdCommand command = new ObdCommand(request, ecu, REQUEST_TIMEOUT_MILLIS, this);
+        metrics.register(command.name);
+        return pollScheduler.add(command, periodMillis, priority);
+    }
+
+    /**
+     * @return false if the executor is shut down
+     */
+    private boolean post(Runnable runnable) {
+        try {
+            executor.execute(runnable);
+            return true;
+        } catch (RejectedExecutionException ignored) {
+            return false;
+        }
+    }
+
+    /**
+     * connect, then initialize after a delay for the adapter to settle.
+     * a previous connection is closed first
+     *
+     * @param adapterAddress key for the settings applied to the adapter, e.g. bluetooth address
+     */
+    void connect(String adapterAddress, SerialTransport transport) {
+        post(() -> {
+            if (state != IDLE)
+                close();
+            Connection c = new Connection(adapterAddress, transport);
+            connection = c;
+            commandQueue.setTiming(adaptiveTimingEnabled ? adaptiveTiming.getProfile(adapterAddress) : null);
+            connectStartNanos = System.nanoTime();
+            state = CONNECTING;
+            bmsSample.clear();
+            commandQueue.resetStatistics();
+            pollScheduler.resetStatistics();
+            watchdog = executor.scheduleWithFixedDelay(this::onWatchdog, WATCHDOG_MILLIS, WATCHDOG_MILLIS, TimeUnit.MILLISECONDS);
+            try {
+                transport.connect(c);
+            } catch (IOException e) {
+                onFailure(c, CONNECT_ERROR, e);
+            }
+        });
+    }
+
+    /**
+     * @return true if the title of onSessionError is for a failed connect or lost link
+     */
+    static boolean isLinkError(String title) {
+        return CONNECT_ERROR.equals(title) || IO_ERROR.equals(title);
+    }
+
+    /**
+     * stop polling and wait for the reply of the command in flight, then disconnect
+     */
+    void disconnect() {
+        post(this::drain);
+    }
+
+    private void onConnected(Connection c) {
+        if (c != connection || state != CONNECTING)
+            return;
+        state = INITIALIZING;
+        long now = System.nanoTime();
+        metrics.connect.record(now - connectStartNanos);
+        initStartNanos = now;
+        listener.onSessionConnected();
+        long delay = adapterConfigCache.isKnown(c.adapterAddress) ? warmInitDelayMillis : initDelayMillis;
+        initTask = executor.schedule(() -> initialize(c), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void onInitialized(Connection c) {
+        if (c != connection || state != INITIALIZING)
+            return;
+        state = POLLING;
+        if (continuousPolling)
+            pollScheduler.start(System.nanoTime());
+    }
+
+    private void onFailure(Connection c, String title, Exception e) {
+        if (c != connection || state == IDLE)
+            return;
+        boolean disconnecting = state == DRAINING;
+        close();
+        if (!disconnecting)
+            listener.onSessionError(title, e);
+    }
+
+    private void drain() {
+        if (state == IDLE || state == DRAINING)
+            return;
+        state = DRAINING;
+        pollScheduler.stop();
+        ObdCommand inFlight = commandQueue.cancelQueued();
+        if (inFlight == null) {
+            close();
+            return;
+        }
+        Connection c = connection;
+        drainCommand = inFlight;
+        try {
+            drainTask = executor.schedule(() -> onDrained(c), DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            close(); // executor shut down, e.g. by onDestroy right after disconnect(), nothing would end the drain
+        }
+    }
+
+    /**
+     * command in flight when draining started is done or its deadline passed
+     */
+    private void onDrained(Connection c) {
+        if (c != connection || state != DRAINING)
+            return;
+        close();
+    }
+
+    /**
+     * reader or session thread
+     */
+    private void checkDrained(ObdCommand command) {
+        if (state == DRAINING && command == drainCommand) {
+            Connection c = connection;
+            if (!post(() -> onDrained(c)) && c != null)
+                c.transport.disconnect(); // session thread shut down, at least release the link
+        }
+    }
+
+    private void close() {
+        pollScheduler.stop();
+        if (watchdog != null) {
+            watchdog.cancel(false);
+            watchdog = null;
+        }
+        if (initTask != null) {
+            initTask.cancel(false);
+            initTask = null;
+        }
+        if (drainTask != null) {
+            drainTask.cancel(false);
+            drainTask = null;
+        }
+        drainCommand = null;
+        commandQueue.cancelAll();
+        Connection c;
+        synchronized (responseFramer) {
+            c = connection;
+            connection = null; // ignore remaining data
+            responseFramer.reset();
+        }
+        state = IDLE;
+        if (c != null)
+            c.transport.disconnect();
+    }
+
+    /**
+     * @return true unless IDLE, i.e. also while connecting and draining
+     */
+    boolean isConnected() {
+        return state != IDLE;
+    }
+
+    int getState() {
+        return state;
+    }
+
+    static String getStateName(int state) {
+        return STATE_NAMES[state];
+    }
+
+    String getTransportName() {
+        Connection c = connection;
+        return c != null ? c.transport.getName() : null;
+    }
+
+    /**
+     * e.g. 0 when connected to Elm327Simulator
+     */
+    void setInitDelay(long coldMillis, long warmMillis) {
+        initDelayMillis = coldMillis;
+        warmInitDelayMillis = warmMillis;
+    }
+
+    /**
+     * learn ATST/ATAT per request (default), else keep ATSTFF of the init sequence.
+     * applies from the next connect
+     */
+    void setAdaptiveTiming(boolean enabled) {
+        adaptiveTimingEnabled = enabled;
+    }
+
+    AdaptiveTiming getAdaptiveTiming() {
+        return adaptiveTiming;
+    }
+
+    /**
+     * publish every reply, null to stop
+     */
+    void setFrameBus(TelemetryBus<RawFrame> frameBus) {
+        this.frameBus = frameBus;
+    }
+
+    /**
+     * record all replies, null to stop
+     */
+    void setCaptureJournal(CaptureJournal captureJournal) {
+        this.captureJournal = captureJournal;
+    }
+
+    PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    PollScheduler getPollScheduler() {
+        return pollScheduler;
+    }
+
+    ObdCommandQueue getCommandQueue() {
+        return commandQueue;
+    }
+
+    private void write(byte[] data) throws IOException {
+        Connection c = connection;
+        if (c == null)
+            throw new IOException("not connected");
+        c.transport.write(data);
+    }
+
+    /**
+     * queue a command, the reply is returned to the command's callback
+     */
+    void submit(ObdCommand command) {
+        int s = state;
+        if (s == IDLE || s == DRAINING) {
+            command.fail(new IOException("not connected"), System.nanoTime());
+            if (command.callback != null)
+                command.callback.onError(command, command.getError());
+            return;
+        }
+        commandQueue.submit(command);
+    }
+
+    /**
+     * from any thread
+     */
+    private void fail(String title, Exception e) {
+        Connection c = connection;
+        if (c != null)
+            post(() -> onFailure(c, title, e));
+    }
+
+    /**
+     * init sequence, ATRV and the first poll, queued as one batch.
+     * for an adapter configured before, the probe is sent first and the batch is queued from its reply
+     */
+    private void initialize(Connection c) {
+        initTask = null;
+        if (c != connection || state != INITIALIZING)
+            return;
+        if (adapterConfigCache.isKnown(c.adapterAddress)) {
+            warmInit = true;
+            commandQueue.submit(probe);
+        } else {
+            coldInit();
+        }
+    }
+
+    private void coldInit() {
+        warmInit = false;
+        adapterConfigCache.clear(getAdapterAddress());
+        commandQueue.submit(resetCommands);
+        commandQueue.submit(configCommands);
+        commandQueue.submit(atrv, request220101, request220105);
+    }
+
+    private void warmInit() {
+        String adapterAddress = getAdapterAddress();
+        int count = 0;
+        for (int i = 0; i < configCommands.length; i++) {
+            String key = adapterConfig.keys[i];
+            if (key != null && !adapterConfig.commands[i].equals(adapterConfigCache.get(adapterAddress, key))) {
+                commandQueue.submit(configCommands[i]);
+                count++;
+            }
+        }
+        listener.onSessionStatus("Adapter still configured, " + count + " settings to apply");
+        commandQueue.submit(atrv, request220101, request220105);
+    }
+
+    /**
+     * probe reply without echo and with the configured protocol, e.g. "6" or "A6" for auto
+     */
+    private String getAdapterAddress() {
+        Connection c = connection;
+        return c != null ? c.adapterAddress : null;
+    }
+
+    private static boolean isProbeValid(byte[] data, int length, String protocol) {
+        if (protocol == null)
+            return false;
+        int start = 0, end = length;
+        while (start < end && isBlank(data[start])) start++;
+        while (end > start && isBlank(data[end - 1])) end--;
+        if (end - start == protocol.length() + 1 && data[start] == 'A')
+            start++;
+        if (end - start != protocol.length())
+            return false;
+        for (int i = 0; i < protocol.length(); i++)
+            if (data[start + i] != protocol.charAt(i))
+                return false;
+        return true;
+    }
+
+    private static boolean isBlank(byte c) {
+        return c == '\r' || c == '\n' || c == ' ' || c == '>';
+    }
+
+    private void onWatchdog() {
+        commandQueue.checkTimeouts();
+        pollScheduler.tick(System.nanoTime());
+    }
+
+    /**
+     * poll 220101 and 220105 with their own periods after init, else only the init batch polls.
+     * a sample is returned with onSessionSample after each poll
+     */
+    void setContinuousPolling(boolean continuous) {
+        continuousPolling = continuous;
+        post(() -> {
+            if (state != POLLING || continuous == pollScheduler.isRunning())
+                return;
+            if (continuous)
+                pollScheduler.start(System.nanoTime());
+            else
+                pollScheduler.stop();
+        });
+    }
+
+    /**
+     * @param millis period of 220101, the fast changing values, with continuous polling
+     */
+    void setPollInterval(long millis) {
+        pollScheduler.setPeriod(poll220101, millis);
+    }
+
+    void setSlowPollInterval(long millis) {
+        pollScheduler.setPeriod(poll220105, millis);
+    }
+
+    /**
+     * request 220101 and 220105 once, result is returned with onSessionSample
+     *
+     * @return false if the previous poll is still running
+     */
+    boolean poll() {
+        if (state != POLLING || request220101.isPending() || request220105.isPending())
+            return false;
+        commandQueue.submit(request220101, request220105);
+        return true;
+    }
+
+    /**
+     * ObdCommand.Callback
+     */
+    @Override
+    public void onResponse(ObdCommand command, byte[] data, int length) {
+        CaptureJournal journal = captureJournal;
+        if (journal != null) {
+            try {
+                journal.appendResponse(System.currentTimeMillis(), command.bytes, data, 0, length);
+            } catch (IOException e) {
+                captureJournal = null;
+                listener.onSessionStatus("Capture stopped: " + e.getMessage());
+            }
+        }
+        TelemetryBus<RawFrame> bus = frameBus;
+        if (bus != null && bus.hasSubscribers()) {
+            frame.set(command.name, System.currentTimeMillis(), data, length);
+            bus.publish(frame);
+        }
+        LatencyHistogram roundTrip = metrics.getCommand(command.name);
+        if (roundTrip != null)
+            roundTrip.record(command.getRoundTripNanos());
+        if (command == request220101) {
+            long start = System.nanoTime();
+            boolean decoded = bmsDecoder.decode220101(data, 0, length, bmsSample);
+            metrics.parse.record(System.nanoTime() - start);
+            if (!decoded)
+                listener.onSessionResponse(command.command, data, length);
+            if (!request220105.isPending()) // else sample is complete after 220105
+                publishSample(command);
+        } else if (command == request220105) {
+            long start = System.nanoTime();
+            boolean decoded = bmsDecoder.decode220105(data, 0, length, bmsSample);
+            metrics.parse.record(System.nanoTime() - start);
+            if (!decoded)
+                listener.onSessionResponse(command.command, data, length);
+            if (!request220101.isPending())
+                publishSample(command);
+        } else if (command == probe && state == INITIALIZING) { // not when disconnecting
+            if (isProbeValid(data, length, adapterConfig.getProtocol())) {
+                warmInit();
+            } else {
+                listener.onSessionResponse(command.command, data, length);
+                listener.onSessionStatus("Adapter was reset");
+                coldInit();
+            }
+        } else if (command.ecu == null) {
+            listener.onSessionResponse(command.command, data, length);
+            String key = AdapterConfig.settingKey(command.command);
+            String adapterAddress = getAdapterAddress();
+            if (key != null && adapterAddress != null && ObdCommandQueue.isOk(data, length))
+                adapterConfigCache.put(adapterAddress, key, command.command);
+            if (command == atrv)
+                listener.onSessionStatus(warmInit ? "Initialization complete (warm)!" : "Initialization complete!");
+        }
+        checkDrained(command);
+    }
+
+    /**
+     * samples of the init batch and of polls, not while draining
+     */
+    private void publishSample(ObdCommand last) {
+        int s = state;
+        if (s == INITIALIZING) {
+            metrics.init.record(System.nanoTime() - initStartNanos);
+            Connection c = connection;
+            post(() -> onInitialized(c));
+        } else if (s != POLLING) {
+            return;
+        }
+        bmsSample.timeNanos = last.completedNanos;
+        bmsSample.timeMillis = System.currentTimeMillis();
+        BmsSample sample = samplePool.acquire();
+        sample.copyFrom(bmsSample);
+        listener.onSessionSample(sample);
+        metrics.publish.record(System.nanoTime() - last.completedNanos);
+    }
+
+    @Override
+    public void onError(ObdCommand command, Exception e) {
+        if (state == DRAINING) {
+            checkDrained(command); // e.g. timeout, disconnecting anyway
+            return;
+        }
+        if (command.ecu != null && command != request220101 && command != request220105) {
+            listener.onSessionStatus(command.name + " failed: " + e.getMessage());
+            return;
+        }
+        if (command == probe || AdapterConfig.settingKey(command.command) != null)
+            adapterConfigCache.clear(getAdapterAddress()); // adapter state unknown
+        fail(command.command, e);
+    }
+}
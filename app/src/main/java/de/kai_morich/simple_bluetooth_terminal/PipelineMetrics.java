@@ -0,0 +1,86 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * timings of the whole pipeline, from connect to the published sample
+ *
+ * histograms are registered up front, recording only looks them up and does not allocate.
+ * kept across reconnects until reset.
+ */
+final class PipelineMetrics {
+
+    final LatencyHistogram connect = new LatencyHistogram("connect");
+    final LatencyHistogram init = new LatencyHistogram("init (connected -> first sample)");
+    final LatencyHistogram parse = new LatencyHistogram("parse");
+    final LatencyHistogram publish = new LatencyHistogram("sample to publish");
+
+    private final Map<String, LatencyHistogram> commands = new HashMap<>();
+    private final List<LatencyHistogram> commandList = new ArrayList<>(); // registration order
+    private volatile long startNanos = System.nanoTime();
+    private volatile long bytesRead; // written by the reader thread only
+
+    /**
+     * round trip histogram of a command, from write to prompt
+     */
+    synchronized LatencyHistogram register(String command) {
+        LatencyHistogram histogram = commands.get(command);
+        if (histogram == null) {
+            histogram = new LatencyHistogram(command);
+            commands.put(command, histogram);
+            commandList.add(histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * @return null if not registered
+     */
+    synchronized LatencyHistogram getCommand(String command) {
+        return commands.get(command);
+    }
+
+    void addBytesRead(int bytes) {
+        //noinspection NonAtomicOperationOnVolatileField
+        bytesRead += bytes;
+    }
+
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    double getBytesPerSecond() {
+        long elapsed = System.nanoTime() - startNanos;
+        return elapsed > 0 ? bytesRead * 1e9 / elapsed : 0;
+    }
+
+    synchronized void reset() {
+        connect.reset();
+        init.reset();
+        parse.reset();
+        publish.reset();
+        for (LatencyHistogram histogram : commandList)
+            histogram.reset();
+        bytesRead = 0;
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * text snapshot, one histogram per line
+     */
+    synchronized StringBuilder appendTo(StringBuilder sb) {
+        connect.appendTo(sb).append('\n');
+        init.appendTo(sb).append('\n');
+        for (LatencyHistogram histogram : commandList)
+            if (histogram.getCount() > 0)
+                histogram.appendTo(sb).append('\n');
+        parse.appendTo(sb).append('\n');
+        publish.appendTo(sb).append('\n');
+        sb.append("read: ").append(bytesRead).append(" bytes, ")
+                .append(Math.round(getBytesPerSecond())).append(" bytes/s");
+        return sb;
+    }
+}
@@ -0,0 +1,183 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.Arrays;
+
+/**
+ * polls each request with its own period and priority
+ *
+ * tick() is called periodically. a bus slot is free when the command queue is empty,
+ * then all due requests are queued at once, so one slot is used by as many requests as
+ * are due and no request waits for a separate timer.
+ * requests are grouped by ECU, as each change of the header costs a round trip: first the
+ * ECU still selected in the adapter, then the others in order of their most important
+ * request. within an ECU the highest priority is sent first.
+ * periods are fixed rate: a late request is not sent twice to catch up, the skipped
+ * periods are counted as missed deadlines. drift = time sent - time due.
+ * only runs with continuous polling (persistent session in the service). without it each
+ * connection sends the init batch with 220101 and 220105 once and disconnects after the
+ * sample, the periods and requests added with ObdSession.addPoll() are not used.
+ */
+final class PollScheduler {
+
+    static final class Entry {
+        final ObdCommand command;
+        final int priority;
+        long periodNanos;
+        long dueNanos;
+
+        // statistics
+        long runs;
+        long missed;
+        long driftSumNanos;
+        long maxDriftNanos;
+
+        Entry(ObdCommand command, long periodMillis, int priority) {
+            this.command = command;
+            this.periodNanos = periodMillis * 1000000L;
+            this.priority = priority;
+        }
+
+        long getPeriodMillis() {
+            return periodNanos / 1000000L;
+        }
+
+        /**
+         * @return mean drift in milliseconds
+         */
+        double getMeanDriftMillis() {
+            return runs > 0 ? driftSumNanos / 1e6 / runs : 0;
+        }
+
+        double getMaxDriftMillis() {
+            return maxDriftNanos / 1e6;
+        }
+    }
+
+    private final ObdCommandQueue commandQueue;
+    private Entry[] entries = new Entry[0];
+    private Entry[] due = new Entry[0];
+    private boolean running;
+    private long slots;
+
+    PollScheduler(ObdCommandQueue commandQueue) {
+        this.commandQueue = commandQueue;
+    }
+
+    /**
+     * @param priority higher is sent first within a slot
+     */
+    synchronized Entry add(ObdCommand command, long periodMillis, int priority) {
+        if (periodMillis <= 0)
+            throw new IllegalArgumentException("period " + periodMillis);
+        Entry entry = new Entry(command, periodMillis, priority);
+        entries = Arrays.copyOf(entries, entries.length + 1);
+        int i = entries.length - 1;
+        while (i > 0 && entries[i - 1].priority < priority) {
+            entries[i] = entries[i - 1];
+            i--;
+        }
+        entries[i] = entry;
+        due = new Entry[entries.length];
+        return entry;
+    }
+
+    /**
+     * new period applies from the next run on
+     */
+    synchronized void setPeriod(Entry entry, long periodMillis) {
+        if (periodMillis <= 0)
+            throw new IllegalArgumentException("period " + periodMillis);
+        long periodNanos = periodMillis * 1000000L;
+        entry.dueNanos += periodNanos - entry.periodNanos;
+        entry.periodNanos = periodNanos;
+    }
+
+    /**
+     * first run of each entry one period after now
+     */
+    synchronized void start(long nowNanos) {
+        for (Entry entry : entries)
+            entry.dueNanos = nowNanos + entry.periodNanos;
+        running = true;
+    }
+
+    synchronized void stop() {
+        running = false;
+    }
+
+    synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return number of requests queued
+     */
+    synchronized int tick(long nowNanos) {
+        if (!running || commandQueue.getQueueDepth() != 0)
+            return 0;
+        int count = 0;
+        for (Entry entry : entries) {
+            long drift = nowNanos - entry.dueNanos;
+            if (drift < 0 || entry.command.isPending())
+                continue;
+            long skipped = drift / entry.periodNanos;
+            entry.missed += skipped;
+            entry.dueNanos += (skipped + 1) * entry.periodNanos;
+            entry.runs++;
+            entry.driftSumNanos += drift;
+            entry.maxDriftNanos = Math.max(entry.maxDriftNanos, drift);
+            due[count++] = entry;
+        }
+        if (count == 0)
+            return 0;
+        slots++;
+        Ecu selected = null;
+        for (int i = 0; i < count && selected == null; i++) {
+            Ecu ecu = due[i].command.ecu;
+            if (ecu != null && commandQueue.isSelectedEcu(ecu))
+                selected = ecu;
+        }
+        submit(count, null); // AT commands, no header
+        if (selected != null)
+            submit(count, selected);
+        for (int i = 0; i < count; i++)
+            if (due[i] != null)
+                submit(count, due[i].command.ecu);
+        return count;
+    }
+
+    /**
+     * queue the due requests of one ECU, in priority order
+     */
+    private void submit(int count, Ecu ecu) {
+        for (int i = 0; i < count; i++) {
+            if (due[i] != null && due[i].command.ecu == ecu) {
+                commandQueue.submit(due[i].command);
+                due[i] = null;
+            }
+        }
+    }
+
+    synchronized void resetStatistics() {
+        slots = 0;
+        for (Entry entry : entries) {
+            entry.runs = 0;
+            entry.missed = 0;
+            entry.driftSumNanos = 0;
+            entry.maxDriftNanos = 0;
+        }
+    }
+
+    synchronized StringBuilder appendStatistics(StringBuilder sb) {
+        sb.append("slots: ").append(slots);
+        for (Entry entry : entries) {
+            sb.append('\n').append(entry.command.name)
+                    .append(" every ").append(entry.getPeriodMillis()).append(" ms")
+                    .append(": runs ").append(entry.runs)
+                    .append(", missed ").append(entry.missed)
+                    .append(", drift ").append(Math.round(entry.getMeanDriftMillis()))
+                    .append(" ms (max ").append(Math.round(entry.getMaxDriftMillis())).append(" ms)");
+        }
+        return sb;
+    }
+}
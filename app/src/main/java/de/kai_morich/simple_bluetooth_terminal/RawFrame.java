@@ -0,0 +1,42 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.nio.charset.Charset;
+
+/**
+ * raw reply of a command as published on the frame bus, reusable
+ */
+final class RawFrame {
+
+    static final TelemetryBus.Type<RawFrame> TYPE = new TelemetryBus.Type<RawFrame>() {
+        @Override
+        public RawFrame create() {
+            return new RawFrame();
+        }
+
+        @Override
+        public void copy(RawFrame from, RawFrame to) {
+            to.set(from.command, from.timeMillis, from.data, from.length);
+        }
+    };
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    String command;
+    long timeMillis;
+    byte[] data = new byte[256]; // grows for longer replies
+    int length;
+
+    void set(String command, long timeMillis, byte[] data, int length) {
+        this.command = command;
+        this.timeMillis = timeMillis;
+        if (this.data.length < length)
+            this.data = new byte[Math.max(length, this.data.length * 2)];
+        System.arraycopy(data, 0, this.data, 0, length);
+        this.length = length;
+    }
+
+    @Override
+    public String toString() {
+        return command + " Response: " + new String(data, 0, length, ASCII);
+    }
+}
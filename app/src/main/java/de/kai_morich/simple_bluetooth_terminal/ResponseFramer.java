@@ -0,0 +1,84 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.Arrays;
+
+/**
+ * collects the chunks read from the socket and splits them into lines and responses
+ *
+ * bytes are scanned once, as they arrive. lines end with CR (or LF), responses with the
+ * ELM327 '>' prompt. both are handed out as slices of the internal buffer, no copies.
+ * the buffer is a sliding window: consumed bytes are dropped by moving the start, the
+ * remaining bytes are moved to the front only if a read does not fit behind them.
+ * usually a read ends with the prompt and the window is empty again.
+ */
+final class ResponseFramer {
+
+    interface Listener {
+        /**
+         * line without line end, empty lines are skipped. data is only valid during the call
+         */
+        void onLine(byte[] data, int offset, int length);
+
+        /**
+         * complete response including echo, line ends and prompt. data is only valid during the call
+         */
+        void onResponse(byte[] data, int offset, int length);
+    }
+
+    private static final int MAX_CAPACITY = 64 * 1024; // no prompt within this many bytes = garbage
+
+    private byte[] buffer = new byte[1024];
+    private int start;     // first byte of the pending response
+    private int lineStart; // first byte of the pending line
+    private int scanned;   // bytes before were already scanned
+    private int end;       // end of received bytes
+    private int resets;    // detects a reset by the listener
+
+    void reset() {
+        start = lineStart = scanned = end = 0;
+        resets++;
+    }
+
+    void onData(byte[] data, int off, int len, Listener listener) {
+        if (end + len > buffer.length)
+            makeRoom(len);
+        System.arraycopy(data, off, buffer, end, len);
+        end += len;
+
+        int resetCount = resets;
+        while (scanned < end) {
+            byte c = buffer[scanned++];
+            if (c != '\r' && c != '\n' && c != '>')
+                continue;
+            if (scanned - 1 > lineStart)
+                listener.onLine(buffer, lineStart, scanned - 1 - lineStart);
+            if (resets != resetCount)
+                return;
+            lineStart = scanned;
+            if (c == '>') {
+                listener.onResponse(buffer, start, scanned - start);
+                if (resets != resetCount)
+                    return;
+                start = scanned;
+            }
+        }
+        if (start == end)
+            start = lineStart = scanned = end = 0;
+    }
+
+    private void makeRoom(int len) {
+        int pending = end - start;
+        if (pending + len > MAX_CAPACITY) {
+            reset(); // drop the incomplete response, the command times out
+            pending = 0;
+        } else if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, pending);
+            lineStart -= start;
+            scanned -= start;
+            end = pending;
+            start = 0;
+        }
+        if (pending + len > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, pending + len));
+    }
+}
@@ -0,0 +1,154 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * RFCOMM connect methods, tried in the order learned for each device, by device address
+ *
+ * SECURE: createRfcommSocketToServiceRecord, SDP lookup of the SPP uuid and an authenticated link.
+ * INSECURE: createInsecureRfcommSocketToServiceRecord, same lookup without authentication.
+ * CHANNEL_1: createRfcommSocket(1) by reflection, no SDP lookup, ELM327 clones serve SPP on channel 1.
+ * the method that connected last time is tried first, then the others in this order. an
+ * attempt is abandoned at its deadline, DEADLINE_FACTOR times the last connect time of the
+ * learned method, else DEFAULT_DEADLINE_MILLIS, a stalled SDP lookup does not block for the
+ * ~12 s of the bluetooth stack. a learned method that fails is forgotten.
+ * the service saves the learned methods with write() and reads them back after a restart.
+ */
+final class RfcommStrategies {
+
+    static final int SECURE = 0;
+    static final int INSECURE = 1;
+    static final int CHANNEL_1 = 2;
+    static final String[] NAMES = {"secure", "insecure", "channel 1"};
+
+    static final long DEFAULT_DEADLINE_MILLIS = 8000;
+    static final long MIN_DEADLINE_MILLIS = 2000;
+    static final int DEADLINE_FACTOR = 3;
+    private static final int VERSION = 1;
+
+    private static final class Learned {
+        final int strategy;
+        final long millis;
+
+        Learned(int strategy, long millis) {
+            this.strategy = strategy;
+            this.millis = millis;
+        }
+    }
+
+    private final Map<String, Learned> learned = new HashMap<>();
+
+    // statistics
+    private final LatencyHistogram[] connectTimes = new LatencyHistogram[NAMES.length];
+    private final long[] failures = new long[NAMES.length];
+    private final long[] abandoned = new long[NAMES.length];
+    private final LatencyHistogram totalTime = new LatencyHistogram("connect total");
+    private long learnedHits;
+
+    RfcommStrategies() {
+        for (int i = 0; i < NAMES.length; i++)
+            connectTimes[i] = new LatencyHistogram("connect " + NAMES[i]);
+    }
+
+    /**
+     * @return all methods, the learned one first
+     */
+    synchronized int[] order(String address) {
+        int[] order = {SECURE, INSECURE, CHANNEL_1};
+        Learned l = learned.get(address);
+        if (l != null) {
+            for (int i = l.strategy; i > 0; i--)
+                order[i] = order[i - 1];
+            order[0] = l.strategy;
+        }
+        return order;
+    }
+
+    synchronized long getDeadlineMillis(String address, int strategy) {
+        Learned l = learned.get(address);
+        if (l == null || l.strategy != strategy)
+            return DEFAULT_DEADLINE_MILLIS;
+        return Math.min(Math.max(l.millis * DEADLINE_FACTOR, MIN_DEADLINE_MILLIS), DEFAULT_DEADLINE_MILLIS);
+    }
+
+    /**
+     * @return learned method, -1 if none
+     */
+    synchronized int getLearned(String address) {
+        Learned l = learned.get(address);
+        return l != null ? l.strategy : -1;
+    }
+
+    /**
+     * @param attemptNanos this method
+     * @param totalNanos   all methods tried, including failed ones
+     */
+    synchronized void onConnected(String address, int strategy, long attemptNanos, long totalNanos) {
+        Learned l = learned.get(address);
+        if (l != null && l.strategy == strategy)
+            learnedHits++;
+        learned.put(address, new Learned(strategy, attemptNanos / 1000000));
+        connectTimes[strategy].record(attemptNanos);
+        totalTime.record(totalNanos);
+    }
+
+    /**
+     * @param timedOut abandoned at the deadline
+     */
+    synchronized void onFailed(String address, int strategy, boolean timedOut) {
+        Learned l = learned.get(address);
+        if (l != null && l.strategy == strategy)
+            learned.remove(address);
+        failures[strategy]++;
+        if (timedOut)
+            abandoned[strategy]++;
+    }
+
+    synchronized void write(DataOutput out) throws IOException {
+        out.writeInt(VERSION);
+        out.writeInt(learned.size());
+        for (Map.Entry<String, Learned> e : learned.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeInt(e.getValue().strategy);
+            out.writeLong(e.getValue().millis);
+        }
+    }
+
+    /**
+     * methods written by write(), a method learned since start is kept
+     */
+    void read(DataInput in) throws IOException {
+        if (in.readInt() != VERSION)
+            throw new IOException("unknown connect method version");
+        Map<String, Learned> read = new HashMap<>(); // nothing installed from a truncated file
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String address = in.readUTF();
+            int strategy = in.readInt();
+            long millis = in.readLong();
+            if (strategy < 0 || strategy >= NAMES.length)
+                throw new IOException("invalid connect method " + strategy);
+            read.put(address, new Learned(strategy, millis));
+        }
+        synchronized (this) {
+            for (Map.Entry<String, Learned> e : read.entrySet())
+                if (!learned.containsKey(e.getKey()))
+                    learned.put(e.getKey(), e.getValue());
+        }
+    }
+
+    synchronized StringBuilder appendStatistics(StringBuilder sb) {
+        sb.append("connect: ").append(learnedHits).append(" with learned method");
+        for (int i = 0; i < NAMES.length; i++) {
+            sb.append('\n');
+            connectTimes[i].appendTo(sb).append(", ").append(failures[i]).append(" failed, ")
+                    .append(abandoned[i]).append(" abandoned");
+        }
+        sb.append('\n');
+        return totalTime.appendTo(sb);
+    }
+}
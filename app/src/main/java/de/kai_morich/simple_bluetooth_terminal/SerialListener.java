@@ -1,11 +1,8 @@
 package de.kai_morich.simple_bluetooth_terminal;
 
-import java.util.ArrayDeque;
-
 interface SerialListener {
     void onSerialConnect      ();
     void onSerialConnectError (Exception e);
-    void onSerialRead         (byte[] data);                // socket -> service
-    void onSerialRead         (ArrayDeque<byte[]> datas);   // service -> UI thread
+    void onSerialRead         (byte[] data, int length);    // socket -> service, data is reused after the call
     void onSerialIoError      (Exception e);
 }
@@ -7,71 +7,207 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.net.ConnectivityManager;
+import android.os.Looper;
 
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
-
+import androidx.core.content.ContextCompat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.nio.charset.Charset;
-import java.util.ArrayDeque;
-
-import java.util.Map;
+import java.io.Writer;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  * create notification and queue serial data while activity is not in the foreground
- * use listener chain: SerialSocket -> SerialService -> UI fragment
+ * use listener chain: SerialTransport -> ObdSession -> SerialService -> UI fragment
  */
-public class SerialService extends Service implements SerialListener {
-
-    public interface SerialResponseCallback {
-        void onResponse(byte[] data);
-        void onError(Exception e);
-    }
+public class SerialService extends Service implements ObdSession.Listener {
 
     class SerialBinder extends Binder {
         SerialService getService() { return SerialService.this; }
     }
 
+    interface MetricsCallback {
+        void onMetrics(String metrics);
+    }
+
     private final IBinder binder;
 
-    private SerialSocket socket;
-    private boolean connected;
-    private final StringBuilder responseBuffer = new StringBuilder();
+    // session thread: connection state, command deadlines and polling
+    private final ScheduledExecutorService sessionThread = Executors.newSingleThreadScheduledExecutor();
+    // connect and read of SerialSocket, reused for every connection
+    private final ExecutorService ioThread = Executors.newSingleThreadExecutor();
+    // telemetry store and capture journal, fed by the sample bus
+    private final ExecutorService storageThread = Executors.newSingleThreadExecutor();
+    // uploads of spooled samples, slow networks never delay the reader or storage thread
+    private final ScheduledExecutorService uploadThread = Executors.newSingleThreadScheduledExecutor();
+    // history exports and metrics, long reads never delay the storage or main thread
+    private final ExecutorService queryThread = Executors.newSingleThreadExecutor();
+    private final ObdSession session = new ObdSession(this, sessionThread);
+    private SerialTransport.Factory transportFactory;
+    private final RfcommStrategies rfcommStrategies = new RfcommStrategies(); // connect method per device
+    private File learnedFile; // connect methods and adapter timing
+    private long learnedSavedMillis; // storage thread
+    private final TelemetryStore telemetry = new TelemetryStore(TELEMETRY_CAPACITY, BmsSample.COLUMNS);
+    private final float[] telemetryRow = new float[BmsSample.COLUMNS.length];
+    private final TelemetryRollup rollup = new TelemetryRollup(telemetry); // 10 s, 1 min, 1 h buckets
+    private volatile CaptureJournal captureJournal;
+    private volatile HistoryFile history; // written on the storage thread
+    private UploadSpool spool; // storage thread
+    private volatile Uploader uploader;
+    private final TelemetryBus<BmsSample> sampleBus = new TelemetryBus<>(BmsSample.TYPE);
+    private final TelemetryBus<RawFrame> frameBus = new TelemetryBus<>(RawFrame.TYPE);
+    private final LatestSample latestSample = new LatestSample(); // written by the reader thread
+    private final TripAggregator trips = new TripAggregator(TRIP_HISTORY, this::onTripEnd); // storage thread
 
     private String currentDeviceAddress = null;
 
-    private SerialResponseCallback pendingCallback = null;
-
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uploader u = uploader;
+            if (u != null)
+                u.wake(); // skip the backoff when the network is back
+        }
+    };
+    // own handler for status and telemetry delivery, stop() removes all callbacks of mainHandler
+    private final Handler deliveryHandler = new Handler(Looper.getMainLooper());
+    private final StatusLog statusLog = new StatusLog(STATUS_LOG_CAPACITY, this::publishStatus, deliveryHandler::postDelayed);
 
     private volatile boolean obdRunning = false;
     private int delaySeconds = 20;
+    private volatile boolean persistentSession = false;
+    private int pollIntervalMillis = 1000;
+
+    private static final int TELEMETRY_CAPACITY = 4 * 3600; // 4 hours at 1 sample per second
+    private static final int CAPTURE_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int CAPTURE_SEGMENTS = 16;
+    private static final int RECONNECT_DELAY_MILLIS = 5000;
+    private static final int STATUS_LOG_CAPACITY = 256;
+    private static final int STORAGE_QUEUE_CAPACITY = 64;
+    private static final int TRIP_HISTORY = 32;
+    private static final int ODOMETER_POLL_MILLIS = 60000;
+    private static final int UPLOAD_BATCH_ROWS = 3600;
+    private static final long UPLOAD_BATCH_MILLIS = 5 * 60 * 1000;
+    private static final long UPLOAD_SPOOL_BYTES = 64L * 1024 * 1024;
+    private static final long LEARNED_SAVE_MILLIS = 10 * 60 * 1000;
+    private static final String PREFERENCE_UPLOAD_ENDPOINT = "upload_endpoint";
+    private static final int STATUS_NOTIFICATION_ID = 2;
+    private static final int ERROR_NOTIFICATION_ID = 6;
 
     /**
      * Lifecylce
      */
     public SerialService() {
         binder = new SerialBinder();
+        transportFactory = deviceAddress -> {
+            BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+            BluetoothDevice device = bluetoothAdapter.getRemoteDevice(deviceAddress);
+            return new SerialSocket(getApplicationContext(), device, ioThread, sessionThread, rfcommStrategies);
+        };
+        session.setFrameBus(frameBus);
+        session.addPoll(Ecu.CLUSTER, "22B002", ODOMETER_POLL_MILLIS, 0); // odometer, raw on the frame bus, persistent session only
+        sampleBus.subscribe(TelemetryBus.Policy.BATCH, STORAGE_QUEUE_CAPACITY, storageThread, this::storeSamples);
     }
 
     @Override
     public void onCreate() {
         super.onCreate();
         initNotification();
+        File captureDir = new File(getFilesDir(), "capture");
+        sessionThread.execute(() -> { // recovery scans the last segment
+            try {
+                captureJournal = new CaptureJournal(captureDir, CAPTURE_SEGMENT_SIZE, CAPTURE_SEGMENTS, storageThread);
+                session.setCaptureJournal(captureJournal);
+            } catch (IOException e) {
+                logError("capture", e);
+            }
+        });
+        learnedFile = new File(getFilesDir(), "learned.bin");
+        storageThread.execute(this::readLearned);
+        File historyFile = new File(getFilesDir(), "history.bin");
+        storageThread.execute(() -> { // reads the block index
+            try {
+                HistoryFile h = new HistoryFile(historyFile, BmsSample.COLUMNS);
+                history = h;
+                if (!queryThread.isShutdown())
+                    queryThread.execute(() -> seedRollup(h));
+            } catch (IOException e) {
+                logError("history", e);
+            }
+        });
+        File spoolDir = new File(getFilesDir(), "spool");
+        String endpoint = getPreferences().getString(PREFERENCE_UPLOAD_ENDPOINT, null);
+        storageThread.execute(() -> { // lists the spooled batches
+            try {
+                spool = new UploadSpool(spoolDir, BmsSample.COLUMNS, UPLOAD_BATCH_ROWS, UPLOAD_BATCH_MILLIS, UPLOAD_SPOOL_BYTES);
+                uploader = new Uploader(spool, uploadThread);
+                if (endpoint != null)
+                    uploader.setEndpoint(new URL(endpoint));
+            } catch (IOException e) {
+                logError("upload", e);
+            }
+        });
+        ContextCompat.registerReceiver(this, connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION), ContextCompat.RECEIVER_NOT_EXPORTED);
     }
 
     @Override
     public void onDestroy() {
         cancelNotification();
         disconnect();
+        finishTrip();
+        unregisterReceiver(connectivityReceiver);
+        deliveryHandler.removeCallbacksAndMessages(null);
+        session.setCaptureJournal(null);
+        session.setFrameBus(null);
+        storageThread.execute(() -> { // after the queued samples
+            saveLearned(true);
+            if (captureJournal != null)
+                captureJournal.close();
+            if (history != null) {
+                try {
+                    history.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (spool != null) {
+                try {
+                    spool.close(); // the open batch is uploaded next time
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        storageThread.shutdown();
+        queryThread.shutdown(); // a running export reads with its own file handle
+        uploadThread.shutdownNow(); // an interrupted batch stays spooled
+        sessionThread.shutdown();
+        ioThread.shutdown(); // reader ends with the closed socket
         super.onDestroy();
     }
 
@@ -85,67 +221,150 @@ public class SerialService extends Service implements SerialListener {
      * Api
      */
 
-    public void connect(String deviceAddress) {
-        try {
-            BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-            BluetoothDevice device = bluetoothAdapter.getRemoteDevice(deviceAddress);
-            logStatus("pending connection...");
-            connected = true;
-            socket = new SerialSocket(getApplicationContext(), device);
-            socket.connect(this);
+    /**
+     * history of decoded samples, can be read from any thread
+     */
+    TelemetryStore getTelemetryStore() {
+        return telemetry;
+    }
 
-        } catch (Exception e) {
-            logError("connect", e, 4);
-            disconnect();
-        }
+    /**
+     * latency percentiles, throughput and poll statistics as text, e.g. to show or export.
+     * built on the query thread, callback on the main thread
+     */
+    void getMetricsSnapshot(MetricsCallback callback) {
+        queryThread.execute(() -> {
+            String metrics = getMetricsSnapshot();
+            deliveryHandler.post(() -> callback.onMetrics(metrics));
+        });
     }
 
-    public void disconnect() {
-        StringWriter sw = new StringWriter();
-        new Throwable().printStackTrace(new PrintWriter(sw));
-        String fullMessage = "DISCONNECT CALLED" + "\n\nStackTrace:\n" + sw.toString();
-        logStatus("disconnected: " + fullMessage);
-        connected = false; // ignore data,errors while disconnecting
-        pendingCallback = null;
-        if(socket != null) {
-            socket.disconnect();
-            socket = null;
+    private String getMetricsSnapshot() {
+        StringBuilder sb = new StringBuilder(2048);
+        sb.append("state: ").append(ObdSession.getStateName(session.getState())).append("\n\n");
+        session.getMetrics().appendTo(sb).append("\n\n");
+        rfcommStrategies.appendStatistics(sb).append("\n\n");
+        session.getCommandQueue().appendStatistics(sb).append("\n\n");
+        session.getAdaptiveTiming().appendStatistics(sb).append("\n\n");
+        session.getPollScheduler().appendStatistics(sb).append("\n\n");
+        trips.appendTo(sb, 3).append("\n\n");
+        HistoryFile h = history;
+        if (h != null) {
+            try {
+                h.appendStatistics(sb).append("\n\n");
+            } catch (IOException ignored) {
+            }
         }
+        Uploader u = uploader;
+        if (u != null)
+            u.appendStatistics(sb).append("\n\n");
+        statusLog.appendTo(sb, 50);
+        return sb.toString();
+    }
+
+    /**
+     * newest sample for the dashboard, read on the main thread only
+     */
+    LatestSample getLatestSample() {
+        return latestSample;
     }
 
-    public void write(byte[] data) throws IOException {
-        if(!connected)
-            throw new IOException("not connected");
-        socket.write(data);
+    /**
+     * history for charts, e.g. getRollup().chart(BmsSample.SOC_BMS, from, to, width, times, values), any thread
+     */
+    TelemetryRollup getRollup() {
+        return rollup;
     }
 
-    private void sendCommand(String str) throws IOException {
-        byte[] bytes = (str + "\r").getBytes(Charset.forName("US-ASCII"));
-        write(bytes);
+    /**
+     * write the stored samples with fromMillis <= time < toMillis as csv, on the query thread
+     */
+    void exportHistory(long fromMillis, long toMillis, File csv) {
+        queryThread.execute(() -> {
+            HistoryFile h = history;
+            if (h == null)
+                return;
+            long start = System.nanoTime();
+            try (Writer writer = new BufferedWriter(new FileWriter(csv), 64 * 1024)) {
+                long rows = h.exportCsv(fromMillis, toMillis, writer);
+                logSuccess("History exported: " + rows + " rows in " + (System.nanoTime() - start) / 1000000 + " ms");
+            } catch (IOException e) {
+                logError("history export", e);
+            }
+        });
     }
 
-    public void sendAndReceive(String command, SerialResponseCallback callback) {
-        if (!connected) {
-            callback.onError(new IOException("Not connected"));
-            return;
-        }
+    /**
+     * spool decoded samples and upload them as gzip csv batches with POST to url, null to stop.
+     * kept across restarts, spooled batches are sent when the endpoint is reachable
+     */
+    void setUploadEndpoint(String url) throws IOException {
+        URL endpoint = url == null ? null : new URL(url);
+        getPreferences().edit().putString(PREFERENCE_UPLOAD_ENDPOINT, url).apply();
+        storageThread.execute(() -> {
+            if (uploader != null)
+                uploader.setEndpoint(endpoint);
+        });
+    }
 
-        if (!obdRunning) {
-            callback.onError(new IOException("USER stopped"));
-            return;
-        }
+    /**
+     * drive and charge sessions, any thread
+     */
+    TripAggregator getTrips() {
+        return trips;
+    }
+
+    /**
+     * decoded samples, delivered in batches on the main thread.
+     * a slow subscriber only loses samples of its own queue, it never stalls the reader
+     */
+    TelemetryBus<BmsSample>.Subscription subscribeSamples(TelemetryBus.Policy policy, int capacity, TelemetryBus.Subscriber<BmsSample> subscriber) {
+        return sampleBus.subscribe(policy, capacity, deliveryHandler::post, subscriber);
+    }
+
+    /**
+     * every raw reply, delivered in batches on the main thread
+     */
+    TelemetryBus<RawFrame>.Subscription subscribeFrames(TelemetryBus.Policy policy, int capacity, TelemetryBus.Subscriber<RawFrame> subscriber) {
+        return frameBus.subscribe(policy, capacity, deliveryHandler::post, subscriber);
+    }
 
-        // Salva il callback
-        pendingCallback = callback;
+    /**
+     * e.g. Elm327Simulator to run without bluetooth adapter
+     */
+    void setTransportFactory(SerialTransport.Factory transportFactory) {
+        this.transportFactory = transportFactory;
+    }
 
-        // Invia i dati
+    public void connect(String deviceAddress) {
         try {
-            sendCommand(command);
+            logStatus("pending connection...");
+            session.connect(deviceAddress, transportFactory.create(deviceAddress));
         } catch (Exception e) {
-            callback.onError(e);
+            logError("connect", e);
+            disconnect();
+            finishTrip();
         }
     }
 
+    /**
+     * also after every sample without persistent session, so the open trip is kept and
+     * continues with the samples of the next cycle. TRIP_GAP_MILLIS ends it if they stop
+     */
+    public void disconnect() {
+        logStatus("disconnected");
+        session.disconnect();
+        if (!storageThread.isShutdown())
+            storageThread.execute(() -> saveLearned(false));
+    }
+
+    /**
+     * end the open trip after the queued samples, e.g. on stop() or a lost link
+     */
+    private void finishTrip() {
+        if (!storageThread.isShutdown())
+            storageThread.execute(trips::finish);
+    }
 
     private void initNotification() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -171,7 +390,7 @@ public class SerialService extends Service implements SerialListener {
                 .setSmallIcon(R.drawable.ic_notification)
                 .setColor(getResources().getColor(R.color.colorPrimary))
                 .setContentTitle(getResources().getString(R.string.app_name))
-                .setContentText(socket != null ? "Connected to "+socket.getName() : "Background Service")
+                .setContentText(session.getTransportName() != null ? "Connected to "+session.getTransportName() : "Background Service")
                 //.setContentIntent(restartPendingIntent)
                 .setOngoing(true);
                 //.addAction(new NotificationCompat.Action(R.drawable.ic_clear_white_24dp, "Disconnect", disconnectPendingIntent));
@@ -210,179 +429,195 @@ public class SerialService extends Service implements SerialListener {
         }
     }
 
-    private void logError(String title, Exception e, int notificationId) {
-        StringWriter sw = new StringWriter();
-        e.printStackTrace(new PrintWriter(sw));
-        createSecondaryNotification("error: " + title, sw.toString(), notificationId);
+    /**
+     * called by statusLog at most once per status interval, errors get an own notification
+     */
+    private void publishStatus(int level, String title, String text) {
+        createSecondaryNotification(title, text, level == StatusLog.ERROR ? ERROR_NOTIFICATION_ID : STATUS_NOTIFICATION_ID);
+    }
+
+    /**
+     * storage thread
+     */
+    private void readLearned() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(learnedFile)))) {
+            rfcommStrategies.read(in);
+            session.getAdaptiveTiming().read(in);
+        } catch (FileNotFoundException ignored) { // first start
+        } catch (IOException e) {
+            logError("learned", e);
+        }
     }
 
-    private void logStatus(String text) {
-        createSecondaryNotification("status", text, 2);
+    /**
+     * storage thread, replaced with a rename, a torn write leaves the previous file
+     *
+     * @param force else at most every LEARNED_SAVE_MILLIS, disconnect() runs for every
+     *              sample without persistent session
+     */
+    private void saveLearned(boolean force) {
+        long now = System.currentTimeMillis();
+        if (!force && now - learnedSavedMillis < LEARNED_SAVE_MILLIS)
+            return;
+        learnedSavedMillis = now;
+        File temp = new File(learnedFile.getPath() + ".tmp");
+        try {
+            try (FileOutputStream f = new FileOutputStream(temp)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(f));
+                rfcommStrategies.write(out);
+                session.getAdaptiveTiming().write(out);
+                out.flush();
+                f.getFD().sync();
+            }
+            if (!temp.renameTo(learnedFile))
+                throw new IOException("cannot rename " + temp);
+        } catch (IOException e) {
+            logError("learned", e);
+        }
     }
 
-    private void logSuccess(String text) {
-        logSuccess(text, 3);
+    private SharedPreferences getPreferences() {
+        return getSharedPreferences("upload", Context.MODE_PRIVATE);
     }
 
-    private void logSuccess(String text, int notificationId) {
-        createSecondaryNotification("success", text, notificationId);
+    private void logError(String title, Exception e) {
+        statusLog.addError(title, e);
     }
 
+    private void logStatus(String text) {
+        statusLog.add(StatusLog.STATUS, text);
+    }
 
+    private void logSuccess(String text) {
+        statusLog.add(StatusLog.SUCCESS, text);
+    }
 
-        /**
-         * SerialListener
-         */
+    /**
+     * ObdSession.Listener
+     */
     @Override
-    public void onSerialConnect() {
-        logStatus("connected");
-
-        new android.os.Handler(android.os.Looper.getMainLooper())
-                .postDelayed(() -> {
-                    logStatus("Starting OBD init after delay...");
-                    runObdInitSequence();
-                }, 1000);
+    public void onSessionConnected() {
+        logStatus("connected, starting OBD init after delay...");
     }
 
     @Override
-    public void onSerialConnectError(Exception e) {
-        // handle error internally
-        logError("onSerialConnectError", e, 8);
-        disconnect();
+    public void onSessionStatus(String text) {
+        logStatus(text);
     }
 
     @Override
-    public void onSerialRead(byte[] data) {
-        if (!connected) return;
-
-        // 1️⃣ Append new chunk to buffer
-        String chunk = new String(data, Charset.forName("US-ASCII"));
-        responseBuffer.append(chunk);
-
-        // 2️⃣ Check for terminator
-        if (chunk.contains(">")) {
-            String fullResponse = responseBuffer.toString();
-            responseBuffer.setLength(0); // clear buffer for next command
-
-            if (pendingCallback != null) {
-                SerialResponseCallback cb = pendingCallback;
-                pendingCallback = null;
-                cb.onResponse(fullResponse.getBytes(Charset.forName("US-ASCII")));
-            }
-        }
+    public void onSessionResponse(String command, byte[] data, int length) {
+        statusLog.addResponse(command, data, length);
     }
 
     @Override
-    public void onSerialRead(ArrayDeque<byte[]> datas) { throw new UnsupportedOperationException(); }
+    public void onSessionSample(BmsSample sample) {
+        latestSample.write(sample);
+        sampleBus.publish(sample);
+        if (persistentSession) {
+            // keep link and adapter state, the session keeps polling on its own.
+            // queue and scheduler statistics are part of getMetricsSnapshot()
+            statusLog.addSample(sample); // formatted when published
+            sample.recycle();
+            return;
+        }
 
-    @Override
-    public void onSerialIoError(Exception e) {
-        logError("onSerialIoError", e, 5);
         disconnect();
-    }
+        statusLog.addSample(sample);
+        sample.recycle();
 
-    public void runObdInitSequence() {
-        String[] initCmds = {
-                "ATD", "ATZ", "ATE0", "ATL0", "ATS0", "ATH1", "ATSTFF", "ATFE", "ATSP6", "ATCRA7EC"
-        };
+        mainHandler.postDelayed(this::reconnect, delaySeconds * 1000);
+    }
 
+    /**
+     * query thread, the storage thread keeps appending live rows meanwhile
+     */
+    private void seedRollup(HistoryFile h) {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        TelemetryRollup seed = rollup.newSeed(now);
         try {
-            sendObdCommandAtIndex(initCmds, 0);
-        } catch (Exception e) {
-            logError("runObdInitSequence", e, 7);
+            long rows = h.read(now - rollup.getCoverageMillis(), Long.MAX_VALUE, null, seed::seed);
+            rollup.merge(seed);
+            logStatus("History: " + rows + " rows read in " + (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (IOException e) {
+            logError("history", e);
         }
     }
 
-    private void sendObdCommandAtIndex(String[] cmds, int index) {
-        if (index >= cmds.length) {
-            logStatus("Initialization complete!");
-            sendCommandATRV();
-            return;
-        }
-
-        String cmd = cmds[index];
-        //logStatus("Sending command: " + cmd);
-
-        sendAndReceive(cmd, new SerialResponseCallback() {
-            @Override
-            public void onResponse(byte[] data) {
-                String response = new String(data, Charset.forName("US-ASCII"));
-                logStatus(cmd + " Response: " + response);
-                sendObdCommandAtIndex(cmds, index + 1);
-            }
-
-            @Override
-            public void onError(Exception e) {
-                logError(cmd, e, 6);
-                disconnect();
+    /**
+     * storage thread
+     */
+    private void storeSamples(TelemetryBus.Batch<BmsSample> batch) {
+        if (batch.getDropped() > 0)
+            logStatus(batch.getDropped() + " samples not stored, storage too slow");
+        for (int i = 0; i < batch.size(); i++) {
+            BmsSample sample = batch.get(i);
+            trips.add(sample);
+            sample.toRow(telemetryRow);
+            telemetry.append(sample.timeMillis, telemetryRow);
+            rollup.append(sample.timeMillis, telemetryRow);
+            HistoryFile h = history;
+            if (h != null) {
+                try {
+                    h.append(sample.timeMillis, telemetryRow);
+                } catch (IOException e) {
+                    history = null;
+                    logError("history", e);
+                }
             }
-        });
-    }
-
-    private void sendCommandATRV() {
-        sendAndReceive("ATRV", new SerialResponseCallback() {
-            @Override
-            public void onResponse(byte[] data) {
-                String response = new String(data, Charset.forName("US-ASCII"));
-                logSuccess("ATRV Response: " + response, 30);
-                sendParseCommand220101();
+            if (spool != null && uploader.isEnabled()) {
+                try {
+                    spool.append(sample.timeMillis, telemetryRow);
+                } catch (IOException e) {
+                    spool = null; // spooled batches are still sent
+                    logError("upload spool", e);
+                }
             }
-
-            @Override
-            public void onError(Exception e) {
-                logError("220101", e, 21);
-                disconnect();
+            CaptureJournal journal = captureJournal;
+            if (journal != null) {
+                try {
+                    journal.appendSample(sample.timeMillis, telemetryRow);
+                } catch (IOException e) {
+                    captureJournal = null;
+                    session.setCaptureJournal(null);
+                    logStatus("Capture stopped: " + e.getMessage());
+                }
             }
-        });
+        }
     }
 
-    private void sendParseCommand220101() {
-        sendAndReceive("220101", new SerialResponseCallback() {
-            @Override
-            public void onResponse(byte[] data) {
-                String response = new String(data, Charset.forName("US-ASCII"));
-                logStatus("220101 Response: " + response);
-                sendParseCommand220105(response);
-            }
-
-            @Override
-            public void onError(Exception e) {
-                logError("220101", e, 21);
-                disconnect();
-            }
-        });
+    /**
+     * storage thread
+     */
+    private void onTripEnd(TripAggregator.Trip trip) {
+        if (trip.kind == TripAggregator.IDLE)
+            return;
+        if (trip.kind == TripAggregator.CHARGE)
+            logSuccess("Charge ended: " + Math.round(trip.energyInKwh * 10) / 10.0 + " kWh, SOC " + trip.socStart + " -> " + trip.socEnd + " %");
+        else
+            logSuccess("Drive ended: " + Math.round(trip.energyOutKwh * 10) / 10.0 + " kWh out, " + Math.round(trip.energyInKwh * 10) / 10.0 + " kWh in, SOC " + trip.socStart + " -> " + trip.socEnd + " %");
     }
 
-    private void sendParseCommand220105(String resp220101) {
-        sendAndReceive("220105", new SerialResponseCallback() {
-            @Override
-            public void onResponse(byte[] data) {
-                String response = new String(data, Charset.forName("US-ASCII"));
-                logStatus("220105 Response: " + response);
-                disconnect();
-                Map<String, Object> parsed220101 = ParserUtils.parse220101(resp220101);
-                Map<String, Object> parsed220105 = ParserUtils.parse220105(response);
-                logSuccess("220101:\n" + parsed220101 + "\n\n220105:\n" + parsed220105);
-
-                new android.os.Handler(android.os.Looper.getMainLooper())
-                        .postDelayed(() -> {
-                            if (obdRunning && currentDeviceAddress != null) {
-                                connect(currentDeviceAddress);
-                            }
-                        }, delaySeconds * 1000);
-
-            }
+    @Override
+    public void onSessionError(String title, Exception e) {
+        logError(title, e);
+        if (ObdSession.isLinkError(title))
+            finishTrip(); // not for a failed request
+        if (persistentSession) {
+            // full reconnect incl. init sequence
+            mainHandler.postDelayed(this::reconnect, RECONNECT_DELAY_MILLIS);
+        }
+    }
 
-            @Override
-            public void onError(Exception e) {
-                logError("220105", e, 20);
-                disconnect();
-            }
-        });
+    private void reconnect() {
+        if (obdRunning && currentDeviceAddress != null && !session.isConnected()) {
+            connect(currentDeviceAddress);
+        }
     }
 
     public void start(String devAddress) {
-        if(!connected) {
+        if(!session.isConnected()) {
             if (obdRunning) return;  // already running
             obdRunning = true;
 
@@ -398,6 +633,9 @@ public class SerialService extends Service implements SerialListener {
     public void stop() {
         obdRunning = false;
         currentDeviceAddress = null;
+        mainHandler.removeCallbacksAndMessages(null);
+        session.disconnect(); // ignore remaining replies
+        finishTrip();
         cancelNotification();
     }
 
@@ -412,4 +650,46 @@ public class SerialService extends Service implements SerialListener {
         delaySeconds = number;
     }
 
+    public boolean isPersistentSession() {
+        return persistentSession;
+    }
+
+    /**
+     * keep the connection and the initialized adapter between polls instead of reconnecting
+     * after every sample. the connection is only re-established after an error.
+     * the poll periods per request (setPollInterval(), the odometer) need this, else every
+     * connection polls 220101 and 220105 once, see PollScheduler
+     */
+    public void setPersistentSession(boolean persistentSession) {
+        this.persistentSession = persistentSession;
+        session.setContinuousPolling(persistentSession);
+    }
+
+    public long getStatusInterval() {
+        return statusLog.getInterval();
+    }
+
+    /**
+     * @param millis minimum time between two status notification updates,
+     *               messages in between are merged into the next update
+     */
+    public void setStatusInterval(long millis) {
+        statusLog.setInterval(millis);
+    }
+
+    public int getPollInterval() {
+        return pollIntervalMillis;
+    }
+
+    /**
+     * @param millis period of the fast changing values in persistent session mode,
+     *               the slow changing values (SOC display, SOH) are polled every minute
+     */
+    public void setPollInterval(int millis) {
+        if(millis < 100) millis = 100;
+        if(millis > 86000000) millis = 86000000;
+        pollIntervalMillis = millis;
+        session.setPollInterval(millis);
+    }
+
 }
@@ -12,27 +12,41 @@ import androidx.core.content.ContextCompat;
 
 import java.io.IOException;
 import java.security.InvalidParameterException;
-import java.util.Arrays;
 import java.util.UUID;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
-class SerialSocket implements Runnable {
+class SerialSocket implements Runnable, SerialTransport {
 
     private static final UUID BLUETOOTH_SPP = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
 
     private final BroadcastReceiver disconnectBroadcastReceiver;
 
     private final Context context;
-    private SerialListener listener;
+    private final Executor ioThread;
+    private final ScheduledExecutorService watchdog;
+    private final RfcommStrategies strategies;
+    private volatile SerialListener listener;
     private final BluetoothDevice device;
-    private BluetoothSocket socket;
-    private boolean connected;
+    private volatile BluetoothSocket socket;
+    private volatile boolean connected;
+    private volatile boolean disconnected;
 
-    SerialSocket(Context context, BluetoothDevice device) {
+    /**
+     * @param ioThread   runs connect and the read loop, can be shared by subsequent sockets
+     * @param watchdog   closes connect attempts running past their deadline
+     * @param strategies connect methods learned per device, shared by subsequent sockets
+     */
+    SerialSocket(Context context, BluetoothDevice device, Executor ioThread, ScheduledExecutorService watchdog, RfcommStrategies strategies) {
         if(context instanceof Activity)
             throw new InvalidParameterException("expected non UI context");
         this.context = context;
         this.device = device;
+        this.ioThread = ioThread;
+        this.watchdog = watchdog;
+        this.strategies = strategies;
         disconnectBroadcastReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
@@ -43,28 +57,32 @@ class SerialSocket implements Runnable {
         };
     }
 
-    String getName() {
+    @Override
+    public String getName() {
         return device.getName() != null ? device.getName() : device.getAddress();
     }
 
     /**
      * connect-success and most connect-errors are returned asynchronously to listener
      */
-    void connect(SerialListener listener) throws IOException {
+    @Override
+    public void connect(SerialListener listener) throws IOException {
         this.listener = listener;
         ContextCompat.registerReceiver(context, disconnectBroadcastReceiver, new IntentFilter(Constants.INTENT_ACTION_DISCONNECT), ContextCompat.RECEIVER_NOT_EXPORTED);
-        Executors.newSingleThreadExecutor().submit(this);
+        ioThread.execute(this);
     }
 
-    void disconnect() {
+    @Override
+    public void disconnect() {
         listener = null; // ignore remaining data and errors
+        disconnected = true; // socket not created yet, or connect still running
         // connected = false; // run loop will reset connected
-        if(socket != null) {
+        BluetoothSocket s = socket;
+        if(s != null) {
             try {
-                socket.close();
+                s.close(); // ends the read loop
             } catch (Exception ignored) {
             }
-            socket = null;
         }
         try {
             context.unregisterReceiver(disconnectBroadcastReceiver);
@@ -72,50 +90,115 @@ class SerialSocket implements Runnable {
         }
     }
 
-    void write(byte[] data) throws IOException {
-        if (!connected)
+    @Override
+    public void write(byte[] data) throws IOException {
+        BluetoothSocket s = socket;
+        if (!connected || s == null)
             throw new IOException("not connected");
-        socket.getOutputStream().write(data);
+        s.getOutputStream().write(data);
     }
 
     @Override
     public void run() { // connect & read
+        BluetoothSocket s;
         try {
-            socket = device.createRfcommSocketToServiceRecord(BLUETOOTH_SPP);
-            socket.connect();
-            if(listener != null)
-                listener.onSerialConnect();
-        } catch (Exception e) {
-            if(listener != null)
-                listener.onSerialConnectError(e);
-            try {
-                socket.close();
-            } catch (Exception ignored) {
+            s = connectSocket();
+            if(disconnected) { // closed while connecting
+                socket = null;
+                s.close();
+                return;
             }
+            connected = true;
+            SerialListener l = listener;
+            if(l != null)
+                l.onSerialConnect();
+        } catch (Exception e) {
+            SerialListener l = listener;
+            if(l != null)
+                l.onSerialConnectError(e);
             socket = null;
             return;
         }
-        connected = true;
         try {
-            byte[] buffer = new byte[1024];
+            byte[] buffer = new byte[1024]; // reused, listener copies what it keeps
             int len;
             //noinspection InfiniteLoopStatement
             while (true) {
-                len = socket.getInputStream().read(buffer);
-                byte[] data = Arrays.copyOf(buffer, len);
-                if(listener != null)
-                    listener.onSerialRead(data);
+                len = s.getInputStream().read(buffer);
+                SerialListener l = listener;
+                if(l != null)
+                    l.onSerialRead(buffer, len);
             }
         } catch (Exception e) {
             connected = false;
-            if (listener != null)
-                listener.onSerialIoError(e);
+            SerialListener l = listener;
+            if (l != null)
+                l.onSerialIoError(e);
             try {
-                socket.close();
+                s.close();
             } catch (Exception ignored) {
             }
             socket = null;
         }
     }
 
+    /**
+     * tries the connect methods in the order learned for the device, each until its deadline
+     */
+    private BluetoothSocket connectSocket() throws Exception {
+        String address = device.getAddress();
+        long start = System.nanoTime();
+        Exception error = null;
+        for (int strategy : strategies.order(address)) {
+            if(disconnected)
+                throw new IOException("disconnected");
+            long attemptStart = System.nanoTime();
+            long deadlineMillis = strategies.getDeadlineMillis(address, strategy);
+            BluetoothSocket s = null;
+            ScheduledFuture<?> deadline = null;
+            try {
+                s = createSocket(strategy);
+                socket = s;
+                if(disconnected)
+                    throw new IOException("disconnected");
+                BluetoothSocket attempt = s;
+                deadline = watchdog.schedule(() -> close(attempt), deadlineMillis, TimeUnit.MILLISECONDS);
+                s.connect();
+                if(!deadline.cancel(false))
+                    throw new IOException("closed at deadline"); // connected just after it
+                long now = System.nanoTime();
+                strategies.onConnected(address, strategy, now - attemptStart, now - start);
+                return s;
+            } catch (Exception e) {
+                boolean timedOut = deadline != null && !deadline.cancel(false);
+                close(s);
+                socket = null;
+                if(disconnected)
+                    throw e;
+                strategies.onFailed(address, strategy, timedOut);
+                error = timedOut ? new IOException(RfcommStrategies.NAMES[strategy] + " connect abandoned after " + deadlineMillis + " ms") : e;
+            }
+        }
+        throw error;
+    }
+
+    private BluetoothSocket createSocket(int strategy) throws Exception {
+        switch (strategy) {
+            case RfcommStrategies.SECURE:
+                return device.createRfcommSocketToServiceRecord(BLUETOOTH_SPP);
+            case RfcommStrategies.INSECURE:
+                return device.createInsecureRfcommSocketToServiceRecord(BLUETOOTH_SPP);
+            default: // hidden api, channel 1 without SDP lookup
+                return (BluetoothSocket) device.getClass().getMethod("createRfcommSocket", int.class).invoke(device, 1);
+        }
+    }
+
+    private static void close(BluetoothSocket s) {
+        try {
+            if(s != null)
+                s.close(); // aborts a running connect()
+        } catch (Exception ignored) {
+        }
+    }
+
 }
@@ -0,0 +1,23 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.IOException;
+
+/**
+ * byte stream to an ELM327 adapter, e.g. bluetooth SerialSocket or Elm327Simulator
+ *
+ * connect-success, received data and errors are returned asynchronously to the listener
+ */
+interface SerialTransport {
+
+    interface Factory {
+        SerialTransport create(String deviceAddress) throws IOException;
+    }
+
+    void connect(SerialListener listener) throws IOException;
+
+    void disconnect();
+
+    void write(byte[] data) throws IOException;
+
+    String getName();
+}
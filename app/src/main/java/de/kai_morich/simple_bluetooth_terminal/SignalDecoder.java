@@ -0,0 +1,175 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * compiles a signal table once into flat extractor ops and runs them over the frame bytes
+ *
+ * signals are grouped into requests (header + did). decoding a reply scans the frames once
+ * and then executes the ops of that request, writing into values[signal index].
+ */
+final class SignalDecoder {
+
+    // op layout, OP_SIZE ints per signal
+    private static final int OP_POSITION = 0;
+    private static final int OP_BYTES = 1;
+    private static final int OP_SHIFT = 2;
+    private static final int OP_WIDTH = 3;
+    private static final int OP_SIGNED = 4;
+    private static final int OP_TARGET = 5;
+    private static final int OP_SIZE = 6;
+
+    private final SignalDefinition[] signals;
+    private final Map<String, Integer> signalIndex = new HashMap<>();
+
+    private final String[] requestHeaders;
+    private final String[] requestDids;
+    private final int[] requestFrames;   // frames required to decode all signals of the request
+    private final int[] requestOpStart;
+    private final int[] requestOpEnd;
+    private final ObdFrameDecoder[] requestFrameDecoders;
+
+    private final int[] ops;
+    private final double[] multipliers;
+    private final double[] divisors; // scales like 0.1 are applied as /10 to get exact decimal values
+    private final double[] offsets;
+
+    SignalDecoder(SignalDefinition[] signals) {
+        this.signals = signals.clone();
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < signals.length; i++) {
+            if (signalIndex.put(signals[i].name, i) != null)
+                throw new IllegalArgumentException("duplicate signal " + signals[i].name);
+            String key = signals[i].header + signals[i].did;
+            if (!keys.contains(key))
+                keys.add(key);
+        }
+
+        int requests = keys.size();
+        requestHeaders = new String[requests];
+        requestDids = new String[requests];
+        requestFrames = new int[requests];
+        requestOpStart = new int[requests];
+        requestOpEnd = new int[requests];
+        requestFrameDecoders = new ObdFrameDecoder[requests];
+        ops = new int[signals.length * OP_SIZE];
+        multipliers = new double[signals.length];
+        divisors = new double[signals.length];
+        offsets = new double[signals.length];
+
+        Map<String, ObdFrameDecoder> frameDecoders = new HashMap<>();
+        int op = 0;
+        for (int r = 0; r < requests; r++) {
+            requestOpStart[r] = op;
+            for (int i = 0; i < signals.length; i++) {
+                SignalDefinition s = signals[i];
+                if (!keys.get(r).equals(s.header + s.did))
+                    continue;
+                if (op == requestOpStart[r]) {
+                    requestHeaders[r] = s.header;
+                    requestDids[r] = s.did;
+                    ObdFrameDecoder frames = frameDecoders.get(s.header);
+                    if (frames == null) {
+                        frames = new ObdFrameDecoder(s.header);
+                        frameDecoders.put(s.header, frames);
+                    }
+                    requestFrameDecoders[r] = frames;
+                }
+                int position = ObdFrameDecoder.position(s.frame, s.byteOffset);
+                int bytes = s.byteCount();
+                if (bytes > 8 || position + bytes > ObdFrameDecoder.payloadSize())
+                    throw new IllegalArgumentException(s.name + ": field outside of payload");
+                requestFrames[r] |= framesOf(position, bytes);
+                int o = op * OP_SIZE;
+                ops[o + OP_POSITION] = position;
+                ops[o + OP_BYTES] = bytes;
+                ops[o + OP_SHIFT] = s.bitOffset;
+                ops[o + OP_WIDTH] = s.bitWidth;
+                ops[o + OP_SIGNED] = s.signed ? 1 : 0;
+                ops[o + OP_TARGET] = i;
+                double inverse = 1 / s.scale;
+                if (s.scale < 1 && Math.abs(inverse - Math.rint(inverse)) < 1e-9) {
+                    multipliers[op] = 1;
+                    divisors[op] = Math.rint(inverse);
+                } else {
+                    multipliers[op] = s.scale;
+                    divisors[op] = 1;
+                }
+                offsets[op] = s.offset;
+                op++;
+            }
+            requestOpEnd[r] = op;
+        }
+    }
+
+    private static int framesOf(int position, int bytes) {
+        int mask = 0;
+        for (int p = position; p < position + bytes; p++) {
+            int frame = p < ObdFrameDecoder.FIRST_FRAME_BYTES ? 0
+                    : 1 + (p - ObdFrameDecoder.FIRST_FRAME_BYTES) / ObdFrameDecoder.CONSECUTIVE_FRAME_BYTES;
+            mask |= 1 << frame;
+        }
+        return mask;
+    }
+
+    int signalCount() {
+        return signals.length;
+    }
+
+    /**
+     * @return index into the values array, -1 if unknown
+     */
+    int signalIndex(String name) {
+        Integer i = signalIndex.get(name);
+        return i != null ? i : -1;
+    }
+
+    SignalDefinition getSignal(int index) {
+        return signals[index];
+    }
+
+    int requestCount() {
+        return requestDids.length;
+    }
+
+    /**
+     * @return request index for decode(), -1 if no signal is defined for it
+     */
+    int requestIndex(String header, String did) {
+        for (int r = 0; r < requestDids.length; r++)
+            if (requestHeaders[r].equals(header) && requestDids[r].equals(did))
+                return r;
+        return -1;
+    }
+
+    String getRequestHeader(int request) {
+        return requestHeaders[request];
+    }
+
+    String getRequestDid(int request) {
+        return requestDids[request];
+    }
+
+    /**
+     * @return false if frames are missing, values are left unchanged in this case
+     */
+    boolean decode(int request, byte[] buf, int off, int len, double[] values) {
+        ObdFrameDecoder frames = requestFrameDecoders[request];
+        if (!frames.scan(buf, off, len) || !frames.hasFrames(requestFrames[request]))
+            return false;
+        for (int op = requestOpStart[request]; op < requestOpEnd[request]; op++) {
+            int o = op * OP_SIZE;
+            int width = ops[o + OP_WIDTH];
+            long raw = frames.read(ops[o + OP_POSITION], ops[o + OP_BYTES]) >>> ops[o + OP_SHIFT];
+            if (width < 64)
+                raw &= (1L << width) - 1;
+            if (ops[o + OP_SIGNED] != 0 && width < 64 && (raw & (1L << (width - 1))) != 0)
+                raw -= 1L << width;
+            values[ops[o + OP_TARGET]] = raw * multipliers[op] / divisors[op] + offsets[op];
+        }
+        return true;
+    }
+}
@@ -0,0 +1,57 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+/**
+ * one row of the signal table: where a value is located in an ECU reply and how to scale it
+ *
+ * frame 0 is the single/first frame, frame n the consecutive frame n ("7EC2n").
+ * a field starts at byteOffset within the frame data and may continue into the next frame.
+ * bitOffset/bitWidth select the bits counted from the lsb of the big endian field.
+ * value = raw * scale + offset
+ */
+final class SignalDefinition {
+
+    final String name;
+    final String header;    // rx header of the answering ECU, e.g. "7EC"
+    final String did;       // request, e.g. "220101"
+    final int frame;
+    final int byteOffset;
+    final int bitOffset;
+    final int bitWidth;
+    final boolean signed;
+    final double scale;
+    final double offset;
+
+    SignalDefinition(String name, String header, String did, int frame, int byteOffset, int bitOffset, int bitWidth,
+                     boolean signed, double scale, double offset) {
+        if (bitWidth < 1 || bitOffset < 0 || bitOffset + bitWidth > 64)
+            throw new IllegalArgumentException(name + ": invalid bit range");
+        if (frame < 0 || frame >= ObdFrameDecoder.MAX_FRAMES || byteOffset < 0)
+            throw new IllegalArgumentException(name + ": invalid position");
+        this.name = name;
+        this.header = header;
+        this.did = did;
+        this.frame = frame;
+        this.byteOffset = byteOffset;
+        this.bitOffset = bitOffset;
+        this.bitWidth = bitWidth;
+        this.signed = signed;
+        this.scale = scale;
+        this.offset = offset;
+    }
+
+    static SignalDefinition unsigned(String name, String header, String did, int frame, int byteOffset, int bitWidth, double scale) {
+        return new SignalDefinition(name, header, did, frame, byteOffset, 0, bitWidth, false, scale, 0);
+    }
+
+    static SignalDefinition signed(String name, String header, String did, int frame, int byteOffset, int bitWidth, double scale) {
+        return new SignalDefinition(name, header, did, frame, byteOffset, 0, bitWidth, true, scale, 0);
+    }
+
+    static SignalDefinition bits(String name, String header, String did, int frame, int byteOffset, int bitOffset, int bitWidth) {
+        return new SignalDefinition(name, header, did, frame, byteOffset, bitOffset, bitWidth, false, 1, 0);
+    }
+
+    int byteCount() {
+        return (bitOffset + bitWidth + 7) / 8;
+    }
+}
@@ -0,0 +1,66 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * signal definitions of the Hyundai Kona / Kia Niro EV
+ * see https://github.com/JejuSoul/OBD-PIDs-for-HKMC-EVs and https://github.com/OBDb/Hyundai-Kona-Electric
+ */
+final class SignalTable {
+
+    static final String BMS = "7EC";
+
+    static final String SOC_BMS = "SOC_BMS";
+    static final String DC_BATTERY_CURRENT = "DC_BATTERY_CURRENT";
+    static final String DC_BATTERY_VOLTAGE = "DC_BATTERY_VOLTAGE";
+    static final String BATTERY_MAX_TEMPERATURE = "BATTERY_MAX_TEMPERATURE";
+    static final String BATTERY_MIN_TEMPERATURE = "BATTERY_MIN_TEMPERATURE";
+    static final String BATTERY_INLET_TEMPERATURE = "BATTERY_INLET_TEMPERATURE";
+    static final String AUX_BATTERY_VOLTAGE = "AUX_BATTERY_VOLTAGE";
+    static final String CUMULATIVE_ENERGY_CHARGED = "CUMULATIVE_ENERGY_CHARGED";
+    static final String CUMULATIVE_ENERGY_DISCHARGED = "CUMULATIVE_ENERGY_DISCHARGED";
+    static final String CHARGE_PORT_TYPE = "CHARGE_PORT_TYPE";
+    static final String CHARGING_BITS = "CHARGING_BITS";
+    static final String PORT_CONNECTED_BIT = "PORT_CONNECTED_BIT";
+    static final String SOH = "SOH";
+    static final String SOC_DISPLAY = "SOC_DISPLAY";
+    static final String CELL_VOLTAGE = "CELL_VOLTAGE_"; // + cell number 1..96
+
+    static final int CELLS_PER_BLOCK = 32;
+
+    private SignalTable() {}
+
+    static SignalDefinition[] konaBms() {
+        List<SignalDefinition> t = new ArrayList<>();
+        t.add(SignalDefinition.unsigned(SOC_BMS,                      BMS, "220101", 1, 1, 8, 0.5));
+        t.add(SignalDefinition.unsigned(CHARGE_PORT_TYPE,             BMS, "220101", 1, 6, 8, 1));
+        t.add(SignalDefinition.signed  (DC_BATTERY_CURRENT,           BMS, "220101", 2, 0, 16, 0.1));
+        t.add(SignalDefinition.unsigned(DC_BATTERY_VOLTAGE,           BMS, "220101", 2, 2, 16, 0.1));
+        t.add(SignalDefinition.signed  (BATTERY_MAX_TEMPERATURE,      BMS, "220101", 2, 4, 8, 1));
+        t.add(SignalDefinition.signed  (BATTERY_MIN_TEMPERATURE,      BMS, "220101", 2, 5, 8, 1));
+        t.add(SignalDefinition.signed  (BATTERY_INLET_TEMPERATURE,    BMS, "220101", 3, 5, 8, 1));
+        t.add(SignalDefinition.unsigned(AUX_BATTERY_VOLTAGE,          BMS, "220101", 4, 5, 8, 0.1));
+        t.add(SignalDefinition.unsigned(CUMULATIVE_ENERGY_CHARGED,    BMS, "220101", 6, 0, 32, 0.1));
+        t.add(SignalDefinition.unsigned(CUMULATIVE_ENERGY_DISCHARGED, BMS, "220101", 6, 4, 32, 0.1));
+        t.add(SignalDefinition.bits    (CHARGING_BITS,                BMS, "220101", 7, 5, 2, 2));
+        t.add(SignalDefinition.bits    (PORT_CONNECTED_BIT,           BMS, "220101", 7, 5, 6, 1));
+        t.add(SignalDefinition.unsigned(SOH,                          BMS, "220105", 4, 1, 16, 0.1));
+        t.add(SignalDefinition.unsigned(SOC_DISPLAY,                  BMS, "220105", 5, 0, 8, 0.5));
+        addCellVoltages(t, "220102", 1);
+        addCellVoltages(t, "220103", CELLS_PER_BLOCK + 1);
+        addCellVoltages(t, "220104", 2 * CELLS_PER_BLOCK + 1);
+        return t.toArray(new SignalDefinition[0]);
+    }
+
+    /**
+     * 32 cell voltages per block in 0.02V steps, starting with the first consecutive frame
+     */
+    private static void addCellVoltages(List<SignalDefinition> t, String did, int firstCell) {
+        for (int i = 0; i < CELLS_PER_BLOCK; i++) {
+            int pos = i % ObdFrameDecoder.CONSECUTIVE_FRAME_BYTES;
+            int frame = 1 + i / ObdFrameDecoder.CONSECUTIVE_FRAME_BYTES;
+            t.add(SignalDefinition.unsigned(CELL_VOLTAGE + (firstCell + i), BMS, did, frame, pos, 8, 0.02));
+        }
+    }
+}
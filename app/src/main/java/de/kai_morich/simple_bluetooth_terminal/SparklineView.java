@@ -0,0 +1,98 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import androidx.annotation.Nullable;
+
+/**
+ * scrolling line of the last values, newest at the right
+ *
+ * values are kept in a primitive ring buffer, onDraw() converts them into a preallocated
+ * line array and does not allocate. the y axis is scaled to min..max of the visible values.
+ */
+public class SparklineView extends View {
+
+    private static final int CAPACITY = 300; // 30 s at 10 samples per second
+
+    private final float[] values = new float[CAPACITY];
+    private final float[] lines = new float[(CAPACITY - 1) * 4];
+    private final Paint linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint zeroPaint = new Paint();
+    private int head;  // next write position
+    private int count;
+
+    public SparklineView(Context context) {
+        this(context, null);
+    }
+
+    public SparklineView(Context context, @Nullable AttributeSet attrs) {
+        super(context, attrs);
+        linePaint.setColor(getResources().getColor(R.color.colorAccent));
+        linePaint.setStrokeWidth(2 * getResources().getDisplayMetrics().density);
+        zeroPaint.setColor(Color.GRAY);
+    }
+
+    /**
+     * main thread, NaN values are skipped
+     */
+    void add(float value) {
+        if (value != value)
+            return;
+        values[head] = value;
+        head = (head + 1) % CAPACITY;
+        if (count < CAPACITY)
+            count++;
+        invalidate();
+    }
+
+    void clear() {
+        head = 0;
+        count = 0;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (count < 2)
+            return;
+        int first = (head - count + CAPACITY) % CAPACITY;
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        for (int i = 0, slot = first; i < count; i++, slot = (slot + 1) % CAPACITY) {
+            float value = values[slot];
+            if (value < min) min = value;
+            if (value > max) max = value;
+        }
+        if (max - min < 1e-3f) { // flat line in the middle
+            min -= 1;
+            max += 1;
+        }
+        float left = getPaddingLeft();
+        float top = getPaddingTop();
+        float width = getWidth() - left - getPaddingRight();
+        float height = getHeight() - top - getPaddingBottom();
+        float dx = width / (CAPACITY - 1);
+        float scale = height / (max - min);
+        if (min < 0 && max > 0) {
+            float zero = top + max * scale;
+            canvas.drawLine(left, zero, left + width, zero, zeroPaint);
+        }
+        float x = left + (CAPACITY - count) * dx;
+        float y = top + (max - values[first]) * scale;
+        int n = 0;
+        for (int i = 1, slot = (first + 1) % CAPACITY; i < count; i++, slot = (slot + 1) % CAPACITY) {
+            lines[n++] = x;
+            lines[n++] = y;
+            x += dx;
+            y = top + (max - values[slot]) * scale;
+            lines[n++] = x;
+            lines[n++] = y;
+        }
+        canvas.drawLines(lines, 0, n, linePaint);
+    }
+}
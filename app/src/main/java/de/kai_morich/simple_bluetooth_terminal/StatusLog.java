@@ -0,0 +1,229 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * in-memory ring of status messages, published merged and rate limited
+ *
+ * adding an entry only stores references and copies reply bytes or sample values into the
+ * reused entry, text is formatted when published or read. the first entry after a publish schedules
+ * the next publish, at most one per interval, with all entries added in between.
+ * stack traces are only kept for errors, as the Throwable passed by the caller.
+ */
+final class StatusLog {
+
+    interface Publisher {
+        /**
+         * @param level highest level of the entries since the last publish
+         */
+        void publish(int level, String title, String text);
+    }
+
+    interface Scheduler {
+        void schedule(Runnable runnable, long delayMillis);
+    }
+
+    static final int STATUS = 0;
+    static final int SUCCESS = 1;
+    static final int ERROR = 2;
+
+    private static final String[] LEVEL_NAMES = {"status", "success", "error"};
+    private static final int MAX_REPLY = 256; // longer replies are cut
+    private static final int MAX_PUBLISHED = 8; // newest entries per publish
+
+    private static final class Entry {
+        long timeMillis;
+        int level;
+        String text; // command if response
+        boolean response;
+        byte[] reply = new byte[0];
+        int replyLength;
+        BmsSample sample; // allocated with the first sample entry
+        boolean hasSample;
+        Throwable error;
+    }
+
+    private final Entry[] entries;
+    private final Publisher publisher;
+    private final Scheduler scheduler;
+    private final Runnable publishRunnable = this::publish;
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+    private long intervalMillis = 1000;
+    private long count;     // entries added since creation
+    private long published; // count at last publish
+    private long lastPublishNanos;
+    private boolean scheduled;
+    private long publishCount;
+
+    StatusLog(int capacity, Publisher publisher, Scheduler scheduler) {
+        entries = new Entry[capacity];
+        for (int i = 0; i < capacity; i++)
+            entries[i] = new Entry();
+        this.publisher = publisher;
+        this.scheduler = scheduler;
+        lastPublishNanos = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+    }
+
+    /**
+     * @param millis minimum time between two publishes
+     */
+    synchronized void setInterval(long millis) {
+        intervalMillis = Math.max(0, millis);
+    }
+
+    synchronized long getInterval() {
+        return intervalMillis;
+    }
+
+    /**
+     * @return entries added since creation, including overwritten ones
+     */
+    synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return publishes since creation
+     */
+    synchronized long getPublishCount() {
+        return publishCount;
+    }
+
+    void add(int level, String text) {
+        add(level, text, null, 0, null);
+    }
+
+    /**
+     * reply of a command as status, reply is only read during the call
+     */
+    void addResponse(String command, byte[] reply, int length) {
+        add(STATUS, command, reply, length, null);
+    }
+
+    void addError(String title, Throwable error) {
+        add(ERROR, title, null, 0, error);
+    }
+
+    /**
+     * decoded values as SUCCESS, sample is only read during the call
+     */
+    synchronized void addSample(BmsSample sample) {
+        Entry entry = add(SUCCESS, null, null, 0, null);
+        if (entry.sample == null)
+            entry.sample = new BmsSample();
+        entry.sample.copyFrom(sample);
+        entry.hasSample = true;
+    }
+
+    private synchronized Entry add(int level, String text, byte[] reply, int length, Throwable error) {
+        Entry entry = entries[(int) (count++ % entries.length)];
+        entry.hasSample = false;
+        entry.timeMillis = System.currentTimeMillis();
+        entry.level = level;
+        entry.text = text;
+        entry.error = error;
+        entry.response = reply != null;
+        entry.replyLength = reply != null ? Math.min(length, MAX_REPLY) : 0;
+        if (entry.reply.length < entry.replyLength)
+            entry.reply = new byte[MAX_REPLY];
+        if (entry.replyLength > 0)
+            System.arraycopy(reply, 0, entry.reply, 0, entry.replyLength);
+        if (!scheduled) {
+            scheduled = true;
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastPublishNanos);
+            scheduler.schedule(publishRunnable, Math.max(0, intervalMillis - elapsed));
+        }
+        return entry;
+    }
+
+    private void publish() {
+        int level;
+        String title;
+        String text;
+        synchronized (this) {
+            scheduled = false;
+            long oldest = Math.max(published, count - entries.length);
+            long first = Math.max(oldest, count - MAX_PUBLISHED);
+            long error = -1; // newest error, always published
+            level = STATUS;
+            title = null;
+            for (long i = oldest; i < count; i++) {
+                Entry entry = entries[(int) (i % entries.length)];
+                if (entry.level >= level) {
+                    level = entry.level;
+                    title = entry.level == ERROR ? "error: " + entry.text : LEVEL_NAMES[entry.level];
+                }
+                if (entry.level == ERROR)
+                    error = i;
+            }
+            if (title == null)
+                return; // nothing added
+            StringBuilder sb = new StringBuilder(512);
+            if (error >= 0 && error < first) {
+                appendEntry(sb, entries[(int) (error % entries.length)], true);
+                sb.append('\n');
+            }
+            if (first > published)
+                sb.append("(").append(first - published).append(" older)\n");
+            for (long i = first; i < count; i++) {
+                if (i > first) sb.append('\n');
+                appendEntry(sb, entries[(int) (i % entries.length)], true);
+            }
+            text = sb.toString();
+            published = count;
+            lastPublishNanos = System.nanoTime();
+            publishCount++;
+        }
+        publisher.publish(level, title, text); // outside the lock, may block
+    }
+
+    /**
+     * newest entries, oldest first, with time
+     */
+    synchronized StringBuilder appendTo(StringBuilder sb, int maxEntries) {
+        long first = Math.max(0, Math.max(count - entries.length, count - maxEntries));
+        sb.append("log: ").append(count).append(" entries, ").append(publishCount).append(" published");
+        for (long i = first; i < count; i++) {
+            Entry entry = entries[(int) (i % entries.length)];
+            sb.append('\n');
+            sb.append(timeFormat.format(new Date(entry.timeMillis))).append(' ');
+            appendEntry(sb, entry, false);
+        }
+        return sb;
+    }
+
+    private static void appendEntry(StringBuilder sb, Entry entry, boolean stackTrace) {
+        if (entry.level == ERROR)
+            sb.append("error: ");
+        if (entry.hasSample)
+            entry.sample.appendTo(sb);
+        else
+            sb.append(entry.text);
+        if (entry.response) {
+            sb.append(" Response: ");
+            for (int i = 0; i < entry.replyLength; i++) {
+                byte c = entry.reply[i];
+                if (c == '\r' || c == '\n') {
+                    if (i > 0 && entry.reply[i - 1] != '\r' && entry.reply[i - 1] != '\n')
+                        sb.append(' ');
+                } else {
+                    sb.append((char) (c & 0xff));
+                }
+            }
+        }
+        if (entry.error != null) {
+            if (stackTrace) {
+                StringWriter sw = new StringWriter();
+                entry.error.printStackTrace(new PrintWriter(sw));
+                sb.append('\n').append(sw);
+            } else {
+                sb.append(": ").append(entry.error);
+            }
+        }
+    }
+}
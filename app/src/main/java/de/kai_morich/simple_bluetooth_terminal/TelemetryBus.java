@@ -0,0 +1,201 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * publish/subscribe of telemetry items with a bounded queue per subscriber
+ *
+ * publish() copies the item into preallocated slots of each subscription and returns,
+ * it never waits for a subscriber. when a queue is full the policy decides what is dropped.
+ * each subscription is delivered on its own serial executor, e.g. the main thread, with one
+ * posted task for all items queued until it runs. delivered items are copied out of the
+ * queue first, so publishing continues while the subscriber works.
+ */
+final class TelemetryBus<T> {
+
+    interface Type<T> {
+        T create();
+        void copy(T from, T to);
+    }
+
+    interface Subscriber<T> {
+        /**
+         * items are only valid during the call
+         */
+        void onTelemetry(Batch<T> batch);
+    }
+
+    enum Policy {
+        LATEST,      // only the newest item, capacity 1
+        BATCH,       // all items since the last delivery, new items dropped when full
+        DROP_OLDEST  // all items since the last delivery, oldest items dropped when full
+    }
+
+    /**
+     * reused list of delivered items, oldest first
+     */
+    static final class Batch<T> {
+        private final Object[] items;
+        private int size;
+        private long dropped;
+
+        private Batch(Type<T> type, int capacity) {
+            items = new Object[capacity];
+            for (int i = 0; i < capacity; i++)
+                items[i] = type.create();
+        }
+
+        int size() {
+            return size;
+        }
+
+        @SuppressWarnings("unchecked")
+        T get(int index) {
+            if (index >= size)
+                throw new IndexOutOfBoundsException(index + " >= " + size);
+            return (T) items[index];
+        }
+
+        /**
+         * @return items dropped since the previous delivery
+         */
+        long getDropped() {
+            return dropped;
+        }
+    }
+
+    final class Subscription implements Runnable {
+        private final Policy policy;
+        private final Executor executor;
+        private final Subscriber<T> subscriber;
+        private final Object[] queue;
+        private final Batch<T> batch;
+        private int head;
+        private int size;
+        private boolean scheduled;
+        private volatile boolean cancelled;
+        private long delivered;
+        private long dropped;
+        private long droppedReported;
+
+        private Subscription(Policy policy, int capacity, Executor executor, Subscriber<T> subscriber) {
+            this.policy = policy;
+            this.executor = executor;
+            this.subscriber = subscriber;
+            queue = new Object[capacity];
+            for (int i = 0; i < capacity; i++)
+                queue[i] = type.create();
+            batch = new Batch<>(type, capacity);
+        }
+
+        void cancel() {
+            cancelled = true;
+            remove(this);
+        }
+
+        synchronized long getDeliveredCount() {
+            return delivered;
+        }
+
+        synchronized long getDroppedCount() {
+            return dropped;
+        }
+
+        private void offer(T item) {
+            boolean schedule;
+            synchronized (this) {
+                if (size == queue.length) {
+                    dropped++;
+                    if (policy == Policy.BATCH)
+                        return;
+                    head = (head + 1) % queue.length; // LATEST, DROP_OLDEST
+                    size--;
+                }
+                @SuppressWarnings("unchecked")
+                T slot = (T) queue[(head + size) % queue.length];
+                type.copy(item, slot);
+                size++;
+                schedule = !scheduled;
+                scheduled = true;
+            }
+            if (schedule)
+                executor.execute(this);
+        }
+
+        /**
+         * delivery on the executor
+         */
+        @Override
+        public void run() {
+            synchronized (this) {
+                scheduled = false;
+                for (int i = 0; i < size; i++) {
+                    @SuppressWarnings("unchecked")
+                    T from = (T) queue[(head + i) % queue.length];
+                    @SuppressWarnings("unchecked")
+                    T to = (T) batch.items[i];
+                    type.copy(from, to);
+                }
+                batch.size = size;
+                batch.dropped = dropped - droppedReported;
+                droppedReported = dropped;
+                delivered += size;
+                head = 0;
+                size = 0;
+            }
+            if (!cancelled && batch.size > 0)
+                subscriber.onTelemetry(batch);
+        }
+    }
+
+    private final Type<T> type;
+    private volatile Object[] subscriptions = new Object[0]; // copied on change
+
+    TelemetryBus(Type<T> type) {
+        this.type = type;
+    }
+
+    /**
+     * @param capacity queue size, 1 for Policy.LATEST
+     */
+    Subscription subscribe(Policy policy, int capacity, Executor executor, Subscriber<T> subscriber) {
+        if (policy == Policy.LATEST)
+            capacity = 1;
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity " + capacity);
+        Subscription subscription = new Subscription(policy, capacity, executor, subscriber);
+        synchronized (this) {
+            Object[] s = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+            s[s.length - 1] = subscription;
+            subscriptions = s;
+        }
+        return subscription;
+    }
+
+    private synchronized void remove(Subscription subscription) {
+        Object[] s = subscriptions;
+        for (int i = 0; i < s.length; i++) {
+            if (s[i] == subscription) {
+                Object[] copy = new Object[s.length - 1];
+                System.arraycopy(s, 0, copy, 0, i);
+                System.arraycopy(s, i + 1, copy, i, s.length - i - 1);
+                subscriptions = copy;
+                return;
+            }
+        }
+    }
+
+    boolean hasSubscribers() {
+        return subscriptions.length > 0;
+    }
+
+    /**
+     * any thread, item is only read during the call
+     */
+    @SuppressWarnings("unchecked")
+    void publish(T item) {
+        for (Object subscription : subscriptions)
+            ((Subscription) subscription).offer(item);
+    }
+}
@@ -0,0 +1,329 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.Arrays;
+
+/**
+ * long term history of all columns in tiers of 10 s, 1 min and 1 h buckets
+ *
+ * append() updates the open bucket of every tier, buckets are never recomputed from raw rows.
+ * a bucket holds min, max, mean, last and count per column in primitive arrays, each tier
+ * is a ring that overwrites its oldest bucket. raw rows stay in the TelemetryStore.
+ * the tiers are only held in memory, after a restart they are seeded from the HistoryFile:
+ * the rows are collected in a separate rollup from newSeed() on another thread, each tier only
+ * within its own coverage, and then merged, so live rows are never delayed by the seeding.
+ * queries read the coarsest tier whose buckets are still short enough for the number of
+ * points requested, so a year is read from about 9000 buckets instead of millions of rows.
+ */
+final class TelemetryRollup {
+
+    static final int RAW = -1;
+    static final long[] RESOLUTION_MILLIS = {10 * 1000L, 60 * 1000L, 3600 * 1000L};
+    static final int[] DEFAULT_CAPACITY = {6 * 360, 3 * 1440, 366 * 24}; // 6 hours, 3 days, 1 year
+
+    /**
+     * reusable query result, bucket start times, oldest first
+     */
+    static final class Series {
+        int tier;
+        int size;
+        long[] times = new long[0];
+        float[] min = new float[0];
+        float[] max = new float[0];
+        float[] mean = new float[0];
+        float[] last = new float[0];
+        int[] count = new int[0];
+
+        void ensureCapacity(int capacity) {
+            if (times.length >= capacity)
+                return;
+            times = Arrays.copyOf(times, capacity);
+            min = Arrays.copyOf(min, capacity);
+            max = Arrays.copyOf(max, capacity);
+            mean = Arrays.copyOf(mean, capacity);
+            last = Arrays.copyOf(last, capacity);
+            count = Arrays.copyOf(count, capacity);
+        }
+    }
+
+    private static final class Tier {
+        final long resolution;
+        final int capacity;
+        final long[] buckets; // bucket number (time / resolution) held in the slot, -1 if empty
+        final float[][] min;  // [column][slot]
+        final float[][] max;
+        final float[][] mean;
+        final float[][] last;
+        final int[][] count;
+        long newest = -1;
+        long opened; // buckets opened, more than capacity once the ring wrapped
+
+        Tier(long resolution, int capacity, int columns) {
+            this.resolution = resolution;
+            this.capacity = capacity;
+            buckets = new long[capacity];
+            Arrays.fill(buckets, -1);
+            min = new float[columns][capacity];
+            max = new float[columns][capacity];
+            mean = new float[columns][capacity];
+            last = new float[columns][capacity];
+            count = new int[columns][capacity];
+        }
+
+        void append(long timeMillis, float[] row) {
+            long bucket = Math.max(timeMillis / resolution, newest); // late rows go to the open bucket
+            int slot = (int) (bucket % capacity);
+            if (buckets[slot] != bucket) {
+                buckets[slot] = bucket;
+                for (int c = 0; c < count.length; c++)
+                    count[c][slot] = 0;
+                newest = bucket;
+                opened++;
+            }
+            for (int c = 0; c < count.length; c++) {
+                float value = row[c];
+                if (value != value) // NaN
+                    continue;
+                int n = ++count[c][slot];
+                if (n == 1) {
+                    min[c][slot] = max[c][slot] = mean[c][slot] = value;
+                } else {
+                    if (value < min[c][slot]) min[c][slot] = value;
+                    if (value > max[c][slot]) max[c][slot] = value;
+                    mean[c][slot] += (value - mean[c][slot]) / n;
+                }
+                last[c][slot] = value;
+            }
+        }
+
+        /**
+         * add the buckets of a tier with the same resolution and capacity, holding older rows
+         */
+        void merge(Tier older) {
+            if (older.newest < 0)
+                return;
+            long first = older.newest - capacity + 1;
+            if (newest >= 0)
+                first = Math.max(first, newest - capacity + 1); // not overwritten by newer buckets
+            for (long bucket = Math.max(0, first); bucket <= older.newest; bucket++) {
+                int slot = (int) (bucket % capacity);
+                if (older.buckets[slot] != bucket || buckets[slot] > bucket)
+                    continue;
+                if (buckets[slot] != bucket) { // empty or overwritten
+                    buckets[slot] = bucket;
+                    for (int c = 0; c < count.length; c++)
+                        count[c][slot] = 0;
+                    opened++;
+                }
+                for (int c = 0; c < count.length; c++) {
+                    int n = older.count[c][slot];
+                    if (n == 0)
+                        continue;
+                    int m = count[c][slot];
+                    if (m == 0) {
+                        min[c][slot] = older.min[c][slot];
+                        max[c][slot] = older.max[c][slot];
+                        mean[c][slot] = older.mean[c][slot];
+                        last[c][slot] = older.last[c][slot];
+                    } else { // bucket of the first live rows, last stays
+                        min[c][slot] = Math.min(min[c][slot], older.min[c][slot]);
+                        max[c][slot] = Math.max(max[c][slot], older.max[c][slot]);
+                        mean[c][slot] = (mean[c][slot] * m + older.mean[c][slot] * n) / (m + n);
+                    }
+                    count[c][slot] = m + n;
+                }
+            }
+            newest = Math.max(newest, older.newest);
+        }
+
+        /**
+         * @return true if the bucket of timeMillis was not overwritten yet, or never existed
+         */
+        boolean covers(long timeMillis) {
+            return opened <= capacity || newest - capacity + 1 <= timeMillis / resolution;
+        }
+    }
+
+    private final TelemetryStore raw;
+    private final Tier[] tiers;
+    private final int columns;
+    private final Series scratch = new Series();
+    private long seededMillis = Long.MIN_VALUE; // newest seeded row
+    private volatile long firstAppendMillis = Long.MAX_VALUE;
+    // rollup from newSeed() only
+    private final TelemetryRollup target;
+    private final long[] seedFromMillis;
+
+    TelemetryRollup(TelemetryStore raw) {
+        this(raw, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity buckets per tier, in the order of RESOLUTION_MILLIS
+     */
+    TelemetryRollup(TelemetryStore raw, int[] capacity) {
+        this(raw, capacity, null, 0);
+    }
+
+    private TelemetryRollup(TelemetryStore raw, int[] capacity, TelemetryRollup target, long nowMillis) {
+        this.raw = raw;
+        this.target = target;
+        seedFromMillis = new long[capacity.length];
+        for (int t = 0; t < capacity.length; t++)
+            seedFromMillis[t] = target == null ? Long.MIN_VALUE : nowMillis - RESOLUTION_MILLIS[t] * capacity[t];
+        this.columns = raw.getColumnCount();
+        tiers = new Tier[RESOLUTION_MILLIS.length];
+        for (int t = 0; t < tiers.length; t++)
+            tiers[t] = new Tier(RESOLUTION_MILLIS[t], capacity[t], columns);
+    }
+
+    /**
+     * single writer, after the row was appended to the TelemetryStore
+     *
+     * @param row one value per column, NaN for missing values
+     */
+    synchronized void append(long timeMillis, float[] row) {
+        if (firstAppendMillis == Long.MAX_VALUE)
+            firstAppendMillis = timeMillis;
+        for (Tier tier : tiers)
+            tier.append(timeMillis, row);
+    }
+
+    /**
+     * empty rollup with the same tiers to collect the rows from before the first append(),
+     * filled with seed() on any thread and added with merge()
+     */
+    TelemetryRollup newSeed(long nowMillis) {
+        int[] capacity = new int[tiers.length];
+        for (int t = 0; t < tiers.length; t++)
+            capacity[t] = tiers[t].capacity;
+        return new TelemetryRollup(raw, capacity, this, nowMillis);
+    }
+
+    /**
+     * row of a rollup from newSeed(), oldest first. each tier only takes rows within its
+     * coverage, rows already appended to the target are skipped
+     */
+    synchronized void seed(long timeMillis, float[] row) {
+        if (timeMillis >= target.firstAppendMillis)
+            return;
+        for (int t = 0; t < tiers.length; t++)
+            if (timeMillis >= seedFromMillis[t])
+                tiers[t].append(timeMillis, row);
+        seededMillis = timeMillis;
+    }
+
+    /**
+     * add the buckets of a filled rollup from newSeed(). ranges older than the raw rows
+     * are then read from the tiers
+     */
+    void merge(TelemetryRollup seed) {
+        if (seed.target != this)
+            throw new IllegalArgumentException("not a seed of this rollup");
+        synchronized (seed) {
+            synchronized (this) {
+                for (int t = 0; t < tiers.length; t++)
+                    tiers[t].merge(seed.tiers[t]);
+                seededMillis = Math.max(seededMillis, seed.seededMillis);
+            }
+        }
+    }
+
+    /**
+     * @return time span of the coarsest tier, older rows need not be seeded
+     */
+    long getCoverageMillis() {
+        Tier tier = tiers[tiers.length - 1];
+        return tier.resolution * tier.capacity;
+    }
+
+    /**
+     * coarsest tier with at least maxPoints buckets in the range. when that tier does not
+     * reach back to fromMillis anymore, the next coarser tier that does
+     *
+     * @return tier index, RAW for rows of the TelemetryStore
+     */
+    synchronized int selectTier(long fromMillis, long toMillis, int maxPoints) {
+        long resolution = (toMillis - fromMillis) / Math.max(1, maxPoints);
+        int tier = RAW;
+        for (int t = 0; t < tiers.length; t++)
+            if (tiers[t].resolution <= resolution)
+                tier = t;
+        if (tier == RAW && (raw.getTotalCount() > raw.getCapacity() || seededMillis >= fromMillis)
+                && (raw.getTotalCount() == 0 || raw.oldestTime() > fromMillis))
+            tier = 0; // older rows only in the tiers
+        while (tier >= 0 && tier < tiers.length - 1 && !tiers[tier].covers(fromMillis))
+            tier++;
+        return tier;
+    }
+
+    /**
+     * buckets of the selected tier overlapping fromMillis..toMillis, buckets without
+     * values of the column are skipped. raw rows are returned as buckets of count 1
+     *
+     * @return out.size
+     */
+    synchronized int query(int column, long fromMillis, long toMillis, int maxPoints, Series out) {
+        int t = selectTier(fromMillis, toMillis, maxPoints);
+        out.tier = t;
+        out.size = 0;
+        if (t == RAW) {
+            out.ensureCapacity(raw.getCapacity());
+            int n = raw.range(column, fromMillis, toMillis, out.times, out.mean);
+            for (int i = 0; i < n; i++) {
+                float value = out.mean[i];
+                if (value != value)
+                    continue;
+                int j = out.size++;
+                out.times[j] = out.times[i];
+                out.min[j] = out.max[j] = out.mean[j] = out.last[j] = value;
+                out.count[j] = 1;
+            }
+            return out.size;
+        }
+        Tier tier = tiers[t];
+        long first = Math.max(Math.max(fromMillis, 0) / tier.resolution, tier.newest - tier.capacity + 1);
+        long end = Math.min(ceilDiv(toMillis, tier.resolution), tier.newest + 1);
+        if (end <= first)
+            return 0;
+        out.ensureCapacity((int) (end - first));
+        for (long bucket = first; bucket < end; bucket++) {
+            int slot = (int) (bucket % tier.capacity);
+            if (tier.buckets[slot] != bucket || tier.count[column][slot] == 0)
+                continue;
+            int j = out.size++;
+            out.times[j] = bucket * tier.resolution;
+            out.min[j] = tier.min[column][slot];
+            out.max[j] = tier.max[column][slot];
+            out.mean[j] = tier.mean[column][slot];
+            out.last[j] = tier.last[column][slot];
+            out.count[j] = tier.count[column][slot];
+        }
+        return out.size;
+    }
+
+    /**
+     * line for a chart of the column: means of the selected tier, reduced to at most
+     * maxPoints with Downsampler.lttb()
+     *
+     * @return number of points, at most min(maxPoints, outTimes.length)
+     */
+    synchronized int chart(int column, long fromMillis, long toMillis, int maxPoints, long[] outTimes, float[] outValues) {
+        maxPoints = Math.min(maxPoints, Math.min(outTimes.length, outValues.length));
+        int n = query(column, fromMillis, toMillis, maxPoints, scratch);
+        return Downsampler.lttb(scratch.times, scratch.mean, n, maxPoints, outTimes, outValues);
+    }
+
+    /**
+     * @return buckets currently held in the tier
+     */
+    synchronized int size(int tier) {
+        return (int) Math.min(tiers[tier].opened, tiers[tier].capacity);
+    }
+
+    /**
+     * times are positive, Math.floorDiv needs API level 24
+     */
+    private static long ceilDiv(long millis, long resolution) {
+        return (Math.max(millis, 0) + resolution - 1) / resolution;
+    }
+}
@@ -0,0 +1,263 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+/**
+ * in-memory time series of decoded samples, one float column per signal
+ *
+ * rows are stored in fixed size primitive arrays, the oldest row is overwritten when full.
+ * one writer (the storage thread of SerialService) and any number of concurrent readers
+ * without locks: the writer announces a row before writing it, readers check afterwards
+ * that none of the rows they read was announced for overwrite in between, else retry.
+ * like StampedLock.validate this needs fences, the plain loads of a reader must not move
+ * behind its check and the plain stores of the writer not before the announcement.
+ * VarHandle and Unsafe fences are not available on API 18, a volatile store followed by a
+ * volatile load is used instead: loads before the store stay before the load, stores after
+ * the load stay after the store.
+ * timestamps are kept non decreasing, so time ranges are found by binary search.
+ *
+ * floats hold integers up to 2^24 exactly, so temperatures and flags use float columns too.
+ */
+final class TelemetryStore {
+
+    /**
+     * aggregate of one column over a time window, reusable
+     */
+    static final class Window {
+        int count;
+        float min;
+        float max;
+        double sum;
+        float first;
+        float last;
+
+        double mean() {
+            return count > 0 ? sum / count : Double.NaN;
+        }
+    }
+
+    private static final int MAX_RETRIES = 4;
+
+    private final String[] columns;
+    private final int capacity;
+    private final long[] times;
+    private final float[][] values; // [column][slot]
+
+    private volatile long reserved; // rows announced by the writer
+    private volatile long count;    // rows completely written
+    private volatile int fence;     // only accessed for the ordering, see class comment
+    private long lastTime;
+
+    TelemetryStore(int capacity, String... columns) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity " + capacity);
+        this.capacity = capacity;
+        this.columns = columns.clone();
+        this.times = new long[capacity];
+        this.values = new float[columns.length][capacity];
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    int getColumnCount() {
+        return columns.length;
+    }
+
+    String getColumnName(int column) {
+        return columns[column];
+    }
+
+    /**
+     * @return column index, -1 if unknown
+     */
+    int columnIndex(String name) {
+        for (int i = 0; i < columns.length; i++)
+            if (columns[i].equals(name))
+                return i;
+        return -1;
+    }
+
+    /**
+     * @return rows currently held
+     */
+    int size() {
+        return (int) Math.min(count, capacity);
+    }
+
+    /**
+     * @return rows appended since creation or clear, including evicted rows
+     */
+    long getTotalCount() {
+        return count;
+    }
+
+    /**
+     * single writer only
+     *
+     * @param row one value per column, NaN for missing values
+     */
+    void append(long timeMillis, float[] row) {
+        long index = count;
+        int slot = (int) (index % capacity);
+        reserved = index + 1;
+        storeFence();
+        lastTime = Math.max(lastTime, timeMillis);
+        times[slot] = lastTime;
+        for (int c = 0; c < values.length; c++)
+            values[c][slot] = row[c];
+        count = index + 1;
+    }
+
+    /**
+     * single writer only, not concurrently with readers
+     */
+    void clear() {
+        count = 0;
+        reserved = 0;
+        lastTime = 0;
+    }
+
+    /**
+     * @return time of the newest row, 0 if empty
+     */
+    long latestTime() {
+        for (int retry = 0; retry < MAX_RETRIES; retry++) {
+            long n = count;
+            if (n == 0)
+                return 0;
+            long time = times[(int) ((n - 1) % capacity)];
+            if (isIntact(n - 1))
+                return time;
+        }
+        return 0;
+    }
+
+    /**
+     * @return time of the oldest row still held, 0 if empty
+     */
+    long oldestTime() {
+        for (int retry = 0; retry < MAX_RETRIES; retry++) {
+            long n = count;
+            if (n == 0)
+                return 0;
+            long oldest = Math.max(0, n - capacity);
+            long time = times[(int) (oldest % capacity)];
+            if (isIntact(oldest))
+                return time;
+        }
+        return 0;
+    }
+
+    /**
+     * @return newest value of the column, NaN if empty
+     */
+    float latest(int column) {
+        for (int retry = 0; retry < MAX_RETRIES; retry++) {
+            long n = count;
+            if (n == 0)
+                return Float.NaN;
+            float value = values[column][(int) ((n - 1) % capacity)];
+            if (isIntact(n - 1))
+                return value;
+        }
+        return Float.NaN;
+    }
+
+    /**
+     * copy rows with fromMillis <= time < toMillis, oldest first, at most outTimes.length rows
+     *
+     * @return number of rows copied
+     */
+    int range(int column, long fromMillis, long toMillis, long[] outTimes, float[] outValues) {
+        int max = Math.min(outTimes.length, outValues.length);
+        for (int retry = 0; retry < MAX_RETRIES; retry++) {
+            long n = count;
+            long first = lowerBound(n, fromMillis);
+            long end = lowerBound(n, toMillis);
+            if (first < 0 || end < 0)
+                continue;
+            int copied = (int) Math.min(end - first, max);
+            float[] v = values[column];
+            int slot = (int) (first % capacity);
+            for (int i = 0; i < copied; i++) {
+                outTimes[i] = times[slot];
+                outValues[i] = v[slot];
+                if (++slot == capacity) slot = 0;
+            }
+            if (isIntact(first))
+                return copied;
+        }
+        return 0;
+    }
+
+    /**
+     * aggregate rows with fromMillis <= time < toMillis, NaN values are skipped
+     *
+     * @return window.count
+     */
+    int window(int column, long fromMillis, long toMillis, Window window) {
+        for (int retry = 0; retry < MAX_RETRIES; retry++) {
+            window.count = 0;
+            window.sum = 0;
+            window.min = window.max = window.first = window.last = Float.NaN;
+            long n = count;
+            long first = lowerBound(n, fromMillis);
+            long end = lowerBound(n, toMillis);
+            if (first < 0 || end < 0)
+                continue;
+            float[] v = values[column];
+            int slot = (int) (first % capacity);
+            for (long i = first; i < end; i++) {
+                float value = v[slot];
+                if (++slot == capacity) slot = 0;
+                if (value != value) // NaN
+                    continue;
+                if (window.count++ == 0) {
+                    window.min = window.max = window.first = value;
+                } else {
+                    if (value < window.min) window.min = value;
+                    if (value > window.max) window.max = value;
+                }
+                window.last = value;
+                window.sum += value;
+            }
+            if (isIntact(first))
+                return window.count;
+        }
+        window.count = 0;
+        return 0;
+    }
+
+    /**
+     * @return first row index with time >= millis, n if none, -1 if overwritten while searching
+     */
+    private long lowerBound(long n, long millis) {
+        long lo = Math.max(0, n - capacity);
+        long oldest = lo;
+        long hi = n;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (times[(int) (mid % capacity)] < millis)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return isIntact(oldest) ? lo : -1;
+    }
+
+    /**
+     * @return true if rows from index on were not announced for overwrite yet
+     */
+    private boolean isIntact(long index) {
+        fence = 0; // load fence, rows read before are not read after reserved
+        return reserved - capacity <= index;
+    }
+
+    /**
+     * after the volatile store of reserved, the row is not written before it is announced
+     */
+    private void storeFence() {
+        //noinspection unused
+        int unused = fence;
+    }
+}
@@ -6,10 +6,12 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.text.method.ScrollingMovementMethod;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.TextView;
 
@@ -25,8 +27,12 @@ public class TerminalFragment extends Fragment {
     private boolean bound = false;
 
     private EditText delayInput;
+    private EditText intervalInput;
+    private CheckBox persistentCheck;
     private Button setButton;
     private TextView delayDisplay;
+    private TextView metricsView;
+    private Dashboard dashboard;
 
     private final ServiceConnection connection = new ServiceConnection() {
         @Override
@@ -36,10 +42,14 @@ public class TerminalFragment extends Fragment {
             bound = true;
 
             updateNumberUI();
+            if (dashboard != null)
+                dashboard.setLatestSample(serialService.getLatestSample());
         }
 
         @Override
         public void onServiceDisconnected(ComponentName name) {
+            if (dashboard != null)
+                dashboard.setLatestSample(null);
             bound = false;
             serialService = null;
         }
@@ -61,10 +71,23 @@ public class TerminalFragment extends Fragment {
         Button startButton = view.findViewById(R.id.button_start);
         Button stopButton = view.findViewById(R.id.button_stop);
         delayInput = view.findViewById(R.id.delayInput);
+        intervalInput = view.findViewById(R.id.intervalInput);
+        persistentCheck = view.findViewById(R.id.persistentCheck);
         setButton = view.findViewById(R.id.setButton);
         delayDisplay = view.findViewById(R.id.delayDisplay);
+        metricsView = view.findViewById(R.id.metricsView);
+        metricsView.setMovementMethod(new ScrollingMovementMethod());
+        dashboard = new Dashboard(view);
+        if (bound)
+            dashboard.setLatestSample(serialService.getLatestSample());
 
         setButton.setOnClickListener(v -> setNumberFromInput());
+        persistentCheck.setOnCheckedChangeListener((v, checked) -> {
+            if (bound) {
+                serialService.setPersistentSession(checked);
+                updateNumberUI();
+            }
+        });
 
         startButton.setOnClickListener(v -> {
             if (bound) {
@@ -79,6 +102,26 @@ public class TerminalFragment extends Fragment {
             }
         });
 
+        view.findViewById(R.id.button_metrics).setOnClickListener(v -> {
+            if (bound) {
+                serialService.getMetricsSnapshot(metrics -> metricsView.setText(metrics + "\n\ndashboard: " + dashboard.getStatistics()));
+            }
+        });
+
+        view.findViewById(R.id.button_export).setOnClickListener(v -> {
+            if (bound) {
+                serialService.getMetricsSnapshot(metrics -> {
+                    if (!isAdded())
+                        return;
+                    Intent intent = new Intent(Intent.ACTION_SEND);
+                    intent.setType("text/plain");
+                    intent.putExtra(Intent.EXTRA_SUBJECT, "OBD metrics");
+                    intent.putExtra(Intent.EXTRA_TEXT, metrics);
+                    startActivity(Intent.createChooser(intent, "Export metrics"));
+                });
+            }
+        });
+
         return view;
     }
 
@@ -91,6 +134,8 @@ public class TerminalFragment extends Fragment {
 
         // Bind al servizio per la comunicazione UI
         getActivity().bindService(intent, connection, Context.BIND_AUTO_CREATE);
+        if (dashboard != null)
+            dashboard.start();
     }
 
     @Override
@@ -99,6 +144,8 @@ public class TerminalFragment extends Fragment {
 
         // Unbind dal servizio per liberare il binding UI
         // Ma NON fermare il servizio: resterà vivo grazie a startForeground() nel service
+        if (dashboard != null)
+            dashboard.stop();
         if (bound && getActivity() != null) {
             getActivity().unbindService(connection);
             bound = false;
@@ -108,16 +155,26 @@ public class TerminalFragment extends Fragment {
     public void updateNumberUI() {
         if(bound) {
             int value = serialService.getDelay();
-            delayDisplay.setText("Current value: " + value);
+            boolean persistent = serialService.isPersistentSession();
+            persistentCheck.setChecked(persistent);
+            if (persistent)
+                delayDisplay.setText("Current value: " + serialService.getPollInterval() + " ms, connection kept");
+            else
+                delayDisplay.setText("Current value: " + value);
         }
     }
 
     public void setNumberFromInput() {
         if(bound) {
-            int value = Integer.parseInt(delayInput.getText().toString());
-            serialService.setDelay(value);
+            String delay = delayInput.getText().toString();
+            if (!delay.isEmpty())
+                serialService.setDelay(Integer.parseInt(delay));
+            String interval = intervalInput.getText().toString();
+            if (!interval.isEmpty())
+                serialService.setPollInterval(Integer.parseInt(interval));
             updateNumberUI(); // refresh display
             delayInput.setText(""); // clear input
+            intervalInput.setText("");
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,368 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * drive, charge and idle sessions detected in the sample stream, with running statistics
+ *
+ * add() updates the open trip in constant time, summaries never re-scan history.
+ * energy is integrated from DC_BATTERY_POWER with the trapezoidal rule, discharge and
+ * charge (incl. regeneration) separately, split at zero crossings. power is positive
+ * while discharging, as reported by the BMS.
+ * not charging with less than IDLE_CURRENT_AMPS is idle, e.g. parked with the adapter awake.
+ * speed is not polled, so short stops like traffic lights stay part of the drive and a drive
+ * only ends when idle for IDLE_MILLIS.
+ * a trip ends when the kind changes or no sample arrived for TRIP_GAP_MILLIS,
+ * the last finished trips are kept in a ring of reused Trip objects.
+ */
+final class TripAggregator {
+
+    interface Listener {
+        /**
+         * called on the thread of add(), trip is only valid during the call
+         */
+        void onTripEnd(Trip trip);
+    }
+
+    static final int DRIVE = 0;
+    static final int CHARGE = 1;
+    static final int IDLE = 2;
+
+    static final int CURVE_BINS = 10; // charging curve by SOC, 0..10 % .. 90..100 %
+    static final long TRIP_GAP_MILLIS = 5 * 60 * 1000;
+    static final long IDLE_MILLIS = 2 * 60 * 1000;
+    static final double IDLE_CURRENT_AMPS = 1;
+    private static final long MAX_INTEGRATION_GAP_MILLIS = 30 * 1000; // no energy over longer gaps
+
+    /**
+     * statistics of one drive, charge or idle session, reusable
+     */
+    static final class Trip {
+        int kind;
+        boolean rapid; // charge with the DC rapid charge port
+        long startMillis;
+        long endMillis;
+        long samples;
+        double energyOutKwh; // discharged
+        double energyInKwh;  // charged or regenerated
+        double integratedHours;
+        double maxPowerKw;
+        double minPowerKw;
+        double minTemperature;
+        double maxTemperature;
+        double socStart;
+        double socEnd;
+        double chargedStart; // CUMULATIVE_ENERGY_CHARGED of the BMS
+        double chargedEnd;
+        double dischargedStart;
+        double dischargedEnd;
+        // charging curve, by SOC at the start of each interval
+        final double[] curveHours = new double[CURVE_BINS];
+        final double[] curveEnergyKwh = new double[CURVE_BINS];
+        final double[] curveMaxPowerKw = new double[CURVE_BINS];
+
+        Trip() {
+            clear();
+        }
+
+        long getDurationMillis() {
+            return endMillis - startMillis;
+        }
+
+        /**
+         * @return time weighted mean power, positive while discharging
+         */
+        double getMeanPowerKw() {
+            return integratedHours > 0 ? (energyOutKwh - energyInKwh) / integratedHours : Double.NaN;
+        }
+
+        double getSocDelta() {
+            return socEnd - socStart;
+        }
+
+        /**
+         * @return energy charged as counted by the BMS, for comparison with energyInKwh
+         */
+        double getBmsChargedKwh() {
+            return chargedEnd - chargedStart;
+        }
+
+        double getBmsDischargedKwh() {
+            return dischargedEnd - dischargedStart;
+        }
+
+        void clear() {
+            kind = DRIVE;
+            rapid = false;
+            startMillis = 0;
+            endMillis = 0;
+            samples = 0;
+            energyOutKwh = 0;
+            energyInKwh = 0;
+            integratedHours = 0;
+            maxPowerKw = Double.NaN;
+            minPowerKw = Double.NaN;
+            minTemperature = Double.NaN;
+            maxTemperature = Double.NaN;
+            socStart = Double.NaN;
+            socEnd = Double.NaN;
+            chargedStart = Double.NaN;
+            chargedEnd = Double.NaN;
+            dischargedStart = Double.NaN;
+            dischargedEnd = Double.NaN;
+            for (int i = 0; i < CURVE_BINS; i++) {
+                curveHours[i] = 0;
+                curveEnergyKwh[i] = 0;
+                curveMaxPowerKw[i] = Double.NaN;
+            }
+        }
+
+        void copyFrom(Trip other) {
+            kind = other.kind;
+            rapid = other.rapid;
+            startMillis = other.startMillis;
+            endMillis = other.endMillis;
+            samples = other.samples;
+            energyOutKwh = other.energyOutKwh;
+            energyInKwh = other.energyInKwh;
+            integratedHours = other.integratedHours;
+            maxPowerKw = other.maxPowerKw;
+            minPowerKw = other.minPowerKw;
+            minTemperature = other.minTemperature;
+            maxTemperature = other.maxTemperature;
+            socStart = other.socStart;
+            socEnd = other.socEnd;
+            chargedStart = other.chargedStart;
+            chargedEnd = other.chargedEnd;
+            dischargedStart = other.dischargedStart;
+            dischargedEnd = other.dischargedEnd;
+            System.arraycopy(other.curveHours, 0, curveHours, 0, CURVE_BINS);
+            System.arraycopy(other.curveEnergyKwh, 0, curveEnergyKwh, 0, CURVE_BINS);
+            System.arraycopy(other.curveMaxPowerKw, 0, curveMaxPowerKw, 0, CURVE_BINS);
+        }
+
+        StringBuilder appendTo(StringBuilder sb, SimpleDateFormat timeFormat) {
+            sb.append(kind == CHARGE ? (rapid ? "Charge DC " : "Charge AC ") : kind == IDLE ? "Idle " : "Drive ")
+                    .append(timeFormat.format(new Date(startMillis)))
+                    .append(", ").append(getDurationMillis() / 60000).append(" min, ")
+                    .append(samples).append(" samples")
+                    .append("\nenergy: ").append(round(energyOutKwh, 100)).append(" kWh out, ")
+                    .append(round(energyInKwh, 100)).append(" kWh in (BMS ")
+                    .append(round(getBmsDischargedKwh(), 10)).append(" out, ")
+                    .append(round(getBmsChargedKwh(), 10)).append(" in)")
+                    .append("\nSOC: ").append(socStart).append(" -> ").append(socEnd).append(" %")
+                    .append("\npower: mean ").append(round(getMeanPowerKw(), 10))
+                    .append(" kW, range ").append(minPowerKw).append(" .. ").append(maxPowerKw).append(" kW")
+                    .append("\ntemperature: ").append(minTemperature).append(" .. ").append(maxTemperature).append(" \u00b0C");
+            if (kind == CHARGE) {
+                for (int i = 0; i < CURVE_BINS; i++) {
+                    if (curveHours[i] <= 0)
+                        continue;
+                    sb.append("\nSOC ").append(i * 100 / CURVE_BINS).append("..").append((i + 1) * 100 / CURVE_BINS)
+                            .append(" %: ").append(Math.round(curveHours[i] * 60)).append(" min, ")
+                            .append(round(curveEnergyKwh[i], 10)).append(" kWh, mean ")
+                            .append(round(curveEnergyKwh[i] / curveHours[i], 10)).append(" kW, max ")
+                            .append(curveMaxPowerKw[i]).append(" kW");
+                }
+            }
+            return sb;
+        }
+
+        private static double round(double value, int scale) {
+            return value == value ? Math.round(value * scale) / (double) scale : value;
+        }
+    }
+
+    private final Listener listener;
+    private final Trip current = new Trip();
+    private final Trip[] finished;
+    private int head;  // next write position in finished
+    private int finishedCount;
+    private boolean open;
+    private double lastPower;
+    private long idleSinceMillis = -1; // first idle sample of the open drive
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.US);
+
+    /**
+     * @param capacity finished trips kept
+     * @param listener null if not needed
+     */
+    TripAggregator(int capacity, Listener listener) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity " + capacity);
+        this.listener = listener;
+        finished = new Trip[capacity];
+        for (int i = 0; i < capacity; i++)
+            finished[i] = new Trip();
+    }
+
+    /**
+     * samples without 220101 values are ignored, timestamps are expected in order
+     */
+    synchronized void add(BmsSample sample) {
+        if (!sample.isValid(BmsSample.DC_BATTERY_POWER))
+            return;
+        int kind = kind(sample);
+        long time = sample.timeMillis;
+        double power = sample.values[BmsSample.DC_BATTERY_POWER];
+        if (open && current.kind == DRIVE && kind == IDLE) {
+            if (idleSinceMillis < 0)
+                idleSinceMillis = time;
+            if (time - idleSinceMillis < IDLE_MILLIS)
+                kind = DRIVE; // short stop
+        } else {
+            idleSinceMillis = -1;
+        }
+        if (open && (kind != current.kind || time < current.endMillis || time - current.endMillis > TRIP_GAP_MILLIS))
+            finish();
+        if (!open) {
+            open = true;
+            current.clear();
+            current.kind = kind;
+            current.startMillis = time;
+            idleSinceMillis = -1;
+            current.socStart = sample.get(BmsSample.SOC_BMS);
+            current.chargedStart = sample.get(BmsSample.CUMULATIVE_ENERGY_CHARGED);
+            current.dischargedStart = sample.get(BmsSample.CUMULATIVE_ENERGY_DISCHARGED);
+        } else if (time - current.endMillis <= MAX_INTEGRATION_GAP_MILLIS) {
+            integrate(lastPower, power, (time - current.endMillis) / 3600000.0);
+        }
+        Trip t = current;
+        t.endMillis = time;
+        t.samples++;
+        lastPower = power;
+        if (sample.get(BmsSample.RAPID_CHARGE_PORT) == 1)
+            t.rapid = true;
+        t.maxPowerKw = max(t.maxPowerKw, power);
+        t.minPowerKw = min(t.minPowerKw, power);
+        t.minTemperature = min(t.minTemperature, sample.get(BmsSample.BATTERY_MIN_TEMPERATURE));
+        t.maxTemperature = max(t.maxTemperature, sample.get(BmsSample.BATTERY_MAX_TEMPERATURE));
+        double soc = sample.get(BmsSample.SOC_BMS);
+        if (soc == soc) {
+            if (t.socStart != t.socStart)
+                t.socStart = soc;
+            t.socEnd = soc;
+            if (t.kind == CHARGE) {
+                int bin = bin(soc);
+                t.curveMaxPowerKw[bin] = max(t.curveMaxPowerKw[bin], -power);
+            }
+        }
+        double charged = sample.get(BmsSample.CUMULATIVE_ENERGY_CHARGED);
+        if (charged == charged) {
+            if (t.chargedStart != t.chargedStart)
+                t.chargedStart = charged;
+            t.chargedEnd = charged;
+        }
+        double discharged = sample.get(BmsSample.CUMULATIVE_ENERGY_DISCHARGED);
+        if (discharged == discharged) {
+            if (t.dischargedStart != t.dischargedStart)
+                t.dischargedStart = discharged;
+            t.dischargedEnd = discharged;
+        }
+    }
+
+    /**
+     * trapezoid between the previous and this sample, the charging curve uses the SOC
+     * of the previous sample still in current.socEnd
+     */
+    private void integrate(double p0, double p1, double hours) {
+        double out, in;
+        if (p0 >= 0 && p1 >= 0) {
+            out = (p0 + p1) / 2 * hours;
+            in = 0;
+        } else if (p0 <= 0 && p1 <= 0) {
+            out = 0;
+            in = -(p0 + p1) / 2 * hours;
+        } else { // sign change, split at the zero crossing
+            double zero = hours * p0 / (p0 - p1);
+            if (p0 > 0) {
+                out = p0 * zero / 2;
+                in = -p1 * (hours - zero) / 2;
+            } else {
+                in = -p0 * zero / 2;
+                out = p1 * (hours - zero) / 2;
+            }
+        }
+        Trip t = current;
+        t.energyOutKwh += out;
+        t.energyInKwh += in;
+        t.integratedHours += hours;
+        if (t.kind == CHARGE && t.socEnd == t.socEnd) {
+            int bin = bin(t.socEnd);
+            t.curveHours[bin] += hours;
+            t.curveEnergyKwh[bin] += in - out;
+        }
+    }
+
+    private static int kind(BmsSample sample) {
+        if (sample.get(BmsSample.CHARGING) == 1)
+            return CHARGE;
+        return Math.abs(sample.get(BmsSample.DC_BATTERY_CURRENT)) < IDLE_CURRENT_AMPS ? IDLE : DRIVE; // NaN is drive
+    }
+
+    private static int bin(double soc) {
+        return Math.max(0, Math.min(CURVE_BINS - 1, (int) (soc * CURVE_BINS / 100)));
+    }
+
+    private static double min(double a, double b) {
+        return a != a || b < a ? b : a; // NaN a is replaced, NaN b ignored
+    }
+
+    private static double max(double a, double b) {
+        return a != a || b > a ? b : a;
+    }
+
+    /**
+     * end the open trip, e.g. when the session ends
+     */
+    synchronized void finish() {
+        if (!open)
+            return;
+        open = false;
+        Trip trip = finished[head];
+        trip.copyFrom(current);
+        head = (head + 1) % finished.length;
+        if (finishedCount < finished.length)
+            finishedCount++;
+        if (listener != null)
+            listener.onTripEnd(trip);
+    }
+
+    /**
+     * @return false if no trip is open
+     */
+    synchronized boolean getCurrent(Trip out) {
+        if (!open)
+            return false;
+        out.copyFrom(current);
+        return true;
+    }
+
+    synchronized int getFinishedCount() {
+        return finishedCount;
+    }
+
+    /**
+     * @param index 0 for the newest
+     */
+    synchronized void getFinished(int index, Trip out) {
+        if (index < 0 || index >= finishedCount)
+            throw new IndexOutOfBoundsException(index + " >= " + finishedCount);
+        out.copyFrom(finished[(head - 1 - index + finished.length) % finished.length]);
+    }
+
+    /**
+     * open trip and up to maxTrips finished trips, newest first
+     */
+    synchronized StringBuilder appendTo(StringBuilder sb, int maxTrips) {
+        if (open)
+            current.appendTo(sb.append("current: "), timeFormat);
+        else
+            sb.append("current: none");
+        for (int i = 0; i < Math.min(maxTrips, finishedCount); i++)
+            finished[(head - 1 - i + finished.length) % finished.length].appendTo(sb.append("\n\n"), timeFormat);
+        return sb;
+    }
+}
@@ -0,0 +1,290 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * decoded samples waiting for upload, as gzip compressed csv batches in a directory
+ *
+ * append() writes rows through a GZIPOutputStream into the open batch, a .part file. the batch
+ * is sealed when it has maxRows rows or its first row is maxMillis old: the gzip stream is
+ * finished and the file renamed to sequence-rows-rawbytes.csv.gz, it is never written again.
+ * every batch is a complete csv with its own header line. sealed batches survive a restart
+ * and are deleted only when the uploader is done with them, so uploads resume with the
+ * oldest batch not confirmed. a .part file left by a killed process is no complete gzip
+ * stream and is deleted on open, the HistoryFile still has these rows.
+ * when the sealed batches exceed maxBytes, the oldest are dropped.
+ * the next sequence number is kept in a file written on seal, so it continues after all
+ * batches were uploaded and deleted, and the server does not take new batches as duplicates.
+ */
+final class UploadSpool {
+
+    /**
+     * sealed batch, the file name holds the sequence number, rows and uncompressed size
+     */
+    static final class Batch {
+        final File file;
+        final long sequence;
+        final int rows;
+        final long rawBytes;
+        final long size;
+
+        Batch(File file, long sequence, int rows, long rawBytes) {
+            this.file = file;
+            this.sequence = sequence;
+            this.rows = rows;
+            this.rawBytes = rawBytes;
+            this.size = file.length();
+        }
+
+        byte[] read() throws IOException {
+            byte[] data = new byte[(int) file.length()];
+            try (InputStream in = new FileInputStream(file)) {
+                int n = 0;
+                while (n < data.length) {
+                    int r = in.read(data, n, data.length - n);
+                    if (r < 0)
+                        throw new IOException("batch " + sequence + " truncated");
+                    n += r;
+                }
+            }
+            return data;
+        }
+    }
+
+    private static final String SEALED = ".csv.gz";
+    private static final String PART = ".part";
+    private static final String SEQUENCE = "sequence"; // next sequence number
+    private static final String SEQUENCE_TEMP = "sequence.tmp";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final File dir;
+    private final String[] columns;
+    private final int maxRows;
+    private final long maxMillis;
+    private final long maxBytes;
+
+    private final ArrayDeque<Batch> sealed = new ArrayDeque<>();
+    private long sealedBytes;
+    private long nextSequence;
+
+    // open batch
+    private File part;
+    private Writer writer;
+    private int rows;
+    private long rawBytes;
+    private long firstTime;
+    private boolean closed;
+
+    private final StringBuilder line = new StringBuilder(512);
+    private char[] chars = new char[512];
+
+    private long droppedBatches;
+    private long droppedRows;
+
+    /**
+     * @param maxRows   rows per batch
+     * @param maxMillis age of the first row of the open batch before it is sealed
+     * @param maxBytes  compressed size of all sealed batches, older batches are dropped
+     */
+    UploadSpool(File dir, String[] columns, int maxRows, long maxMillis, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.columns = columns.clone();
+        this.maxRows = maxRows;
+        this.maxMillis = maxMillis;
+        this.maxBytes = maxBytes;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+        File[] files = dir.listFiles();
+        if (files == null)
+            throw new IOException("cannot list " + dir);
+        Arrays.sort(files); // zero padded sequence numbers, oldest first
+        for (File file : files) {
+            String name = file.getName();
+            if (name.equals(SEQUENCE))
+                continue;
+            String[] fields = name.endsWith(SEALED) ? name.substring(0, name.length() - SEALED.length()).split("-") : null;
+            if (fields == null || fields.length != 3) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete(); // torn .part or sequence.tmp
+                continue;
+            }
+            Batch batch;
+            try {
+                batch = new Batch(file, Long.parseLong(fields[0]), Integer.parseInt(fields[1]), Long.parseLong(fields[2]));
+            } catch (NumberFormatException e) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                continue;
+            }
+            sealed.add(batch);
+            sealedBytes += batch.size;
+            nextSequence = batch.sequence + 1;
+        }
+        nextSequence = Math.max(nextSequence, readSequence());
+    }
+
+    /**
+     * single writer
+     *
+     * @param row one value per column, NaN for missing values
+     */
+    synchronized void append(long timeMillis, float[] row) throws IOException {
+        if (writer == null)
+            open(timeMillis);
+        line.setLength(0);
+        line.append(timeMillis);
+        for (float value : row) {
+            line.append(',');
+            if (value == value)
+                line.append(value);
+        }
+        write(line.append('\n'));
+        if (++rows >= maxRows)
+            seal();
+    }
+
+    /**
+     * seal the open batch if its first row is maxMillis older than nowMillis, from any thread
+     */
+    synchronized void sealIfDue(long nowMillis) throws IOException {
+        if (writer != null && nowMillis - firstTime >= maxMillis)
+            seal();
+    }
+
+    /**
+     * @return oldest sealed batch, null if none
+     */
+    synchronized Batch peek() {
+        return sealed.peekFirst();
+    }
+
+    /**
+     * delete a batch after it was uploaded or rejected. false if it was dropped meanwhile
+     */
+    synchronized boolean remove(Batch batch) {
+        if (!sealed.remove(batch))
+            return false;
+        sealedBytes -= batch.size;
+        //noinspection ResultOfMethodCallIgnored
+        batch.file.delete();
+        return true;
+    }
+
+    synchronized int getBatchCount() {
+        return sealed.size();
+    }
+
+    synchronized long getSealedBytes() {
+        return sealedBytes;
+    }
+
+    synchronized int getPendingRows() {
+        return rows;
+    }
+
+    synchronized StringBuilder appendStatistics(StringBuilder sb) {
+        sb.append("spool: ").append(sealed.size()).append(" batches, ")
+                .append(sealedBytes / 1024).append(" kB, ")
+                .append(rows).append(" rows in open batch");
+        if (droppedBatches > 0)
+            sb.append(", dropped ").append(droppedBatches).append(" batches / ").append(droppedRows).append(" rows");
+        return sb;
+    }
+
+    /**
+     * seal the open batch, further appends fail
+     */
+    synchronized void close() throws IOException {
+        if (writer != null)
+            seal();
+        closed = true;
+    }
+
+    private void open(long timeMillis) throws IOException {
+        if (closed)
+            throw new IOException("spool closed");
+        part = new File(dir, String.format(Locale.US, "%016d", nextSequence) + PART);
+        writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(part), 8192), ASCII);
+        rows = 0;
+        rawBytes = 0;
+        firstTime = timeMillis;
+        line.setLength(0);
+        line.append("time");
+        for (String name : columns)
+            line.append(',').append(name);
+        write(line.append('\n'));
+    }
+
+    private void write(StringBuilder sb) throws IOException {
+        int length = sb.length();
+        if (chars.length < length)
+            chars = new char[length];
+        sb.getChars(0, length, chars, 0);
+        writer.write(chars, 0, length);
+        rawBytes += length;
+    }
+
+    private void seal() throws IOException {
+        Writer w = writer;
+        writer = null;
+        w.close(); // finishes the gzip stream
+        long sequence = nextSequence++;
+        writeSequence(nextSequence); // before the batch can be uploaded and deleted
+        File file = new File(dir, String.format(Locale.US, "%016d-%d-%d", sequence, rows, rawBytes) + SEALED);
+        if (!part.renameTo(file))
+            throw new IOException("cannot rename " + part);
+        Batch batch = new Batch(file, sequence, rows, rawBytes);
+        sealed.add(batch);
+        sealedBytes += batch.size;
+        rows = 0;
+        while (sealedBytes > maxBytes && sealed.size() > 1) {
+            Batch oldest = sealed.pollFirst();
+            sealedBytes -= oldest.size;
+            droppedBatches++;
+            droppedRows += oldest.rows;
+            //noinspection ResultOfMethodCallIgnored
+            oldest.file.delete();
+        }
+    }
+
+    /**
+     * @return 0 if missing or unreadable, the sealed batches still give a lower bound
+     */
+    private long readSequence() {
+        File file = new File(dir, SEQUENCE);
+        byte[] data = new byte[20];
+        int n = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int r;
+            while (n < data.length && (r = in.read(data, n, data.length - n)) > 0)
+                n += r;
+            return Long.parseLong(new String(data, 0, n, ASCII).trim());
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * replaced with a rename, a torn write leaves the previous value
+     */
+    private void writeSequence(long sequence) throws IOException {
+        File temp = new File(dir, SEQUENCE_TEMP);
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(Long.toString(sequence).getBytes(ASCII));
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(new File(dir, SEQUENCE)))
+            throw new IOException("cannot rename " + temp);
+    }
+}
@@ -0,0 +1,217 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * sends the sealed batches of an UploadSpool to an http endpoint, oldest first, on its own thread
+ *
+ * one POST per batch, the gzip file as body with Content-Encoding: gzip, so nothing is
+ * compressed twice. X-Batch-Sequence lets the server skip a batch it already has: a batch
+ * whose response got lost is sent again. 2xx deletes the batch, 4xx other than 408 and 429
+ * drops it as rejected, it would never be accepted. other replies and connection errors retry
+ * the same batch after a backoff doubling from MIN_BACKOFF_MILLIS to MAX_BACKOFF_MILLIS, with
+ * up to 25% jitter. wake() retries at once, e.g. when the network is back.
+ * without endpoint nothing is sent and the spool keeps growing up to its limit.
+ */
+final class Uploader {
+
+    static final long MIN_BACKOFF_MILLIS = 5 * 1000;
+    static final long MAX_BACKOFF_MILLIS = 15 * 60 * 1000;
+    static final long IDLE_MILLIS = 30 * 1000; // check for a batch due by time
+    private static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 30 * 1000;
+
+    private final UploadSpool spool;
+    private final ScheduledExecutorService executor;
+    private final Random random = new Random();
+    private volatile URL endpoint;
+
+    // upload thread
+    private ScheduledFuture<?> next;
+    private long backoffMillis;
+
+    // statistics
+    private final LatencyHistogram uploadTime = new LatencyHistogram("upload");
+    private long batches;
+    private long rows;
+    private long rawBytes;
+    private long bytes;
+    private long nanos;
+    private long minBatchBytes = Long.MAX_VALUE;
+    private long maxBatchBytes;
+    private long rejected;
+    private long failures;
+    private String lastError;
+
+    /**
+     * @param executor upload thread, not shared with the bluetooth reader
+     */
+    Uploader(UploadSpool spool, ScheduledExecutorService executor) {
+        this.spool = spool;
+        this.executor = executor;
+    }
+
+    /**
+     * start uploading to url, null to stop, any thread
+     */
+    void setEndpoint(URL url) {
+        endpoint = url;
+        executor.execute(() -> {
+            backoffMillis = 0;
+            schedule(0);
+        });
+    }
+
+    boolean isEnabled() {
+        return endpoint != null;
+    }
+
+    /**
+     * retry without waiting for the backoff, any thread
+     */
+    void wake() {
+        executor.execute(() -> {
+            backoffMillis = 0;
+            schedule(0);
+        });
+    }
+
+    /**
+     * upload thread
+     */
+    private void run() {
+        URL url = endpoint;
+        if (url == null)
+            return;
+        try {
+            spool.sealIfDue(System.currentTimeMillis());
+            if (uploadNext(url)) {
+                backoffMillis = 0;
+                schedule(0);
+            } else {
+                schedule(IDLE_MILLIS);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failures++;
+                lastError = e.getMessage();
+            }
+            backoffMillis = backoffMillis == 0 ? MIN_BACKOFF_MILLIS : Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+            schedule(backoffMillis + (long) (random.nextDouble() * backoffMillis / 4));
+        }
+    }
+
+    private void schedule(long delayMillis) {
+        if (next != null)
+            next.cancel(false);
+        next = endpoint == null ? null : executor.schedule(this::run, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * send the oldest batch, upload thread or directly, e.g. from a benchmark
+     *
+     * @return false if there was no batch
+     * @throws IOException if the batch has to be sent again
+     */
+    boolean uploadNext(URL url) throws IOException {
+        UploadSpool.Batch batch = spool.peek();
+        if (batch == null)
+            return false;
+        byte[] body = batch.read();
+        long start = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        int status;
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", "text/csv");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setRequestProperty("X-Batch-Sequence", Long.toString(batch.sequence));
+            connection.setRequestProperty("X-Batch-Rows", Integer.toString(batch.rows));
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+            status = connection.getResponseCode();
+            drain(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+        } catch (IOException e) {
+            connection.disconnect(); // not reused
+            throw e;
+        }
+        if (status >= 200 && status < 300) {
+            long elapsed = System.nanoTime() - start;
+            spool.remove(batch);
+            uploadTime.record(elapsed);
+            synchronized (this) {
+                nanos += elapsed;
+                batches++;
+                rows += batch.rows;
+                rawBytes += batch.rawBytes;
+                bytes += body.length;
+                minBatchBytes = Math.min(minBatchBytes, body.length);
+                maxBatchBytes = Math.max(maxBatchBytes, body.length);
+            }
+            return true;
+        }
+        if (status >= 400 && status < 500 && status != 408 && status != 429) {
+            spool.remove(batch);
+            synchronized (this) {
+                rejected++;
+                lastError = "batch " + batch.sequence + " rejected with HTTP " + status;
+            }
+            return true;
+        }
+        throw new IOException("HTTP " + status);
+    }
+
+    /**
+     * read the response to the end, so the connection is kept alive for the next batch
+     */
+    private static void drain(InputStream in) throws IOException {
+        if (in == null)
+            return;
+        try (InputStream i = in) {
+            byte[] buffer = new byte[1024];
+            //noinspection StatementWithEmptyBody
+            while (i.read(buffer) >= 0) ;
+        }
+    }
+
+    synchronized long getUploadedBatches() {
+        return batches;
+    }
+
+    synchronized long getFailures() {
+        return failures;
+    }
+
+    /**
+     * batch sizes, compression ratio, throughput and errors
+     */
+    synchronized StringBuilder appendStatistics(StringBuilder sb) {
+        sb.append("upload: ").append(batches).append(" batches, ").append(rows).append(" rows, ")
+                .append(bytes / 1024).append(" kB");
+        if (batches > 0) {
+            sb.append(", batch ").append(minBatchBytes / 1024).append("..").append(maxBatchBytes / 1024)
+                    .append(" kB avg ").append(bytes / batches / 1024).append(" kB / ").append(rows / batches).append(" rows")
+                    .append(", compression ").append(Math.round(rawBytes * 10.0 / bytes) / 10.0).append(":1")
+                    .append(", ").append(Math.round(bytes / 1024.0 / Math.max(nanos / 1e9, 1e-6))).append(" kB/s");
+        }
+        sb.append(", ").append(rejected).append(" rejected, ").append(failures).append(" failures");
+        if (lastError != null)
+            sb.append(", last error: ").append(lastError);
+        sb.append('\n');
+        uploadTime.appendTo(sb).append('\n');
+        return spool.appendStatistics(sb);
+    }
+}
@@ -0,0 +1,77 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.junit.Test;
+
+import static de.kai_morich.simple_bluetooth_terminal.ObdFrameDecoderTest.REPLY_220101_CHARGING;
+import static de.kai_morich.simple_bluetooth_terminal.ObdFrameDecoderTest.REPLY_220101_DRIVING;
+import static de.kai_morich.simple_bluetooth_terminal.ObdFrameDecoderTest.REPLY_220105;
+import static de.kai_morich.simple_bluetooth_terminal.ObdFrameDecoderTest.bytes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BmsDecoderTest {
+
+    private final BmsDecoder decoder = new BmsDecoder();
+    private final BmsSample sample = new BmsSample();
+
+    private boolean decode220101(String reply) {
+        byte[] b = bytes(reply);
+        return decoder.decode220101(b, 0, b.length, sample);
+    }
+
+    @Test
+    public void charging() {
+        assertTrue(decode220101(REPLY_220101_CHARGING));
+        assertTrue(sample.isValid220101());
+        assertEquals(78.0, sample.get(BmsSample.SOC_BMS), 0);
+        assertEquals(-5.0, sample.get(BmsSample.DC_BATTERY_CURRENT), 0);
+        assertEquals(375.0, sample.get(BmsSample.DC_BATTERY_VOLTAGE), 0);
+        assertEquals(-1.875, sample.get(BmsSample.DC_BATTERY_POWER), 1e-9);
+        assertEquals(22, sample.get(BmsSample.BATTERY_MAX_TEMPERATURE), 0);
+        assertEquals(18, sample.get(BmsSample.BATTERY_MIN_TEMPERATURE), 0);
+        assertEquals(17, sample.get(BmsSample.BATTERY_INLET_TEMPERATURE), 0);
+        assertEquals(14.1, sample.get(BmsSample.AUX_BATTERY_VOLTAGE), 0);
+        assertEquals(4000.0, sample.get(BmsSample.CUMULATIVE_ENERGY_CHARGED), 0);
+        assertEquals(3876.6, sample.get(BmsSample.CUMULATIVE_ENERGY_DISCHARGED), 0);
+        assertEquals(1, sample.get(BmsSample.CHARGING), 0);
+        assertEquals(1, sample.get(BmsSample.NORMAL_CHARGE_PORT), 0);
+        assertEquals(0, sample.get(BmsSample.RAPID_CHARGE_PORT), 0);
+    }
+
+    @Test
+    public void driving() {
+        assertTrue(decode220101(REPLY_220101_DRIVING));
+        assertEquals(61.5, sample.get(BmsSample.SOC_BMS), 0);
+        assertEquals(50.0, sample.get(BmsSample.DC_BATTERY_CURRENT), 0);
+        assertEquals(360.0, sample.get(BmsSample.DC_BATTERY_VOLTAGE), 0);
+        assertEquals(18.0, sample.get(BmsSample.DC_BATTERY_POWER), 1e-9); // kW, not 180
+        assertEquals(26, sample.get(BmsSample.BATTERY_MAX_TEMPERATURE), 0);
+        assertEquals(23, sample.get(BmsSample.BATTERY_MIN_TEMPERATURE), 0);
+        assertEquals(0, sample.get(BmsSample.CHARGING), 0);
+        assertEquals(0, sample.get(BmsSample.NORMAL_CHARGE_PORT), 0);
+        assertEquals(0, sample.get(BmsSample.RAPID_CHARGE_PORT), 0);
+    }
+
+    @Test
+    public void reply220105() {
+        byte[] b = bytes(REPLY_220105);
+        assertTrue(decoder.decode220105(b, 0, b.length, sample));
+        assertTrue(sample.isValid220105());
+        assertEquals(95.0, sample.get(BmsSample.SOH), 0);
+        assertEquals(78.0, sample.get(BmsSample.SOC_DISPLAY), 0);
+        assertFalse(sample.isValid220101());
+    }
+
+    @Test
+    public void incompleteReplyInvalidatesOnlyItsValues() {
+        byte[] b = bytes(REPLY_220105);
+        assertTrue(decoder.decode220105(b, 0, b.length, sample));
+        assertTrue(decode220101(REPLY_220101_DRIVING));
+        assertFalse(decode220101(REPLY_220101_DRIVING.substring(0, 80)));
+        assertFalse(sample.isValid(BmsSample.SOC_BMS));
+        assertFalse(decode220101("NO DATA\r\r>"));
+        assertTrue(Double.isNaN(sample.get(BmsSample.DC_BATTERY_POWER)));
+        assertTrue(sample.isValid220105());
+    }
+}
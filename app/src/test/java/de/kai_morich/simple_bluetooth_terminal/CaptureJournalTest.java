@@ -0,0 +1,120 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class CaptureJournalTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+    private static final byte[] COMMAND = "220101\r".getBytes();
+
+    private File dir;
+    private final ExecutorService storageThread = Executors.newSingleThreadExecutor();
+    private final List<Long> times = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("capture").toFile();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        storageThread.shutdown();
+        storageThread.awaitTermination(10, TimeUnit.SECONDS);
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    private static void append(CaptureJournal journal, long from, long to) throws IOException {
+        byte[] reply = new byte[100];
+        for (long time = from; time < to; time++) {
+            reply[0] = (byte) time;
+            journal.appendResponse(time, COMMAND, reply, 0, reply.length);
+        }
+    }
+
+    private void read(CaptureJournal journal) throws IOException {
+        times.clear();
+        journal.read((type, timeMillis, data, offset, length) -> {
+            assertEquals(CaptureJournal.TYPE_RESPONSE, type);
+            assertEquals(COMMAND.length + 100, length);
+            assertEquals((byte) timeMillis, data[offset + COMMAND.length]);
+            times.add(timeMillis);
+        });
+    }
+
+    private void awaitStorageThread() throws Exception {
+        storageThread.submit(() -> { }).get();
+    }
+
+    private int segmentFiles() {
+        String[] names = dir.list();
+        return names == null ? 0 : names.length;
+    }
+
+    @Test
+    public void rollOnAppendingThread() throws IOException {
+        CaptureJournal journal = new CaptureJournal(dir, SEGMENT_SIZE, 3);
+        append(journal, 0, 200); // 124 bytes per record, 32 per segment
+        read(journal);
+        assertEquals(2 * 32 + 200 % 32, times.size()); // current segment not full
+        assertEquals(200 - times.size(), (long) times.get(0));
+        assertEquals(199, (long) times.get(times.size() - 1));
+        assertEquals(0, journal.getBlockingRolls());
+        journal.close();
+        assertEquals(3, segmentFiles()); // mapped ahead segment deleted
+    }
+
+    @Test
+    public void rollWithPreMappedSegment() throws Exception {
+        CaptureJournal journal = new CaptureJournal(dir, SEGMENT_SIZE, 3, storageThread);
+        awaitStorageThread();
+        for (long time = 0; time < 200; time += 10) {
+            append(journal, time, time + 10);
+            awaitStorageThread(); // reader appends slower than the storage thread maps
+        }
+        assertEquals(0, journal.getBlockingRolls());
+        assertEquals(4, segmentFiles()); // 3 kept, 1 mapped ahead
+        read(journal);
+        assertEquals(200 - times.get(0), times.size());
+        assertEquals(199, (long) times.get(times.size() - 1));
+        storageThread.execute(journal::close);
+        awaitStorageThread();
+        assertEquals(3, segmentFiles());
+    }
+
+    @Test
+    public void reopenAfterPreMappedSegment() throws Exception {
+        CaptureJournal journal = new CaptureJournal(dir, SEGMENT_SIZE, 3, storageThread);
+        append(journal, 0, 50); // rolls once, maybe before the next segment is mapped
+        awaitStorageThread();
+        assertEquals(3, segmentFiles()); // process dies with the next segment mapped ahead
+        journal = new CaptureJournal(dir, SEGMENT_SIZE, 3, storageThread); // continues in the empty one
+        append(journal, 50, 60);
+        awaitStorageThread();
+        read(journal);
+        assertEquals(60, times.size());
+        for (int i = 0; i < times.size(); i++)
+            assertEquals(i, (long) times.get(i));
+        storageThread.execute(journal::close);
+        awaitStorageThread();
+        assertEquals(3, segmentFiles()); // the next one mapped ahead is deleted
+    }
+}
@@ -0,0 +1,174 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HistoryFileTest {
+
+    private static final long START = 1700000000000L;
+    private static final String[] COLUMNS = {"soc", "current", "float", "sparse"};
+
+    private File path;
+    private final List<Long> times = new ArrayList<>();
+    private final List<float[]> rows = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        path = File.createTempFile("history", ".bin");
+        //noinspection ResultOfMethodCallIgnored
+        path.delete();
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        path.delete();
+    }
+
+    private static float[] row(int i) {
+        return new float[]{
+                50 + i / 100 * 0.5f,                  // 1 decimal, slow
+                (i % 50) / 10f - 2.5f,                // 1 decimal
+                (float) Math.sin(i) * 1000,           // no fixed decimals
+                i % 3 == 0 || i % 7 == 0 ? Float.NaN : i % 11, // presence bitmap
+        };
+    }
+
+    private void append(HistoryFile history, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            long time = START + i * 1000L + (i % 4 == 0 ? 3 : 0); // jitter
+            history.append(time, row(i));
+        }
+    }
+
+    private long read(HistoryFile history, long fromMillis, long toMillis, boolean[] selected) throws IOException {
+        times.clear();
+        rows.clear();
+        return history.read(fromMillis, toMillis, selected, (time, row) -> {
+            times.add(time);
+            rows.add(row.clone());
+        });
+    }
+
+    private void assertRows(int from) {
+        for (int j = 0; j < times.size(); j++) {
+            int i = from + j;
+            assertEquals(START + i * 1000L + (i % 4 == 0 ? 3 : 0), (long) times.get(j));
+            float[] expected = row(i);
+            for (int c = 0; c < COLUMNS.length; c++)
+                assertEquals("row " + i + " column " + c, expected[c], rows.get(j)[c], 0);
+        }
+    }
+
+    @Test
+    public void roundTripAcrossBlocksAndPending() throws IOException {
+        int count = (int) (HistoryFile.BLOCK_MILLIS / 1000) * 3 + 100; // 1 Hz
+        HistoryFile history = new HistoryFile(path, COLUMNS);
+        append(history, 0, count);
+        assertEquals(3, history.getBlockCount());
+        assertEquals(count, history.getRowCount());
+        assertEquals(count, read(history, 0, Long.MAX_VALUE, null));
+        assertRows(0);
+        history.close();
+
+        history = new HistoryFile(path, COLUMNS);
+        assertEquals(4, history.getBlockCount()); // pending rows written on close
+        assertEquals(100, read(history, START + 1550 * 1000L, START + 1650 * 1000L, null));
+        assertRows(1550);
+        history.close();
+    }
+
+    @Test
+    public void nanBitmapAndSelectedColumns() throws IOException {
+        HistoryFile history = new HistoryFile(path, COLUMNS);
+        append(history, 0, 30); // not a multiple of 8
+        history.flush();
+        boolean[] selected = {false, false, false, true};
+        assertEquals(30, read(history, 0, Long.MAX_VALUE, selected));
+        for (int i = 0; i < 30; i++) {
+            float[] row = rows.get(i);
+            assertTrue(Float.isNaN(row[0]));
+            assertTrue(Float.isNaN(row[2]));
+            assertEquals(row(i)[3], row[3], 0);
+        }
+        assertTrue(history.mayContain(3, 10, 10, 0, Long.MAX_VALUE));
+        assertFalse(history.mayContain(3, 11, 20, 0, Long.MAX_VALUE));
+        history.close();
+    }
+
+    @Test
+    public void tornTailIsCutOff() throws IOException {
+        HistoryFile history = new HistoryFile(path, COLUMNS);
+        append(history, 0, 200);
+        history.flush();
+        long intact = history.getSize();
+        append(history, 200, 300);
+        history.close();
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.setLength(file.length() - 5);
+        }
+        history = new HistoryFile(path, COLUMNS);
+        assertEquals(1, history.getBlockCount());
+        assertEquals(intact, history.getSize());
+        assertEquals(200, read(history, 0, Long.MAX_VALUE, null));
+        assertRows(0);
+        append(history, 200, 300); // appended after the cut
+        assertEquals(300, read(history, 0, Long.MAX_VALUE, null));
+        assertRows(0);
+        history.close();
+    }
+
+    @Test
+    public void exportCsv() throws IOException {
+        HistoryFile history = new HistoryFile(path, COLUMNS);
+        append(history, 0, 4);
+        StringWriter csv = new StringWriter();
+        assertEquals(2, history.exportCsv(START + 1000, START + 3000, csv));
+        assertEquals("time,soc,current,float,sparse\n"
+                + (START + 1000) + ",50.0,-2.4," + (float) Math.sin(1) * 1000 + ",1.0\n"
+                + (START + 2000) + ",50.0,-2.3," + (float) Math.sin(2) * 1000 + ",2.0\n", csv.toString());
+        history.close();
+    }
+
+    @Test
+    public void visitorDoesNotBlockTheWriter() throws Exception {
+        HistoryFile history = new HistoryFile(path, COLUMNS);
+        append(history, 0, HistoryFile.BLOCK_ROWS + 10);
+        boolean[] appended = new boolean[1];
+        long visited = history.read(0, Long.MAX_VALUE, null, (time, row) -> {
+            if (appended[0])
+                return;
+            Thread writer = new Thread(() -> {
+                try {
+                    append(history, HistoryFile.BLOCK_ROWS + 10, HistoryFile.BLOCK_ROWS * 2 + 10); // incl. a flush
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            writer.start();
+            try {
+                writer.join(10000);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            appended[0] = !writer.isAlive();
+        });
+        assertTrue(appended[0]);
+        assertEquals(HistoryFile.BLOCK_ROWS + 10, visited); // rows appended during the read are not visited
+        assertEquals(HistoryFile.BLOCK_ROWS * 2 + 10, read(history, 0, Long.MAX_VALUE, null));
+        assertRows(0);
+        history.close();
+    }
+}
@@ -0,0 +1,300 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ObdCommandQueueTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final List<String> written = new ArrayList<>();
+    private final List<String> results = new ArrayList<>(); // "name=reply" or "name!error"
+    private final ObdCommandQueue queue = new ObdCommandQueue(data -> written.add(new String(data, ASCII)));
+
+    private final ObdCommand.Callback callback = new ObdCommand.Callback() {
+        @Override
+        public void onResponse(ObdCommand command, byte[] data, int length) {
+            results.add(command.name + "=" + new String(data, 0, length, ASCII).replace("\r", "").replace(">", ""));
+        }
+
+        @Override
+        public void onError(ObdCommand command, Exception e) {
+            results.add(command.name + "!" + e.getClass().getSimpleName());
+        }
+    };
+
+    private void respond(String reply) {
+        byte[] b = reply.getBytes(ASCII);
+        queue.onResponse(b, 0, b.length);
+    }
+
+    private String lastWritten() {
+        return written.get(written.size() - 1);
+    }
+
+    /**
+     * OK for switch commands written before a request
+     */
+    private void acceptSwitches() {
+        while (lastWritten().startsWith("AT"))
+            respond("OK\r\r>");
+    }
+
+    @Test
+    public void nextCommandIsSentAfterThePrompt() {
+        queue.submit(new ObdCommand("0100", 1000, callback), new ObdCommand("0105", 1000, callback));
+        assertEquals(1, written.size());
+        assertEquals("0100\r", written.get(0));
+        respond("4100BE3FA813\r\r>");
+        assertEquals("0105\r", written.get(1));
+        respond("41057B\r\r>");
+        assertEquals(2, written.size());
+        assertEquals("[0100=4100BE3FA813, 0105=41057B]", results.toString());
+        assertEquals(0, queue.getQueueDepth());
+    }
+
+    @Test
+    public void unsolicitedPromptIsIgnored() {
+        respond("\rELM327 v1.5\r\r>");
+        assertTrue(written.isEmpty());
+        assertTrue(results.isEmpty());
+    }
+
+    @Test
+    public void timeoutAbortsWithoutCarriageReturn() throws Exception {
+        queue.submit(new ObdCommand("0100", 20, callback), new ObdCommand("0105", 1000, callback));
+        Thread.sleep(40);
+        queue.checkTimeouts();
+        assertEquals("[0100!TimeoutException]", results.toString());
+        assertEquals(" ", lastWritten()); // a CR would repeat the last request on an idle adapter
+        queue.submit(new ObdCommand("010C", 1000, callback));
+        assertEquals(2, written.size()); // nothing is sent before the abort is confirmed
+
+        respond("4100BE3FA813\r\r>"); // late reply or STOPPED, dropped as confirmation
+        assertEquals("0105\r", lastWritten());
+        respond("41057B\r\r>");
+        assertEquals("010C\r", lastWritten());
+        respond("410C1AF8\r\r>");
+        assertEquals("[0100!TimeoutException, 0105=41057B, 010C=410C1AF8]", results.toString());
+        assertEquals(1, queue.getTimeoutCount());
+    }
+
+    @Test
+    public void unconfirmedAbortFailsQueuedCommands() throws Exception {
+        queue.submit(new ObdCommand("0100", 20, callback), new ObdCommand("0105", 1000, callback));
+        Thread.sleep(40);
+        queue.checkTimeouts();
+        Thread.sleep(1100);
+        queue.checkTimeouts();
+        assertEquals("[0100!TimeoutException, 0105!IOException]", results.toString());
+        assertEquals(0, queue.getQueueDepth());
+        queue.submit(new ObdCommand("ATRV", 1000, callback));
+        assertEquals("ATRV\r", lastWritten());
+    }
+
+    @Test
+    public void headerIsSwitchedOnceForRequestsOfTheSameEcu() {
+        queue.submit(new ObdCommand("220101", Ecu.BMS, 1000, callback), new ObdCommand("220105", Ecu.BMS, 1000, callback));
+        assertEquals("ATSH7E4\r", written.get(0));
+        respond("OK\r\r>");
+        assertEquals("ATCRA7EC\r", written.get(1));
+        respond("OK\r\r>");
+        assertEquals("220101\r", written.get(2));
+        respond("7EC03620101\r\r>");
+        assertEquals("220105\r", written.get(3));
+        respond("7EC03620105\r\r>");
+        assertEquals(4, written.size());
+        assertTrue(queue.isSelectedEcu(Ecu.BMS));
+        assertFalse(queue.isSelectedEcu(Ecu.VCU));
+    }
+
+    @Test
+    public void rejectedSwitchFailsTheRequest() {
+        queue.submit(new ObdCommand("220101", Ecu.BMS, 1000, callback), new ObdCommand("ATRV", 1000, callback));
+        respond("?\r\r>"); // ATSH
+        assertEquals("[BMS 220101!IOException]", results.toString());
+        assertEquals("ATRV\r", lastWritten());
+        respond("12.6V\r\r>");
+        assertFalse(queue.isSelectedEcu(Ecu.BMS));
+    }
+
+    @Test
+    public void rejectedFrameCountIsSentAgainWithout() {
+        AdaptiveTiming.Profile timing = new AdaptiveTiming().getProfile("00:11:22:33:44:55");
+        timing.onFrames("BMS 220101", 2);
+        timing.onFrames("BMS 220101", 2);
+        queue.setTiming(timing);
+        queue.submit(new ObdCommand("220101", Ecu.BMS, 1000, callback));
+        acceptSwitches();
+        assertEquals("220101 2\r", lastWritten());
+        respond("?\r\r>");
+        assertEquals("220101\r", lastWritten());
+        assertTrue(results.isEmpty());
+        respond("7EC100962010112\r7EC21345678\r\r>");
+        assertEquals("[BMS 220101=7EC1009620101127EC21345678]", results.toString());
+        assertEquals(0, timing.getFrameCount("BMS 220101"));
+    }
+
+    @Test
+    public void learnedTimingIsReadAfterRestart() throws IOException {
+        AdaptiveTiming learned = new AdaptiveTiming();
+        AdaptiveTiming.Profile timing = learned.getProfile("00:11:22:33:44:55");
+        for (int i = 0; i < AdaptiveTiming.MIN_SAMPLES; i++)
+            timing.onReply("BMS 220101", 50000000, 0);
+        timing.onFrames("BMS 220101", 2);
+        timing.onFrames("BMS 220101", 2);
+        timing.onRejected("ATAT2");
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        learned.write(new DataOutputStream(saved));
+
+        AdaptiveTiming restarted = new AdaptiveTiming();
+        AdaptiveTiming.Profile used = restarted.getProfile("66:77:88:99:AA:BB"); // since start
+        restarted.read(new DataInputStream(new ByteArrayInputStream(saved.toByteArray())));
+        AdaptiveTiming.Profile read = restarted.getProfile("00:11:22:33:44:55");
+        assertEquals(timing.getTimeout("BMS 220101"), read.getTimeout("BMS 220101"));
+        assertTrue(read.getTimeout("BMS 220101") < AdaptiveTiming.MAX_TIMEOUT);
+        assertEquals(2, read.getFrameCount("BMS 220101"));
+        assertEquals(AdaptiveTiming.NORMAL, read.getAdaptive());
+        assertTrue(used == restarted.getProfile("66:77:88:99:AA:BB"));
+
+        queue.setTiming(read);
+        queue.submit(new ObdCommand("220101", Ecu.BMS, 1000, callback));
+        acceptSwitches();
+        assertTrue(written.contains(ObdCommandQueue.timeoutCommand(read.getTimeout("BMS 220101")) + "\r"));
+        assertEquals("220101 2\r", lastWritten());
+    }
+
+    @Test
+    public void cancelAllDropsCommandsWithoutCallbacks() {
+        queue.submit(new ObdCommand("0100", 1000, callback), new ObdCommand("0105", 1000, callback));
+        queue.cancelAll();
+        respond("4100BE3FA813\r\r>");
+        assertTrue(results.isEmpty());
+        assertEquals(1, written.size());
+        assertNull(queue.cancelQueued());
+    }
+
+    /**
+     * the abort character reaching an idle adapter must not produce another reply
+     */
+    @Test
+    public void abortReachingIdleSimulatorIsIgnored() throws Exception {
+        Elm327Simulator simulator = new Elm327Simulator("simulator", 1)
+                .setResponse("0100", "4100BE3FA813")
+                .setResponse("0105", "41057B");
+        List<String> replies = new ArrayList<>();
+        ResponseFramer framer = new ResponseFramer();
+        ResponseFramer.Listener listener = new ResponseFramer.Listener() {
+            @Override
+            public void onLine(byte[] data, int offset, int length) {
+            }
+
+            @Override
+            public void onResponse(byte[] data, int offset, int length) {
+                synchronized (replies) {
+                    replies.add(new String(data, offset, length, ASCII));
+                    replies.notifyAll();
+                }
+            }
+        };
+        simulator.connect(new SerialListener() {
+            @Override
+            public void onSerialConnect() {
+            }
+
+            @Override
+            public void onSerialConnectError(Exception e) {
+            }
+
+            @Override
+            public void onSerialRead(byte[] data, int length) {
+                framer.onData(data, 0, length, listener);
+            }
+
+            @Override
+            public void onSerialIoError(Exception e) {
+            }
+        });
+        try {
+            simulator.write("ATE0\r".getBytes(ASCII));
+            awaitReplies(replies, 1);
+            simulator.write("0100\r".getBytes(ASCII));
+            awaitReplies(replies, 2);
+            simulator.write(" ".getBytes(ASCII)); // late abort, the reply is complete already
+            simulator.write("0105\r".getBytes(ASCII));
+            awaitReplies(replies, 3);
+            Thread.sleep(50);
+            assertEquals(3, replies.size());
+            assertEquals("41057B\r\r>", replies.get(2));
+        } finally {
+            simulator.disconnect();
+        }
+    }
+
+    @Test
+    public void abortStopsRunningSimulatorRequest() throws Exception {
+        Elm327Simulator simulator = new Elm327Simulator("simulator", 1)
+                .setResponse("0100", "4100BE3FA813")
+                .setLatency(0, 5000);
+        StringBuilder received = new StringBuilder();
+        simulator.connect(new SerialListener() {
+            @Override
+            public void onSerialConnect() {
+            }
+
+            @Override
+            public void onSerialConnectError(Exception e) {
+            }
+
+            @Override
+            public void onSerialRead(byte[] data, int length) {
+                synchronized (received) {
+                    received.append(new String(data, 0, length, ASCII));
+                    received.notifyAll();
+                }
+            }
+
+            @Override
+            public void onSerialIoError(Exception e) {
+            }
+        });
+        try {
+            simulator.write("0100\r".getBytes(ASCII));
+            simulator.write(" ".getBytes(ASCII));
+            long end = System.currentTimeMillis() + 2000;
+            synchronized (received) {
+                while (received.indexOf(">") < 0 && System.currentTimeMillis() < end)
+                    received.wait(100);
+            }
+            assertTrue(received.toString(), received.toString().endsWith("STOPPED\r\r>"));
+            assertFalse(received.toString().contains("4100"));
+        } finally {
+            simulator.disconnect();
+        }
+    }
+
+    private static void awaitReplies(List<String> replies, int count) throws InterruptedException, IOException {
+        long end = System.currentTimeMillis() + 2000;
+        synchronized (replies) {
+            while (replies.size() < count) {
+                if (System.currentTimeMillis() > end)
+                    throw new IOException("no reply");
+                replies.wait(100);
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ObdFrameDecoderTest {
+
+    static final String REPLY_220101_CHARGING =
+            "7EC103E620101FFF7E7\r7EC21FF9C2CEC326403\r7EC22FFCE0EA6161213\r7EC2313131212121100\r"
+                    + "7EC240000C828C88D00\r7EC2501790003B40000\r7EC2600009C40000097\r7EC276E000000004800\r"
+                    + "7EC2800000000000000\r\r>";
+    static final String REPLY_220101_DRIVING =
+            "7EC103E620101FFF7E7\r7EC21FF7B5DD45DD400\r7EC2201F40E101A1718\r7EC2318181717171600\r"
+                    + "7EC240000B631B67C00\r7EC2501790003B40000\r7EC2600009C52000097\r7EC278A000000000000\r"
+                    + "7EC2800000000000000\r\r>";
+    static final String REPLY_220105 =
+            "7EC102D620105FFFB00\r7EC211F0C0100000001\r7EC225E141414141414\r7EC231400000FA0B6B6\r"
+                    + "7EC240003B6001A0000\r7EC259C000000000000\r7EC2600000000000000\r\r>";
+
+    static byte[] bytes(String s) {
+        return s.getBytes(Charset.forName("US-ASCII"));
+    }
+
+    private static boolean scan(ObdFrameDecoder decoder, String reply) {
+        byte[] b = bytes(reply);
+        return decoder.scan(b, 0, b.length);
+    }
+
+    @Test
+    public void firstAndConsecutiveFrames() {
+        ObdFrameDecoder decoder = new ObdFrameDecoder("7EC");
+        assertTrue(scan(decoder, REPLY_220101_CHARGING));
+        assertEquals(0x1ff, decoder.getFrameMask());
+        assertEquals(0x620101FFF7E7L, decoder.read(ObdFrameDecoder.position(0, 0), 6));
+        assertEquals(0xFF9C2CEC326403L, decoder.read(ObdFrameDecoder.position(1, 0), 7));
+        assertEquals(0xFFCE, decoder.read(ObdFrameDecoder.position(2, 0), 2));
+        // field continuing into the next frame
+        assertEquals(0x0000976EL, decoder.read(ObdFrameDecoder.position(6, 4), 4));
+    }
+
+    @Test
+    public void singleFrame() {
+        ObdFrameDecoder decoder = new ObdFrameDecoder("7EC");
+        assertTrue(scan(decoder, "7EC03410D32\r\r>"));
+        assertEquals(1, decoder.getFrameMask());
+        assertEquals(0x410D32, decoder.read(0, 3));
+    }
+
+    @Test
+    public void otherHeadersAndMessagesAreSkipped() {
+        ObdFrameDecoder decoder = new ObdFrameDecoder("7EC");
+        assertTrue(scan(decoder, "SEARCHING...\r7EA03410D00\r7EC21FF9C2CEC326403\r>"));
+        assertEquals(1 << 1, decoder.getFrameMask());
+        assertFalse(scan(decoder, "NO DATA\r\r>"));
+        assertFalse(scan(decoder, "CAN ERROR\r\r>"));
+        assertFalse(scan(decoder, "7EA03410D00\r\r>"));
+    }
+
+    @Test
+    public void truncatedFrameIsMissing() {
+        ObdFrameDecoder decoder = new ObdFrameDecoder("7EC");
+        assertTrue(scan(decoder, "7EC21FF9C2CEC326403\r7EC22FFCE0E"));
+        assertTrue(decoder.hasFrames(1 << 1));
+        assertFalse(decoder.hasFrames(1 << 2));
+    }
+
+    @Test
+    public void shortLastFrameWithoutPadding() {
+        ObdFrameDecoder decoder = new ObdFrameDecoder("7EC");
+        assertTrue(scan(decoder, "7EC100962010112\r7EC21345678\r\r>"));
+        assertTrue(decoder.hasFrames(1 | 1 << 1));
+        assertEquals(0x345678, decoder.read(ObdFrameDecoder.position(1, 0), 3));
+    }
+
+    @Test
+    public void lowerCaseHex() {
+        ObdFrameDecoder decoder = new ObdFrameDecoder("7EC");
+        assertTrue(scan(decoder, "7EC21ff9c2cec326403\r>"));
+        assertEquals(0xFF9C, decoder.read(ObdFrameDecoder.position(1, 0), 2));
+    }
+}
@@ -0,0 +1,174 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static de.kai_morich.simple_bluetooth_terminal.ObdFrameDecoderTest.REPLY_220101_DRIVING;
+import static de.kai_morich.simple_bluetooth_terminal.ObdFrameDecoderTest.REPLY_220105;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ObdSessionTest {
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Semaphore samples = new Semaphore(0);
+    private volatile String error;
+    private final TripAggregator trips = new TripAggregator(4, null);
+
+    private final ObdSession session = new ObdSession(new ObdSession.Listener() {
+        @Override
+        public void onSessionConnected() {
+        }
+
+        @Override
+        public void onSessionStatus(String text) {
+        }
+
+        @Override
+        public void onSessionResponse(String command, byte[] data, int length) {
+        }
+
+        @Override
+        public void onSessionSample(BmsSample sample) {
+            trips.add(sample);
+            sample.recycle();
+            samples.release();
+        }
+
+        @Override
+        public void onSessionError(String title, Exception e) {
+            error = title + ": " + e;
+            if (ObdSession.isLinkError(title))
+                trips.finish(); // like SerialService
+        }
+    }, executor);
+
+    private final Elm327Simulator simulator = new Elm327Simulator("simulator", 1)
+            .setResponse(Ecu.BMS.requestHeader, "220101", reply(REPLY_220101_DRIVING))
+            .setResponse(Ecu.BMS.requestHeader, "220105", reply(REPLY_220105));
+
+    private static String reply(String reply) {
+        return reply.substring(0, reply.indexOf("\r\r>"));
+    }
+
+    @After
+    public void tearDown() {
+        session.disconnect();
+        executor.shutdown();
+    }
+
+    private void connect() throws InterruptedException {
+        session.setInitDelay(0, 0);
+        session.connect("simulator", simulator);
+        assertTrue(samples.tryAcquire(5, TimeUnit.SECONDS));
+        long end = System.currentTimeMillis() + 5000;
+        while (session.getState() != ObdSession.POLLING && System.currentTimeMillis() < end)
+            Thread.sleep(1);
+        assertEquals(ObdSession.POLLING, session.getState());
+    }
+
+    private long awaitIdle() throws InterruptedException {
+        long start = System.nanoTime();
+        while (session.getState() != ObdSession.IDLE && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5))
+            Thread.sleep(1);
+        assertEquals(ObdSession.IDLE, session.getState());
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Test
+    public void initAndPoll() throws InterruptedException {
+        connect();
+        assertTrue(session.poll());
+        assertTrue(samples.tryAcquire(5, TimeUnit.SECONDS));
+        assertNull(error);
+    }
+
+    @Test
+    public void drainDoesNotBlockTheSessionThread() throws Exception {
+        connect();
+        simulator.setLatency(0, 300);
+        assertTrue(session.poll());
+        Thread.sleep(50);
+        session.disconnect();
+        long start = System.nanoTime();
+        executor.submit(() -> { }).get(1, TimeUnit.SECONDS);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(ObdSession.DRAINING, session.getState());
+        long millis = awaitIdle();
+        assertTrue(millis + " ms", millis < 450); // after the reply of 220101, not the 500 ms deadline
+        assertNull(error);
+        assertEquals(0, session.getCommandQueue().getQueueDepth());
+    }
+
+    @Test
+    public void drainEndsAtDeadlineWithoutReply() throws Exception {
+        connect();
+        simulator.setLatency(0, 2000);
+        assertTrue(session.poll());
+        Thread.sleep(50);
+        session.disconnect();
+        long millis = awaitIdle();
+        assertTrue(millis + " ms", millis >= 400 && millis < 1500);
+        assertNull(error);
+    }
+
+    @Test
+    public void shutdownRightAfterDisconnectWithCommandInFlight() throws Exception {
+        connect();
+        simulator.setLatency(0, 2000);
+        assertTrue(session.poll());
+        Thread.sleep(50);
+        session.disconnect(); // like SerialService.onDestroy
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals(ObdSession.IDLE, session.getState());
+        try {
+            simulator.write(new byte[]{'\r'});
+            fail("link not closed");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void disconnectWhileIdleQueue() throws Exception {
+        connect();
+        session.disconnect();
+        assertTrue(awaitIdle() < 100);
+    }
+
+    @Test
+    public void reconnectCyclesKeepOneTrip() throws Exception {
+        for (int cycle = 0; cycle < 3; cycle++) { // like SerialService without persistent session
+            connect();
+            session.disconnect();
+            awaitIdle();
+        }
+        TripAggregator.Trip trip = new TripAggregator.Trip();
+        assertEquals(0, trips.getFinishedCount());
+        assertTrue(trips.getCurrent(trip));
+        assertEquals(TripAggregator.DRIVE, trip.kind);
+        assertTrue(trip.samples + " samples", trip.samples >= 3);
+        assertTrue(trip.integratedHours > 0);
+        assertNull(error);
+
+        simulator.setDisconnectAfter(simulator.getCommandCount() + 1);
+        session.setInitDelay(0, 0);
+        session.connect("simulator", simulator);
+        long end = System.currentTimeMillis() + 5000;
+        while (error == null && System.currentTimeMillis() < end) // connect is posted, IDLE until it runs
+            Thread.sleep(1);
+        awaitIdle();
+        assertTrue(error, error.startsWith(ObdSession.IO_ERROR));
+        assertEquals(1, trips.getFinishedCount());
+        assertFalse(trips.getCurrent(trip));
+    }
+}
@@ -0,0 +1,113 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResponseFramerTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final ResponseFramer framer = new ResponseFramer();
+    private final List<String> lines = new ArrayList<>();
+    private final List<String> responses = new ArrayList<>();
+    private boolean resetOnResponse;
+
+    private final ResponseFramer.Listener listener = new ResponseFramer.Listener() {
+        @Override
+        public void onLine(byte[] data, int offset, int length) {
+            lines.add(new String(data, offset, length, ASCII));
+        }
+
+        @Override
+        public void onResponse(byte[] data, int offset, int length) {
+            responses.add(new String(data, offset, length, ASCII));
+            if (resetOnResponse)
+                framer.reset();
+        }
+    };
+
+    private void feed(String... chunks) {
+        for (String chunk : chunks) {
+            byte[] b = ("xx" + chunk).getBytes(ASCII); // data at an offset, like a reused read buffer
+            framer.onData(b, 2, b.length - 2, listener);
+        }
+    }
+
+    @Test
+    public void responseSplitOverReads() {
+        feed("7EC21FF9C", "2CEC326403\r7EC22", "FFCE0EA6161213\r", "\r", ">");
+        assertEquals(Arrays.asList("7EC21FF9C2CEC326403", "7EC22FFCE0EA6161213"), lines);
+        assertEquals(Arrays.asList("7EC21FF9C2CEC326403\r7EC22FFCE0EA6161213\r\r>"), responses);
+    }
+
+    @Test
+    public void promptInItsOwnRead() {
+        feed("41057B\r\r");
+        assertEquals(0, responses.size());
+        feed(">");
+        assertEquals(Arrays.asList("41057B\r\r>"), responses);
+    }
+
+    @Test
+    public void responsesMergedInOneRead() {
+        feed("OK\r\r>41057B\r\r>12.6V\r\r>");
+        assertEquals(Arrays.asList("OK\r\r>", "41057B\r\r>", "12.6V\r\r>"), responses);
+        assertEquals(Arrays.asList("OK", "41057B", "12.6V"), lines);
+    }
+
+    @Test
+    public void resetBannerAndLineFeeds() {
+        feed("ATZ\r\r\nELM327 v1.5\r\n\r\n>");
+        assertEquals(Arrays.asList("ATZ", "ELM327 v1.5"), lines); // empty lines are skipped
+        assertEquals(Arrays.asList("ATZ\r\r\nELM327 v1.5\r\n\r\n>"), responses);
+    }
+
+    @Test
+    public void lineWithoutLineEndBeforePrompt() {
+        feed("STOPPED>");
+        assertEquals(Arrays.asList("STOPPED"), lines);
+        assertEquals(Arrays.asList("STOPPED>"), responses);
+    }
+
+    @Test
+    public void resetByListenerDropsTheRest() {
+        resetOnResponse = true;
+        feed("OK\r\r>41057B\r\r");
+        feed(">");
+        assertEquals(Arrays.asList("OK\r\r>", ">"), responses);
+    }
+
+    @Test
+    public void responsesAfterLargeReplyKeepWorking() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+            sb.append("7EC21FF9C2CEC326403\r");
+        String big = sb.toString();
+        for (int i = 0; i < big.length(); i += 100)
+            feed(big.substring(i, Math.min(big.length(), i + 100)));
+        feed("\r>41057B\r\r>");
+        assertEquals(Arrays.asList(big + "\r>", "41057B\r\r>"), responses);
+        assertEquals(201, lines.size());
+    }
+
+    @Test
+    public void garbageWithoutPromptIsDropped() {
+        char[] garbage = new char[70 * 1024];
+        Arrays.fill(garbage, 'A');
+        feed(new String(garbage, 0, 40 * 1024));
+        feed(new String(garbage, 0, 30 * 1024));
+        feed("\r41057B\r\r>");
+        assertEquals(1, responses.size());
+        String response = responses.get(0);
+        assertTrue(response.endsWith("\r41057B\r\r>"));
+        assertTrue(response.length() <= 64 * 1024); // the first 40 kB were dropped
+        assertEquals("41057B", lines.get(lines.size() - 1));
+    }
+}
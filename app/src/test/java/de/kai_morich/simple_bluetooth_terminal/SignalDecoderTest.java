@@ -0,0 +1,77 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.junit.Test;
+
+import static de.kai_morich.simple_bluetooth_terminal.ObdFrameDecoderTest.REPLY_220101_CHARGING;
+import static de.kai_morich.simple_bluetooth_terminal.ObdFrameDecoderTest.REPLY_220105;
+import static de.kai_morich.simple_bluetooth_terminal.ObdFrameDecoderTest.bytes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SignalDecoderTest {
+
+    private final SignalDecoder decoder = new SignalDecoder(SignalTable.konaBms());
+    private final double[] values = new double[decoder.signalCount()];
+
+    private boolean decode(String did, String reply) {
+        byte[] b = bytes(reply);
+        return decoder.decode(decoder.requestIndex(SignalTable.BMS, did), b, 0, b.length, values);
+    }
+
+    private double value(String name) {
+        return values[decoder.signalIndex(name)];
+    }
+
+    @Test
+    public void konaBms220101() {
+        assertTrue(decode("220101", REPLY_220101_CHARGING));
+        assertEquals(78.0, value(SignalTable.SOC_BMS), 0);
+        assertEquals(3, value(SignalTable.CHARGE_PORT_TYPE), 0);
+        assertEquals(-5.0, value(SignalTable.DC_BATTERY_CURRENT), 0);
+        assertEquals(375.0, value(SignalTable.DC_BATTERY_VOLTAGE), 0);
+        assertEquals(14.1, value(SignalTable.AUX_BATTERY_VOLTAGE), 0);
+        assertEquals(3876.6, value(SignalTable.CUMULATIVE_ENERGY_DISCHARGED), 0);
+        assertEquals(2, value(SignalTable.CHARGING_BITS), 0);
+        assertEquals(1, value(SignalTable.PORT_CONNECTED_BIT), 0);
+    }
+
+    @Test
+    public void konaBms220105() {
+        assertTrue(decode("220105", REPLY_220105));
+        assertEquals(95.0, value(SignalTable.SOH), 0);
+        assertEquals(78.0, value(SignalTable.SOC_DISPLAY), 0);
+    }
+
+    @Test
+    public void missingFrameLeavesValuesUnchanged() {
+        assertTrue(decode("220101", REPLY_220101_CHARGING));
+        String withoutFrame6 = REPLY_220101_CHARGING.replace("7EC2600009C40000097\r", "");
+        assertFalse(decode("220101", withoutFrame6));
+        assertEquals(4000.0, value(SignalTable.CUMULATIVE_ENERGY_CHARGED), 0);
+    }
+
+    @Test
+    public void signedBitFieldsAndOffset() {
+        SignalDecoder d = new SignalDecoder(new SignalDefinition[]{
+                SignalDefinition.signed("S8", "7E8", "2201", 0, 0, 8, 1),
+                new SignalDefinition("NIBBLE", "7E8", "2201", 0, 1, 4, 4, true, 0.5, -40),
+                SignalDefinition.bits("BIT", "7E8", "2201", 0, 1, 0, 1),
+        });
+        double[] v = new double[d.signalCount()];
+        byte[] b = bytes("7E802F0E1\r\r>"); // single frame of 2 bytes: F0 E1
+        assertTrue(d.decode(d.requestIndex("7E8", "2201"), b, 0, b.length, v));
+        assertEquals(-16, v[d.signalIndex("S8")], 0);
+        assertEquals(-2 * 0.5 - 40, v[d.signalIndex("NIBBLE")], 0);
+        assertEquals(1, v[d.signalIndex("BIT")], 0);
+        assertEquals(-1, d.requestIndex("7EC", "2201"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateSignal() {
+        new SignalDecoder(new SignalDefinition[]{
+                SignalDefinition.unsigned("A", "7E8", "2201", 0, 0, 8, 1),
+                SignalDefinition.unsigned("A", "7E8", "2201", 0, 1, 8, 1),
+        });
+    }
+}
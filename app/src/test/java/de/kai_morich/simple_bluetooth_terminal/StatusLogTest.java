@@ -0,0 +1,69 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StatusLogTest {
+
+    private final List<Runnable> scheduled = new ArrayList<>();
+    private final List<String> published = new ArrayList<>();
+    private final StatusLog log = new StatusLog(16,
+            (level, title, text) -> published.add(level + " " + title + "\n" + text),
+            (runnable, delayMillis) -> scheduled.add(runnable));
+
+    private void runScheduled() {
+        List<Runnable> runnables = new ArrayList<>(scheduled);
+        scheduled.clear();
+        for (Runnable runnable : runnables)
+            runnable.run();
+    }
+
+    @Test
+    public void entriesArePublishedMergedOncePerSchedule() {
+        log.add(StatusLog.STATUS, "connected");
+        log.add(StatusLog.STATUS, "initializing");
+        assertEquals(1, scheduled.size());
+        runScheduled();
+        assertEquals(1, published.size());
+        assertEquals("0 status\nconnected\ninitializing", published.get(0));
+        runScheduled();
+        assertEquals(1, published.size());
+    }
+
+    @Test
+    public void sampleIsCopiedAndFormattedWhenPublished() {
+        BmsSample sample = new BmsSample();
+        sample.set(BmsSample.SOC_BMS, 61.5);
+        log.addSample(sample);
+        sample.set(BmsSample.SOC_BMS, 10); // reused by the caller after the call
+        runScheduled();
+        String text = published.get(0);
+        assertTrue(text, text.startsWith("1 success\n"));
+        assertTrue(text, text.contains("220101: no data")); // not all values of the reply valid
+        sample.set(BmsSample.SOC_BMS, 61.5);
+        for (int i = 1; i < BmsSample.SOC_DISPLAY; i++)
+            sample.set(i, i);
+        log.addSample(sample);
+        runScheduled();
+        assertTrue(published.get(1), published.get(1).contains("\nSOC_BMS=61.5\n"));
+    }
+
+    @Test
+    public void newestErrorIsKeptAndResponseFormatted() {
+        log.addError("connect", new java.io.IOException("refused"));
+        for (int i = 0; i < 10; i++)
+            log.add(StatusLog.STATUS, "status " + i);
+        byte[] reply = "7EC03620101\r\r>".getBytes();
+        log.addResponse("220101", reply, reply.length);
+        runScheduled();
+        String text = published.get(0);
+        assertTrue(text, text.startsWith("2 error: connect\nerror: connect\njava.io.IOException: refused"));
+        assertTrue(text, text.contains("(4 older)"));
+        assertTrue(text, text.endsWith("220101 Response: 7EC03620101 >"));
+    }
+}
@@ -0,0 +1,76 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TelemetryRollupTest {
+
+    private static final long HOUR = 3600 * 1000;
+    private static final long START = 1000 * HOUR;
+
+    private final TelemetryStore store = new TelemetryStore(64, "a", "b");
+    private final TelemetryRollup rollup = new TelemetryRollup(store);
+    private final TelemetryRollup.Series series = new TelemetryRollup.Series();
+
+    @Test
+    public void bucketsOfAllTiers() {
+        for (int i = 0; i < 120; i++) { // 2 min at 1 Hz
+            float[] row = {i, i % 2 == 0 ? Float.NaN : 1};
+            store.append(START + i * 1000, row);
+            rollup.append(START + i * 1000, row);
+        }
+        assertEquals(12, rollup.size(0));
+        assertEquals(2, rollup.size(1));
+        assertEquals(1, rollup.size(2));
+
+        assertEquals(2, rollup.query(0, START, START + 120 * 1000, 2, series));
+        assertEquals(1, series.tier);
+        assertEquals(START + 60 * 1000, series.times[1]);
+        assertEquals(60, series.min[1], 0);
+        assertEquals(119, series.max[1], 0);
+        assertEquals(89.5, series.mean[1], 1e-3);
+        assertEquals(119, series.last[1], 0);
+        assertEquals(60, series.count[1]);
+        rollup.query(1, START, START + 120 * 1000, 2, series);
+        assertEquals(30, series.count[1]); // NaN not counted
+
+        assertEquals(10, rollup.query(0, START + 110 * 1000, START + 120 * 1000, 100, series));
+        assertEquals(TelemetryRollup.RAW, series.tier);
+    }
+
+    @Test
+    public void seededRowsAreMergedWithLiveRows() {
+        for (int i = 55; i < 65; i++) { // live rows appended while the history is read
+            float[] row = {i, 3};
+            store.append(START + i * 1000, row);
+            rollup.append(START + i * 1000, row);
+        }
+        TelemetryRollup seed = rollup.newSeed(START + 65 * 1000);
+        seed.seed(START - 7 * HOUR, new float[]{-1, 2}); // older than the 10 s tier covers
+        for (int i = 0; i < 65; i++) // the history file also has the live rows
+            seed.seed(START + i * 1000, new float[]{i, 2});
+        assertEquals(2, rollup.size(0));
+        rollup.merge(seed);
+        assertEquals(7, rollup.size(0));
+        assertEquals(3, rollup.size(1));
+        assertEquals(2, rollup.size(2));
+
+        // seeded rows older than the raw rows are read from the tiers
+        assertEquals(0, rollup.selectTier(START, START + 65 * 1000, 100));
+        assertEquals(TelemetryRollup.RAW, rollup.selectTier(START + 55 * 1000, START + 65 * 1000, 100));
+        assertEquals(7, rollup.query(0, START, START + 65 * 1000, 100, series));
+        assertEquals(4.5, series.mean[0], 1e-3);
+        assertEquals(10, series.count[5]); // 5 seeded and 5 live rows
+        assertEquals(50, series.min[5], 0);
+        assertEquals(59, series.max[5], 0);
+        assertEquals(54.5, series.mean[5], 1e-3);
+        assertEquals(59, series.last[5], 0);
+        assertEquals(5, series.count[6]); // live only, seeded copies skipped
+
+        assertEquals(2, rollup.query(1, START - 8 * HOUR, START + 65 * 1000, 2, series));
+        assertEquals(2, series.tier);
+        assertEquals(2, series.mean[0], 0);
+        assertEquals(55 * 2 + 10 * 3, series.mean[1] * series.count[1], 1e-3);
+    }
+}
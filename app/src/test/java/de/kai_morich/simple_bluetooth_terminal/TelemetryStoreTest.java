@@ -0,0 +1,92 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TelemetryStoreTest {
+
+    @Test
+    public void rangeAndWindowAfterWrapAround() {
+        TelemetryStore store = new TelemetryStore(8, "a", "b");
+        for (int i = 0; i < 20; i++)
+            store.append(1000 + i * 100, new float[]{i, i % 2 == 0 ? Float.NaN : i});
+        assertEquals(8, store.size());
+        assertEquals(20, store.getTotalCount());
+        assertEquals(1000 + 12 * 100, store.oldestTime());
+        assertEquals(1000 + 19 * 100, store.latestTime());
+        assertEquals(19f, store.latest(0), 0);
+
+        long[] times = new long[16];
+        float[] values = new float[16];
+        int n = store.range(0, 1000 + 14 * 100, 1000 + 17 * 100, times, values);
+        assertEquals(3, n);
+        assertEquals(1000 + 14 * 100, times[0]);
+        assertEquals(16f, values[2], 0);
+
+        TelemetryStore.Window window = new TelemetryStore.Window();
+        assertEquals(4, store.window(1, 0, Long.MAX_VALUE, window)); // NaN skipped
+        assertEquals(13f, window.first, 0);
+        assertEquals(19f, window.last, 0);
+        assertEquals(13f, window.min, 0);
+        assertEquals(16.0, window.mean(), 0);
+    }
+
+    @Test
+    public void timesAreKeptNonDecreasing() {
+        TelemetryStore store = new TelemetryStore(4, "a");
+        store.append(2000, new float[]{1});
+        store.append(1500, new float[]{2}); // clock stepped back
+        assertEquals(2000, store.latestTime());
+        long[] times = new long[4];
+        float[] values = new float[4];
+        assertEquals(2, store.range(0, 2000, 2001, times, values));
+    }
+
+    /**
+     * every column of a row holds the row number, a reader seeing different values got a torn row
+     */
+    @Test
+    public void concurrentReadersSeeNoTornRows() throws Exception {
+        int columns = 4;
+        TelemetryStore store = new TelemetryStore(64, "a", "b", "c", "d");
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> error = new AtomicReference<>();
+        Thread[] readers = new Thread[2];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                long[] times = new long[64];
+                float[][] values = new float[columns][64];
+                while (!done.get() && error.get() == null) {
+                    long from = store.latestTime() - 32;
+                    int n = store.range(0, from, Long.MAX_VALUE, times, values[0]);
+                    for (int i = 0; i < n; i++)
+                        if (values[0][i] != (float) (times[i] % (1 << 20)))
+                            error.set("time " + times[i] + " value " + values[0][i]);
+                    for (int c = 1; c < columns; c++) {
+                        TelemetryStore.Window w = new TelemetryStore.Window();
+                        if (store.window(c, from, from + 1, w) == 1 && w.first != (float) (from % (1 << 20)))
+                            error.set("column " + c + " time " + from + " value " + w.first);
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        float[] row = new float[columns];
+        for (long t = 1; t < 2000000 && error.get() == null; t++) {
+            for (int c = 0; c < columns; c++)
+                row[c] = t % (1 << 20);
+            store.append(t, row);
+        }
+        done.set(true);
+        for (Thread reader : readers)
+            reader.join();
+        assertNull(error.get());
+        assertTrue(store.getTotalCount() > store.getCapacity());
+    }
+}
@@ -0,0 +1,129 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TripAggregatorTest {
+
+    private static final long START = 1700000000000L;
+    private static final double DELTA = 1e-9;
+
+    private final List<Integer> ended = new ArrayList<>();
+    private final TripAggregator trips = new TripAggregator(8, trip -> ended.add(trip.kind));
+    private final TripAggregator.Trip trip = new TripAggregator.Trip();
+    private final BmsSample sample = new BmsSample();
+
+    private void add(long seconds, double powerKw, double currentAmps, boolean charging) {
+        sample.timeMillis = START + seconds * 1000;
+        sample.set(BmsSample.DC_BATTERY_POWER, powerKw);
+        sample.set(BmsSample.DC_BATTERY_CURRENT, currentAmps);
+        sample.set(BmsSample.CHARGING, charging);
+        trips.add(sample);
+    }
+
+    private void drive(long seconds, double powerKw) {
+        add(seconds, powerKw, powerKw * 1000 / 360, false);
+    }
+
+    @Test
+    public void constantPowerIsIntegrated() {
+        drive(0, 36);
+        drive(10, 36);
+        drive(20, 36);
+        assertTrue(trips.getCurrent(trip));
+        assertEquals(TripAggregator.DRIVE, trip.kind);
+        assertEquals(36 * 20 / 3600.0, trip.energyOutKwh, DELTA);
+        assertEquals(0, trip.energyInKwh, DELTA);
+        assertEquals(36, trip.getMeanPowerKw(), DELTA);
+        assertEquals(3, trip.samples);
+    }
+
+    @Test
+    public void zeroCrossingIsSplit() {
+        drive(0, 36);
+        drive(20, -36); // regeneration, zero crossing after 10 s
+        trips.getCurrent(trip);
+        assertEquals(36 * 10 / 2 / 3600.0, trip.energyOutKwh, DELTA);
+        assertEquals(36 * 10 / 2 / 3600.0, trip.energyInKwh, DELTA);
+        assertEquals(0, trip.getMeanPowerKw(), DELTA);
+
+        drive(40, 12); // crossing after 3/4 of the interval
+        trips.getCurrent(trip);
+        assertEquals((180 + 12 * 5 / 2.0) / 3600, trip.energyOutKwh, DELTA);
+        assertEquals((180 + 36 * 15 / 2.0) / 3600, trip.energyInKwh, DELTA);
+    }
+
+    @Test
+    public void gapsAreNotIntegrated() {
+        drive(0, 36);
+        drive(60, 36); // longer than MAX_INTEGRATION_GAP_MILLIS
+        trips.getCurrent(trip);
+        assertEquals(0, trip.energyOutKwh, DELTA);
+        assertEquals(60000, trip.getDurationMillis());
+        drive(60 + TripAggregator.TRIP_GAP_MILLIS / 1000 + 1, 36);
+        assertEquals(1, trips.getFinishedCount());
+    }
+
+    @Test
+    public void chargingEndsTheDrive() {
+        drive(0, 20);
+        drive(10, 20);
+        add(20, -7, -20, true);
+        add(30, -7, -20, true);
+        assertEquals(1, trips.getFinishedCount());
+        trips.getFinished(0, trip);
+        assertEquals(TripAggregator.DRIVE, trip.kind);
+        trips.getCurrent(trip);
+        assertEquals(TripAggregator.CHARGE, trip.kind);
+        assertEquals(7 * 10 / 3600.0, trip.energyInKwh, DELTA);
+        trips.finish();
+        assertFalse(trips.getCurrent(trip));
+        assertEquals(2, trips.getFinishedCount());
+        trips.finish();
+        assertEquals(2, trips.getFinishedCount());
+    }
+
+    @Test
+    public void shortStopStaysInTheDrive() {
+        drive(0, 20);
+        for (int i = 1; i < TripAggregator.IDLE_MILLIS / 10000; i++)
+            add(i * 10, 0.1, 0.3, false);
+        drive(TripAggregator.IDLE_MILLIS / 1000, 20);
+        assertEquals(0, trips.getFinishedCount());
+        trips.getCurrent(trip);
+        assertEquals(TripAggregator.DRIVE, trip.kind);
+    }
+
+    @Test
+    public void parkedIsIdleNotDrive() {
+        drive(0, 20);
+        drive(10, 20);
+        long idleSeconds = TripAggregator.IDLE_MILLIS / 1000 + 10;
+        for (int i = 2; i <= 2 + idleSeconds / 10; i++)
+            add(i * 10, 0.1, 0.3, false);
+        assertEquals(1, trips.getFinishedCount());
+        trips.getFinished(0, trip);
+        assertEquals(TripAggregator.DRIVE, trip.kind);
+        trips.getCurrent(trip);
+        assertEquals(TripAggregator.IDLE, trip.kind);
+        drive(30 + idleSeconds, 20);
+        assertEquals(2, trips.getFinishedCount());
+        trips.getFinished(0, trip);
+        assertEquals(TripAggregator.IDLE, trip.kind);
+        assertEquals(2, ended.size());
+    }
+
+    @Test
+    public void parkedAfterConnectIsIdle() {
+        add(0, 0, 0, false);
+        add(10, 0, 0, false);
+        trips.getCurrent(trip);
+        assertEquals(TripAggregator.IDLE, trip.kind);
+    }
+}
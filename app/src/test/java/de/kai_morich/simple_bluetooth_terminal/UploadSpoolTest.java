@@ -0,0 +1,149 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UploadSpoolTest {
+
+    private static final String[] COLUMNS = {"a", "b"};
+    private static final long START = 1700000000000L;
+
+    private File dir;
+    private long time = START;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("spool", "");
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    private UploadSpool open() throws IOException {
+        return new UploadSpool(dir, COLUMNS, 3, 60000, Long.MAX_VALUE);
+    }
+
+    private void append(UploadSpool spool, int rows) throws IOException {
+        for (int i = 0; i < rows; i++) {
+            time += 1000;
+            spool.append(time, new float[]{i, i % 2 == 0 ? Float.NaN : 0.5f});
+        }
+    }
+
+    private static String unzip(byte[] gzip) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                out.write(buffer, 0, n);
+        }
+        return out.toString("US-ASCII");
+    }
+
+    @Test
+    public void batchesAreCompleteCsv() throws IOException {
+        UploadSpool spool = open();
+        append(spool, 4);
+        assertEquals(1, spool.getBatchCount());
+        assertEquals(1, spool.getPendingRows());
+        UploadSpool.Batch batch = spool.peek();
+        assertEquals(0, batch.sequence);
+        assertEquals(3, batch.rows);
+        String csv = unzip(batch.read());
+        assertEquals("time,a,b\n"
+                + (START + 1000) + ",0.0,\n"
+                + (START + 2000) + ",1.0,0.5\n"
+                + (START + 3000) + ",2.0,\n", csv);
+        assertEquals(csv.length(), batch.rawBytes);
+
+        spool.sealIfDue(START + 4000 + 59999);
+        assertEquals(1, spool.getBatchCount());
+        spool.sealIfDue(START + 4000 + 60000);
+        assertEquals(2, spool.getBatchCount());
+        spool.close();
+    }
+
+    @Test
+    public void restartKeepsSealedBatchesAndDropsPart() throws IOException {
+        UploadSpool spool = open();
+        append(spool, 7);
+        assertEquals(2, spool.getBatchCount());
+        // killed with an open batch: no close(), the .part is no complete gzip stream
+
+        spool = open();
+        assertEquals(2, spool.getBatchCount());
+        assertEquals(0, spool.peek().sequence);
+        assertEquals(0, spool.getPendingRows());
+        String[] names = dir.list();
+        for (String name : names)
+            assertFalse(name, name.endsWith(".part"));
+        append(spool, 3);
+        assertEquals(3, spool.getBatchCount());
+        spool.remove(spool.peek());
+        spool.remove(spool.peek());
+        assertEquals(2, spool.peek().sequence); // of the dropped .part, it was never uploaded
+        spool.close();
+    }
+
+    @Test
+    public void sequenceContinuesAfterAllBatchesWereDeleted() throws IOException {
+        UploadSpool spool = open();
+        append(spool, 6);
+        spool.remove(spool.peek());
+        spool.remove(spool.peek());
+        assertNull(spool.peek());
+        spool.close();
+
+        spool = open();
+        assertEquals(0, spool.getBatchCount());
+        append(spool, 3);
+        assertEquals(2, spool.peek().sequence);
+        spool.close();
+    }
+
+    @Test
+    public void tornSequenceFileFallsBackToBatches() throws IOException {
+        UploadSpool spool = open();
+        append(spool, 6);
+        spool.close();
+        try (FileOutputStream out = new FileOutputStream(new File(dir, "sequence"))) {
+            out.write("x".getBytes("US-ASCII"));
+        }
+        try (FileOutputStream out = new FileOutputStream(new File(dir, "sequence.tmp"))) {
+            out.write("99".getBytes("US-ASCII"));
+        }
+        spool = open();
+        assertEquals(2, spool.getBatchCount());
+        assertFalse(new File(dir, "sequence.tmp").exists());
+        append(spool, 3);
+        spool.remove(spool.peek());
+        spool.remove(spool.peek());
+        assertEquals(2, spool.peek().sequence);
+        spool.close();
+    }
+}
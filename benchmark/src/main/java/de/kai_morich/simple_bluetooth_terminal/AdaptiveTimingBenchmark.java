@@ -0,0 +1,116 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * poll of 220101 and 220105 against the Elm327Simulator with an ECU answering after 40 ms,
+ * frames 2 ms apart. with ATSTFF every reply ends 1 s after its last frame, with adaptive
+ * timing the ATST learned in the warmup and, if the adapter supports it, the expected frame
+ * count, so the prompt follows the last frame without waiting
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class AdaptiveTimingBenchmark {
+
+    @Param({"false", "true"})
+    public boolean adaptive;
+
+    @Param({"false", "true"})
+    public boolean frameCount;
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private ObdSession session;
+    private final Semaphore sampled = new Semaphore(0);
+    private volatile Exception error;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Elm327Simulator simulator = new Elm327Simulator("simulator", 1)
+                .setResponse(Ecu.BMS.requestHeader, "220101", reply("220101_driving"))
+                .setResponse(Ecu.BMS.requestHeader, "220105", reply("220105"))
+                .setLatency(0, 10)
+                .setEcuTiming(40, 2)
+                .setFrameCountSupported(frameCount);
+        session = new ObdSession(new ObdSession.Listener() {
+            @Override
+            public void onSessionConnected() {
+            }
+
+            @Override
+            public void onSessionStatus(String text) {
+            }
+
+            @Override
+            public void onSessionResponse(String command, byte[] data, int length) {
+            }
+
+            @Override
+            public void onSessionSample(BmsSample sample) {
+                sample.recycle();
+                sampled.release();
+            }
+
+            @Override
+            public void onSessionError(String title, Exception e) {
+                error = e;
+                sampled.release();
+            }
+        }, timer);
+        session.setInitDelay(0, 0);
+        session.setAdaptiveTiming(adaptive);
+        session.connect(simulator.getName(), simulator);
+        await();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (session.getState() != ObdSession.POLLING) {
+            if (System.nanoTime() - end > 0)
+                throw new IllegalStateException("timeout");
+            Thread.yield();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        session.disconnect();
+        timer.shutdown();
+    }
+
+    private static String reply(String name) {
+        String reply = new String(Elm327Corpus.reply(name), Charset.forName("US-ASCII"));
+        return reply.substring(0, reply.lastIndexOf('>'));
+    }
+
+    private void await() throws Exception {
+        if (!sampled.tryAcquire(10, TimeUnit.SECONDS))
+            throw new IllegalStateException("timeout");
+        if (error != null)
+            throw error;
+    }
+
+    @Benchmark
+    public void poll() throws Exception {
+        session.poll();
+        await();
+    }
+}
@@ -0,0 +1,143 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * one poll as written by the app: replies of 220101, 220105 and the decoded sample
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CaptureJournalBenchmark {
+
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private File dir;
+    private final ExecutorService storageThread = Executors.newSingleThreadExecutor();
+    private CaptureJournal journal;
+    private final byte[] command220101 = "220101\r".getBytes();
+    private final byte[] command220105 = "220105\r".getBytes();
+    private byte[] reply220101;
+    private byte[] reply220105;
+    private final float[] row = new float[BmsSample.COLUMNS.length];
+    private long now;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("capture").toFile();
+        journal = new CaptureJournal(dir, SEGMENT_SIZE, 4, storageThread);
+        reply220101 = Elm327Corpus.reply("220101_charging");
+        reply220105 = Elm327Corpus.reply("220105");
+        BmsSample sample = new BmsSample();
+        BmsDecoder decoder = new BmsDecoder();
+        decoder.decode220101(reply220101, 0, reply220101.length, sample);
+        decoder.decode220105(reply220105, 0, reply220105.length, sample);
+        sample.toRow(row);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        storageThread.execute(journal::close);
+        storageThread.shutdown();
+        storageThread.awaitTermination(10, TimeUnit.SECONDS);
+        deleteDir(dir);
+    }
+
+    @Benchmark
+    public long appendPoll() throws IOException {
+        return appendPoll(journal, ++now);
+    }
+
+    /**
+     * fresh journal with the first segment filled up to the last poll that fits, the
+     * storage thread idle as between two polls in the app
+     */
+    @State(Scope.Thread)
+    public static class FullSegment {
+        File dir;
+        CaptureJournal journal;
+
+        @Setup(Level.Invocation)
+        public void fill(CaptureJournalBenchmark b) throws IOException, InterruptedException, ExecutionException {
+            dir = Files.createTempDirectory("capture").toFile();
+            journal = new CaptureJournal(dir, SEGMENT_SIZE, 4, b.storageThread);
+            int[] sizes = {b.command220101.length + b.reply220101.length, b.command220105.length + b.reply220105.length, b.row.length * 4};
+            int remaining = SEGMENT_SIZE;
+            long polls = 0;
+            while (true) {
+                int r = remaining;
+                for (int size : sizes) {
+                    int record = 8 + 9 + size; // length, crc, type, time
+                    if (r < record + 8)
+                        r = -1;
+                    else
+                        r -= record;
+                }
+                if (r < 0)
+                    break;
+                remaining = r;
+                polls++;
+            }
+            for (long n = 0; n < polls; n++)
+                b.appendPoll(journal, n);
+            b.storageThread.submit(() -> { }).get();
+        }
+
+        @TearDown(Level.Invocation)
+        public void close(CaptureJournalBenchmark b) throws InterruptedException, ExecutionException {
+            b.storageThread.submit(journal::close).get();
+            deleteDir(dir);
+        }
+    }
+
+    /**
+     * the poll that fills the segment, as seen by the reader thread
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 20)
+    @Measurement(iterations = 100)
+    public long rollSegment(FullSegment full) throws IOException {
+        return appendPoll(full.journal, ++now);
+    }
+
+    private long appendPoll(CaptureJournal journal, long now) throws IOException {
+        journal.appendResponse(now, command220101, reply220101, 0, reply220101.length);
+        journal.appendResponse(now, command220105, reply220105, 0, reply220105.length);
+        journal.appendSample(now, row);
+        return journal.getAppendedCount();
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+}
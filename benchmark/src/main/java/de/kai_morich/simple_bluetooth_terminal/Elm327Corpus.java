@@ -0,0 +1,70 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * replies from resources/elm327/replies.txt, as raw bytes like received from the adapter
+ */
+final class Elm327Corpus {
+
+    private static final String RESOURCE = "/elm327/replies.txt";
+
+    private static Map<String, byte[]> replies;
+
+    private Elm327Corpus() {}
+
+    static synchronized Map<String, byte[]> replies() {
+        if (replies == null) {
+            try {
+                replies = load();
+            } catch (IOException e) {
+                throw new IllegalStateException("cannot load " + RESOURCE, e);
+            }
+        }
+        return replies;
+    }
+
+    static byte[] reply(String name) {
+        byte[] reply = replies().get(name);
+        if (reply == null)
+            throw new IllegalArgumentException("unknown reply " + name);
+        return reply;
+    }
+
+    private static Map<String, byte[]> load() throws IOException {
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        InputStream in = Elm327Corpus.class.getResourceAsStream(RESOURCE);
+        if (in == null)
+            throw new IOException("not found");
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charset.forName("US-ASCII")))) {
+            String name = null;
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#") || line.isEmpty())
+                    continue;
+                if (line.startsWith("== ")) {
+                    if (name != null)
+                        result.put(name, terminate(sb));
+                    name = line.substring(3).trim();
+                    sb.setLength(0);
+                } else {
+                    sb.append(line.trim()).append('\r');
+                }
+            }
+            if (name != null)
+                result.put(name, terminate(sb));
+        }
+        return result;
+    }
+
+    private static byte[] terminate(StringBuilder sb) {
+        return (sb + "\r>").getBytes(Charset.forName("US-ASCII"));
+    }
+}
@@ -0,0 +1,113 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * file with a day of 1 Hz samples decoded from the corpus, SOC and current changing
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryFileBenchmark {
+
+    private static final long DAY = 24 * 3600 * 1000L;
+
+    private File file;
+    private HistoryFile history;
+    private final float[] row = new float[BmsSample.COLUMNS.length];
+    private final boolean[] soc = new boolean[BmsSample.COLUMNS.length];
+    private long now;
+    private long start;
+    private int i;
+    private final Writer discard = new Writer() {
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("history", ".bin");
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        history = new HistoryFile(file, BmsSample.COLUMNS);
+        BmsSample sample = new BmsSample();
+        BmsDecoder decoder = new BmsDecoder();
+        byte[] reply = Elm327Corpus.reply("220101_charging");
+        decoder.decode220101(reply, 0, reply.length, sample);
+        sample.toRow(row);
+        start = now = System.currentTimeMillis() - DAY;
+        for (int n = 0; n < 24 * 3600; n++)
+            append();
+        history.flush();
+        soc[BmsSample.SOC_BMS] = true;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        history.close();
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long append() throws IOException {
+        i++;
+        row[BmsSample.SOC_BMS] = i / 3600 % 200 / 2f;
+        row[BmsSample.DC_BATTERY_CURRENT] = i % 100 / 10f - 5;
+        history.append(now += 1000, row);
+        return now;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long readDaySoc() throws IOException {
+        return history.read(start, start + DAY, soc, (time, values) -> {
+        });
+    }
+
+    /**
+     * rollup tiers after a restart, per day of history, on the query thread
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long seedRollupDay() throws IOException {
+        TelemetryRollup rollup = new TelemetryRollup(new TelemetryStore(16, BmsSample.COLUMNS));
+        TelemetryRollup seed = rollup.newSeed(start + DAY);
+        long rows = history.read(start, start + DAY, null, seed::seed);
+        rollup.merge(seed);
+        return rows;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long exportDay() throws IOException {
+        return history.exportCsv(start, start + DAY, discard);
+    }
+}
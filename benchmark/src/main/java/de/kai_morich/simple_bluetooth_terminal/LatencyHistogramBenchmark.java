@@ -0,0 +1,40 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * recording cost, as paid per reply on the reader thread
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LatencyHistogramBenchmark {
+
+    private final LatencyHistogram histogram = new LatencyHistogram("benchmark");
+    private long value = 20000000; // 20 ms
+
+    @Benchmark
+    public long record() {
+        value = value * 6364136223846793005L + 1442695040888963407L; // lcg, spreads over the buckets
+        histogram.record((value >>> 36) * 1000);
+        return histogram.getCount();
+    }
+
+    @Benchmark
+    public long percentile() {
+        return histogram.getPercentileNanos(99);
+    }
+}
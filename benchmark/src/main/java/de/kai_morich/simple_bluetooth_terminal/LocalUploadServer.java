@@ -0,0 +1,131 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * stand-in for the upload endpoint of Uploader, http on a free port of the loopback interface
+ *
+ * unpacks every batch and counts its csv rows, batches already received are counted as
+ * duplicates but accepted. failNext() answers the next requests with an error status,
+ * dropNext() closes the connection without reply, like a network lost during the upload.
+ */
+final class LocalUploadServer implements AutoCloseable {
+
+    private final HttpServer server;
+    private final Set<Long> sequences = new HashSet<>();
+    private long batches;
+    private long rows;
+    private long bytes;
+    private long duplicates;
+    private long requests;
+    private int failNext;
+    private int failStatus;
+    private int dropNext;
+
+    LocalUploadServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/upload", this::handle);
+        server.start();
+    }
+
+    URL getUrl() throws IOException {
+        return new URL("http", server.getAddress().getHostString(), server.getAddress().getPort(), "/upload");
+    }
+
+    synchronized void failNext(int count, int status) {
+        failNext = count;
+        failStatus = status;
+    }
+
+    synchronized void dropNext(int count) {
+        dropNext = count;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = readAll(exchange.getRequestBody());
+        int status;
+        synchronized (this) {
+            requests++;
+            if (dropNext > 0) {
+                dropNext--;
+                exchange.close(); // no reply
+                return;
+            }
+            if (failNext > 0) {
+                failNext--;
+                status = failStatus;
+            } else {
+                long sequence = Long.parseLong(exchange.getRequestHeaders().getFirst("X-Batch-Sequence"));
+                status = 200;
+                if (!sequences.add(sequence)) {
+                    duplicates++;
+                } else {
+                    batches++;
+                    bytes += body.length;
+                    rows += countRows(body);
+                }
+            }
+        }
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+
+    private static long countRows(byte[] gzip) throws IOException {
+        long lines = 0;
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                for (int i = 0; i < n; i++)
+                    if (buffer[i] == '\n')
+                        lines++;
+        }
+        return lines - 1; // header
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0)
+            out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    synchronized long getBatches() {
+        return batches;
+    }
+
+    synchronized long getRows() {
+        return rows;
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    synchronized long getRequests() {
+        return requests;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
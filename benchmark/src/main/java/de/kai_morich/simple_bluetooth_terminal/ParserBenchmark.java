@@ -0,0 +1,53 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 220101 decode: SignalDecoder alone, into the values array, and BmsDecoder, which also
+ * derives power and charging state into the sample
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({"220101_charging", "220101_driving", "220101_searching", "220101_truncated", "no_data", "can_error"})
+    public String reply;
+
+    private byte[] bytes;
+    private final BmsDecoder decoder = new BmsDecoder();
+    private final BmsSample sample = new BmsSample();
+    private final SignalDecoder signalDecoder = new SignalDecoder(SignalTable.konaBms());
+    private final int request220101 = signalDecoder.requestIndex(SignalTable.BMS, "220101");
+    private final double[] values = new double[signalDecoder.signalCount()];
+
+    @Setup
+    public void setup() {
+        bytes = Elm327Corpus.reply(reply);
+    }
+
+    @Benchmark
+    public boolean signalDecoder() {
+        return signalDecoder.decode(request220101, bytes, 0, bytes.length, values);
+    }
+
+    @Benchmark
+    public boolean bmsDecoder() {
+        return decoder.decode220101(bytes, 0, bytes.length, sample);
+    }
+}
@@ -0,0 +1,122 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * full init -> poll -> decode pipeline of ObdSession against the Elm327Simulator
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+    @Param({"0", "16"})
+    public int chunkSize;
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private Elm327Simulator simulator;
+    private ObdSession session;
+    private final Semaphore connected = new Semaphore(0);
+    private final Semaphore sampled = new Semaphore(0);
+    private volatile Exception error;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        simulator = new Elm327Simulator("simulator", 1)
+                .setResponse(Ecu.BMS.requestHeader, "220101", reply("220101_driving"))
+                .setResponse(Ecu.BMS.requestHeader, "220105", reply("220105"))
+                .setChunking(chunkSize, 0);
+        session = new ObdSession(new ObdSession.Listener() {
+            @Override
+            public void onSessionConnected() {
+                connected.release();
+            }
+
+            @Override
+            public void onSessionStatus(String text) {
+            }
+
+            @Override
+            public void onSessionResponse(String command, byte[] data, int length) {
+            }
+
+            @Override
+            public void onSessionSample(BmsSample sample) {
+                sample.recycle();
+                sampled.release();
+            }
+
+            @Override
+            public void onSessionError(String title, Exception e) {
+                error = e;
+                connected.release();
+                sampled.release();
+            }
+        }, timer);
+        session.setInitDelay(0, 0);
+        connectAndInitialize();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        session.disconnect();
+        timer.shutdown();
+    }
+
+    private static String reply(String name) {
+        String reply = new String(Elm327Corpus.reply(name), Charset.forName("US-ASCII"));
+        return reply.substring(0, reply.lastIndexOf('>'));
+    }
+
+    private void await(Semaphore semaphore) throws Exception {
+        if (!semaphore.tryAcquire(5, TimeUnit.SECONDS))
+            throw new IllegalStateException("timeout");
+        if (error != null)
+            throw error;
+    }
+
+    private void connectAndInitialize() throws Exception {
+        session.connect(simulator.getName(), simulator);
+        await(connected);
+        await(sampled); // init batch includes the first poll
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (session.getState() != ObdSession.POLLING) { // set on the session thread after the sample
+            if (System.nanoTime() - end > 0)
+                throw new IllegalStateException("timeout");
+            Thread.yield();
+        }
+    }
+
+    @Benchmark
+    public void poll() throws Exception {
+        session.poll();
+        await(sampled);
+    }
+
+    @Benchmark
+    public void reconnectCycle() throws Exception {
+        session.disconnect();
+        connectAndInitialize();
+    }
+}
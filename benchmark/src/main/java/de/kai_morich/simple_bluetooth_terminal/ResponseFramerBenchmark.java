@@ -0,0 +1,79 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * one reply fed to the framer in chunks of the given size, like read by SerialSocket,
+ * and all corpus replies in one read
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseFramerBenchmark {
+
+    @Param({"220101_charging", "no_data"})
+    public String reply;
+
+    @Param({"1", "20", "1024"})
+    public int chunkSize;
+
+    private byte[][] chunks;
+    private byte[] batch;
+    private final ResponseFramer framer = new ResponseFramer();
+    private int lines;
+    private int responses;
+    private final ResponseFramer.Listener listener = new ResponseFramer.Listener() {
+        @Override
+        public void onLine(byte[] data, int offset, int length) {
+            lines += length;
+        }
+
+        @Override
+        public void onResponse(byte[] data, int offset, int length) {
+            responses += length;
+        }
+    };
+
+    @Setup
+    public void setup() {
+        byte[] bytes = Elm327Corpus.reply(reply);
+        int count = (bytes.length + chunkSize - 1) / chunkSize;
+        chunks = new byte[count][];
+        for (int i = 0; i < count; i++)
+            chunks[i] = Arrays.copyOfRange(bytes, i * chunkSize, Math.min(bytes.length, (i + 1) * chunkSize));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] r : Elm327Corpus.replies().values())
+            out.write(r, 0, r.length);
+        batch = out.toByteArray();
+    }
+
+    @Benchmark
+    public int frame() {
+        for (byte[] chunk : chunks)
+            framer.onData(chunk, 0, chunk.length, listener);
+        return responses + lines;
+    }
+
+    @Benchmark
+    public int frameBatch() {
+        framer.onData(batch, 0, batch.length, listener);
+        return responses + lines;
+    }
+}
@@ -0,0 +1,44 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * cost of publish() on the reader thread, one subscriber per policy.
+ * delivery is never run, so every queue stays full as with a stalled consumer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TelemetryBusBenchmark {
+
+    private final TelemetryBus<BmsSample> bus = new TelemetryBus<>(BmsSample.TYPE);
+    private final BmsSample sample = new BmsSample();
+
+    @Setup
+    public void setup() {
+        byte[] reply = Elm327Corpus.reply("220101_driving");
+        new BmsDecoder().decode220101(reply, 0, reply.length, sample);
+        for (TelemetryBus.Policy policy : TelemetryBus.Policy.values())
+            bus.subscribe(policy, 64, runnable -> { }, batch -> { });
+    }
+
+    @Benchmark
+    public BmsSample publish() {
+        bus.publish(sample);
+        return sample;
+    }
+}
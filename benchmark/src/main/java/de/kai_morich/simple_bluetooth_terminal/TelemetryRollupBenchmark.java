@@ -0,0 +1,68 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * rollup filled with 30 days of 1 Hz samples, charts of 300 points over a day and a month
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TelemetryRollupBenchmark {
+
+    private static final long DAY = 24 * 3600 * 1000L;
+
+    private final TelemetryStore store = new TelemetryStore(4 * 3600, BmsSample.COLUMNS);
+    private final TelemetryRollup rollup = new TelemetryRollup(store);
+    private final float[] row = new float[BmsSample.COLUMNS.length];
+    private final long[] times = new long[300];
+    private final float[] values = new float[300];
+    private long now;
+
+    @Setup
+    public void setup() {
+        BmsSample sample = new BmsSample();
+        BmsDecoder decoder = new BmsDecoder();
+        byte[] reply = Elm327Corpus.reply("220101_charging");
+        decoder.decode220101(reply, 0, reply.length, sample);
+        sample.toRow(row);
+        for (int i = 0; i < 30 * 24 * 3600; i++) {
+            row[BmsSample.SOC_BMS] = i % 1000 / 10f;
+            now += 1000;
+            store.append(now, row);
+            rollup.append(now, row);
+        }
+    }
+
+    @Benchmark
+    public long append() {
+        now += 1000;
+        store.append(now, row);
+        rollup.append(now, row);
+        return now;
+    }
+
+    @Benchmark
+    public int chartDay() {
+        return rollup.chart(BmsSample.SOC_BMS, now - DAY, now, times.length, times, values);
+    }
+
+    @Benchmark
+    public int chartMonth() {
+        return rollup.chart(BmsSample.SOC_BMS, now - 30 * DAY, now, times.length, times, values);
+    }
+}
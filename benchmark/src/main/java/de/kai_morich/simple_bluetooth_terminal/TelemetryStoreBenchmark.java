@@ -0,0 +1,69 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * store filled with 4 hours of 1 Hz samples, queries over the last hour
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TelemetryStoreBenchmark {
+
+    private static final int CAPACITY = 4 * 3600;
+
+    private final TelemetryStore store = new TelemetryStore(CAPACITY, BmsSample.COLUMNS);
+    private final float[] row = new float[BmsSample.COLUMNS.length];
+    private final TelemetryStore.Window window = new TelemetryStore.Window();
+    private final long[] times = new long[3600];
+    private final float[] values = new float[3600];
+    private int soc;
+    private long now;
+
+    @Setup
+    public void setup() {
+        BmsSample sample = new BmsSample();
+        BmsDecoder decoder = new BmsDecoder();
+        byte[] reply = Elm327Corpus.reply("220101_charging");
+        decoder.decode220101(reply, 0, reply.length, sample);
+        sample.toRow(row);
+        for (int i = 0; i < CAPACITY; i++)
+            store.append(now += 1000, row);
+        soc = store.columnIndex("SOC_BMS");
+    }
+
+    @Benchmark
+    public long append() {
+        store.append(now += 1000, row);
+        return store.getTotalCount();
+    }
+
+    @Benchmark
+    public float latest() {
+        return store.latest(soc);
+    }
+
+    @Benchmark
+    public int windowLastHour() {
+        return store.window(soc, now - 3600 * 1000, now + 1, window);
+    }
+
+    @Benchmark
+    public int rangeLastHour() {
+        return store.range(soc, now - 3600 * 1000, now + 1, times, values);
+    }
+}
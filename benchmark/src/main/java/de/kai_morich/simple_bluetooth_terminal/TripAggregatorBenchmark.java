@@ -0,0 +1,58 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * cost per sample on the storage thread, and of reading the open trip
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TripAggregatorBenchmark {
+
+    private final TripAggregator trips = new TripAggregator(32, null);
+    private final TripAggregator.Trip trip = new TripAggregator.Trip();
+    private final BmsSample sample = new BmsSample();
+    private long count;
+
+    @Setup
+    public void setup() {
+        sample.set(BmsSample.CHARGING, true);
+        sample.set(BmsSample.RAPID_CHARGE_PORT, true);
+        sample.set(BmsSample.BATTERY_MIN_TEMPERATURE, 25);
+        sample.set(BmsSample.BATTERY_MAX_TEMPERATURE, 31);
+        sample.set(BmsSample.CUMULATIVE_ENERGY_CHARGED, 5000);
+        sample.set(BmsSample.CUMULATIVE_ENERGY_DISCHARGED, 4800);
+        sample.timeMillis = System.currentTimeMillis();
+    }
+
+    @Benchmark
+    public long add() {
+        count++;
+        sample.timeMillis += 1000;
+        sample.set(BmsSample.DC_BATTERY_POWER, -50 - (count & 15));
+        sample.set(BmsSample.SOC_BMS, count % 1000 / 10.0);
+        trips.add(sample);
+        return count;
+    }
+
+    @Benchmark
+    public double current() {
+        trips.getCurrent(trip);
+        return trip.energyInKwh;
+    }
+}
@@ -0,0 +1,123 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1 Hz samples decoded from the corpus spooled into gzip csv batches of an hour,
+ * uploaded to LocalUploadServer. at the end all batches have to be received once without
+ * failures, then the empty spool is reopened like after a restart and has to upload without
+ * duplicates
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UploadBenchmark {
+
+    private static final int BATCH_ROWS = 3600;
+
+    private File dir;
+    private UploadSpool spool;
+    private Uploader uploader;
+    private ScheduledExecutorService executor;
+    private LocalUploadServer server;
+    private URL url;
+    private final float[] row = new float[BmsSample.COLUMNS.length];
+    private long now;
+    private int i;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = File.createTempFile("spool", "");
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+        spool = new UploadSpool(dir, BmsSample.COLUMNS, BATCH_ROWS, Long.MAX_VALUE, Long.MAX_VALUE);
+        executor = Executors.newSingleThreadScheduledExecutor();
+        uploader = new Uploader(spool, executor); // uploadNext() is called directly, no endpoint
+        server = new LocalUploadServer();
+        url = server.getUrl();
+        BmsSample sample = new BmsSample();
+        BmsDecoder decoder = new BmsDecoder();
+        byte[] reply = Elm327Corpus.reply("220101_charging");
+        decoder.decode220101(reply, 0, reply.length, sample);
+        sample.toRow(row);
+        now = System.currentTimeMillis();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        spool.close();
+        checkRestart();
+        server.close();
+        executor.shutdown();
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    /**
+     * sequence numbers have to continue after all batches were uploaded and deleted
+     */
+    private void checkRestart() throws IOException {
+        while (spool.peek() != null)
+            uploader.uploadNext(url);
+        long duplicates = server.getDuplicates();
+        if (uploader.getFailures() != 0 || duplicates != 0 || server.getBatches() != uploader.getUploadedBatches())
+            throw new IllegalStateException("upload failed or duplicate, " + server.getBatches() + " batches received: " + uploader.appendStatistics(new StringBuilder()));
+        UploadSpool restarted = new UploadSpool(dir, BmsSample.COLUMNS, BATCH_ROWS, Long.MAX_VALUE, Long.MAX_VALUE);
+        Uploader restartedUploader = new Uploader(restarted, executor);
+        for (int n = 0; n < BATCH_ROWS; n++)
+            restarted.append(now += 1000, row);
+        restarted.close();
+        if (!restartedUploader.uploadNext(url) || server.getDuplicates() != duplicates)
+            throw new IllegalStateException("batch after restart not uploaded or duplicate: " + restartedUploader.appendStatistics(new StringBuilder()));
+    }
+
+    /**
+     * one sealed batch waiting for each uploadBatch()
+     */
+    @Setup(Level.Invocation)
+    public void spoolBatch() throws IOException {
+        while (spool.getBatchCount() == 0)
+            append();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long append() throws IOException {
+        i++;
+        row[BmsSample.SOC_BMS] = i / 3600 % 200 / 2f;
+        row[BmsSample.DC_BATTERY_CURRENT] = i % 100 / 10f - 5;
+        spool.append(now += 1000, row);
+        return now;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean uploadBatch() throws IOException {
+        return uploader.uploadNext(url);
+    }
+}